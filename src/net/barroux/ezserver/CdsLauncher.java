@@ -0,0 +1,202 @@
+package net.barroux.ezserver;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Launcher running an EzServer application in a child jvm using an AppCDS
+ * archive (class data sharing), to cut down the startup time.
+ * 
+ * The first time, when the archive doesn't exist yet, a training run is
+ * launched : the server is started, each training verb is requested once and
+ * the server is stopped through the StopMonitor, the jvm dumping the classes
+ * it loaded into the archive when exiting. The training run uses the
+ * configured database : only verbs of idempotent, read-only commands must be
+ * given. The serving jvm is then
+ * launched with the archive. Following launches reuse the archive directly.
+ * Delete the archive whenever the dependencies change.
+ * 
+ * The time to first request of the training run (i.e. without archive) is
+ * kept next to the archive so that the time saved can be reported on every
+ * launch.
+ */
+class CdsLauncher {
+   private static final Logger log           = LoggerFactory.getLogger(CdsLauncher.class);
+   private static final String MODE_PROPERTY = "ezserver.cds";
+   private static final String TRAINING      = "training";
+   private static final String SERVING       = "serving";
+   private final Path          archive;
+   private final Path          baseline;
+   private final int           port;
+   private final String        context;
+   private final Class<?>      mainClass;
+   private final String[]      args;
+
+   CdsLauncher(String archive, int port, String context, Class<?> mainClass, String... args) {
+      this.archive = Paths.get(archive).toAbsolutePath();
+      this.baseline = Paths.get(archive + ".ttfr").toAbsolutePath();
+      this.port = port;
+      this.context = context;
+      this.mainClass = mainClass;
+      this.args = args;
+   }
+
+   /**
+    * @return true if the current jvm is a child launched by a CdsLauncher.
+    */
+   static boolean isLaunched() {
+      return System.getProperty(MODE_PROPERTY) != null;
+   }
+
+   /**
+    * @return true if the current jvm is a training run.
+    */
+   static boolean isTrainingRun() {
+      return TRAINING.equals(System.getProperty(MODE_PROPERTY));
+   }
+
+   /**
+    * Dynamic archiving (-XX:ArchiveClassesAtExit) is available since java 13,
+    * and only for a classpath made of jars : the jvm refuses to archive
+    * classes when a non-empty directory is on the classpath.
+    */
+   static boolean isSupported() {
+      String version = System.getProperty("java.specification.version");
+      if (version.startsWith("1.") || Integer.parseInt(version) < 13) {
+         return false;
+      }
+      for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+         String[] content = new File(entry).list();
+         if (content != null && content.length > 0) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Launches the training run if needed, then the serving jvm, and waits for
+    * the latter to end. Never returns.
+    */
+   void launch() throws Exception {
+      if (!Files.exists(archive)) {
+         log.info("No CDS archive found at {}, starting training run", archive);
+         Process training = startChild(TRAINING, "-XX:ArchiveClassesAtExit=" + archive);
+         long ttfr = waitForFirstResponse(training);
+         int status = training.waitFor();
+         if (status != 0 || !Files.exists(archive)) {
+            throw new IllegalStateException("CDS training run failed (exit status " + status + ")");
+         }
+         Files.write(baseline, String.valueOf(ttfr).getBytes(UTF_8));
+         log.info("CDS archive written to {} ; time to first request without archive : {}ms", archive, ttfr);
+      }
+      final Process serving = startChild(SERVING, "-XX:SharedArchiveFile=" + archive);
+      Runtime.getRuntime().addShutdownHook(new Thread(serving::destroy));
+      long ttfr = waitForFirstResponse(serving);
+      if (Files.exists(baseline)) {
+         long withoutArchive = Long.parseLong(new String(Files.readAllBytes(baseline), UTF_8).trim());
+         log.info("Time to first request with CDS archive : {}ms ({}ms saved)", ttfr, withoutArchive - ttfr);
+      }
+      else {
+         log.info("Time to first request with CDS archive : {}ms", ttfr);
+      }
+      System.exit(serving.waitFor());
+   }
+
+   /**
+    * Relaunches the main class in a child jvm, with the same jvm options and
+    * classpath, plus the passed CDS option.
+    */
+   private Process startChild(String mode, String cdsOption) throws IOException {
+      List<String> command = new ArrayList<>();
+      command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+      command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+      command.add(cdsOption);
+      command.add("-D" + MODE_PROPERTY + "=" + mode);
+      // java.class.path est le jar lui-même quand on a été lancé par -jar
+      command.add("-cp");
+      command.add(System.getProperty("java.class.path"));
+      command.add(mainClass.getName());
+      command.addAll(Arrays.asList(args));
+      log.debug("launching {} jvm : {}", mode, command);
+      return new ProcessBuilder(command).directory(new File(System.getProperty("user.dir"))).inheritIO().start();
+   }
+
+   /**
+    * Polls the server until it answers, whatever the response status.
+    * 
+    * @return the time elapsed since the child jvm was launched, in ms.
+    */
+   private long waitForFirstResponse(Process child) throws InterruptedException {
+      long deb = System.nanoTime();
+      while (child.isAlive()) {
+         try {
+            request(port, "/" + context);
+            return (System.nanoTime() - deb) / 1000000;
+         }
+         catch (IOException e) {
+            Thread.sleep(10);
+         }
+      }
+      return (System.nanoTime() - deb) / 1000000;
+   }
+
+   /**
+    * Training run : requests each training verb once so that the classes its
+    * command uses (including jsp) end up in the archive, then stops the
+    * server through the StopMonitor. Verbs of unknown commands are skipped.
+    */
+   static void train(int port, String context, Collection<String> trainingVerbs, Collection<String> verbs) {
+      for (String verb : trainingVerbs) {
+         if (!verbs.contains(verb)) {
+            log.warn("CDS training verb {} is not a known command, skipped", verb);
+            continue;
+         }
+         String path = ("/" + context + "/cmd/" + verb).replace("//", "/");
+         try {
+            int status = request(port, path);
+            log.debug("training request {} : {}", path, status);
+         }
+         catch (IOException e) {
+            log.debug("training request {} failed : {}", path, e.getMessage());
+         }
+      }
+      StopMonitor.sendStopCommand(port, 2000);
+   }
+
+   private static int request(int port, String path) throws IOException {
+      HttpURLConnection conn = (HttpURLConnection) new URL("http", "127.0.0.1", port, path).openConnection();
+      conn.setInstanceFollowRedirects(false);
+      try {
+         int status = conn.getResponseCode();
+         InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream();
+         if (in != null) {
+            byte[] buffer = new byte[8192];
+            while (in.read(buffer) != -1) {
+               // draining the response
+            }
+            in.close();
+         }
+         return status;
+      }
+      finally {
+         conn.disconnect();
+      }
+   }
+}
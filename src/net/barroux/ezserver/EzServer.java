@@ -1,11 +1,16 @@
 package net.barroux.ezserver;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.security.Security;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.servlet.DispatcherType;
 import javax.servlet.Filter;
@@ -24,7 +29,9 @@ import org.apache.commons.lang.SystemUtils;
 import org.bibeault.frontman.CommandBroker;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
 import org.eclipse.jetty.webapp.WebAppContext;
 import org.eclipse.jetty.websocket.jsr356.server.deploy.WebSocketServerContainerInitializer;
 import org.slf4j.Logger;
@@ -56,6 +63,15 @@ public class EzServer {
    private DbConfig                      dbConfig;
    private Identifier                    identifier;
    private Map<String, Object>           attributes;
+   private boolean                       virtualThreads;
+   private String                        cdsArchive;
+   private Class<?>                      cdsMainClass;
+   private String[]                      cdsArgs;
+   private List<String>                  cdsVerbs      = new ArrayList<>();
+   private String                        statsVerb;
+   private boolean                       watchViews;
+   private boolean                       precompileJsps;
+   private String                        jspClassesDir = "build/jsp";
 
    /**
     * Initializing an EzServer with the only parameter without default.
@@ -149,13 +165,106 @@ public class EzServer {
       return this;
    }
 
+   /**
+    * EXPERIMENTAL : fluent setter for running every request on its own
+    * virtual thread (defaults to false). Requires a java 21+ runtime,
+    * otherwise the default jetty thread pool is kept.
+    * <p>
+    * Only for commands waiting on something else than the database (remote
+    * services...) : with 1000 clients of a command waiting 250ms, it serves
+    * about 1400 req/s where the 200 threads of the default pool cap at 800.
+    * The jdbc drivers shipped (H2, PostgreSQL 9.2) block while holding a
+    * monitor, which pins the carrier thread : with a DbConfig, a command
+    * waiting 20ms on the database falls from about 1250 req/s to 55.
+    * </p>
+    */
+   public EzServer experimentalVirtualThreads(boolean virtualThreads) {
+      this.virtualThreads = virtualThreads;
+      return this;
+   }
+
+   /**
+    * Fluent setter for the AppCDS archive used to speed up startup (defaults
+    * to none). When set, start() acts as a launcher : it relaunches the main
+    * class with its arguments in a child jvm using the archive, after a
+    * training run creating it if it doesn't exist yet (see
+    * {@link #cdsTrainingVerbs(String...)}). Requires java 13+ and a classpath
+    * made of jars only.
+    */
+   public EzServer cdsArchive(String cdsArchive, Class<?> mainClass, String... args) {
+      this.cdsArchive = cdsArchive;
+      this.cdsMainClass = mainClass;
+      this.cdsArgs = args;
+      return this;
+   }
+
+   /**
+    * Fluent setter for the commands requested by the CDS training run
+    * (defaults to none, only the context root is requested). The training
+    * run uses the configured database : give only verbs of idempotent,
+    * read-only commands.
+    */
+   public EzServer cdsTrainingVerbs(String... verbs) {
+      this.cdsVerbs.addAll(Arrays.asList(verbs));
+      return this;
+   }
+
+   /**
+    * Fluent setter for the command verb serving commands statistics as json
+    * (defaults to none). e.g. {@code statsVerb("_stats")} exposes them on
+    * "/cmd/_stats", behind the same filters as any other command.
+    */
+   public EzServer statsVerb(String statsVerb) {
+      this.statsVerb = statsVerb;
+      return this;
+   }
+
+   /**
+    * Fluent setter for watching the views directory (defaults to false).
+    * Resolved views are cached by the command broker; in development, set
+    * it to true so that added, moved or deleted jsp are taken into account
+    * without restarting.
+    */
+   public EzServer watchViews(boolean watchViews) {
+      this.watchViews = watchViews;
+      return this;
+   }
+
+   /**
+    * Fluent setter for compiling the jsp views before the server accepts
+    * requests (defaults to false). Each view is then served by its own
+    * servlet, which jasper never checks nor recompiles : meant for
+    * production, jsp changes need a restart.
+    */
+   public EzServer precompileJsps(boolean precompileJsps) {
+      this.precompileJsps = precompileJsps;
+      return this;
+   }
+
+   /**
+    * Fluent setter for the directory of the precompiled views (defaults to
+    * "build/jsp", where the "jsp" target of build.xml puts them). Views
+    * already compiled there and up to date are not compiled again.
+    */
+   public EzServer jspClassesDir(String jspClassesDir) {
+      this.jspClassesDir = jspClassesDir;
+      return this;
+   }
+
    public void start() throws Exception {
+      if (cdsArchive != null && !CdsLauncher.isLaunched()) {
+         if (CdsLauncher.isSupported()) {
+            new CdsLauncher(cdsArchive, port, context, cdsMainClass, cdsArgs).launch();
+            return;
+         }
+         log.warn("CDS archives need java 13+ and a classpath made of jars only, starting without archive");
+      }
       log.info("preparing server start on port {} ", port);
       // For some reason, oracle jdbc driver won't let me connect if
       // I'm using jdk instead of jre (which I need for jsp)...sigh
       // unless... bouncyCastle to the rescue!
       Security.addProvider(new BouncyCastleProvider());
-      Server server = new Server(port);
+      Server server = createServer();
 
       WebAppContext app = new WebAppContext(webContent + "/", "/" + context);
       server.setHandler(app);
@@ -167,6 +276,9 @@ public class EzServer {
       String pathSpec = "/cmd/*";
       app.addServlet(cmdBroker, pathSpec);
       app.setExtraClasspath(classesDir);
+      if (precompileJsps) {
+         precompileJsps(app);
+      }
       app.setInitParameter(JETTY_DEFAULT + "welcomeServlets", true + "");
       // on renvoie sur le welcome servlet/page par un redirecthttp
       app.setInitParameter(JETTY_DEFAULT + "redirectWelcome", true + "");
@@ -177,14 +289,16 @@ public class EzServer {
       }
 
       EnumSet<DispatcherType> dts = EnumSet.of(DispatcherType.REQUEST);
-      app.addFilter(LogRequestFilter.class, pathSpec, dts);
+      // filters must support async requests for AsyncCommands to release
+      // their thread
+      app.addFilter(LogRequestFilter.class, pathSpec, dts).setAsyncSupported(true);
       if (dbConfig != null) {
          DbHelper.init(dbConfig);
-         app.addFilter(TransactionFilter.class, pathSpec, dts);
+         app.addFilter(TransactionFilter.class, pathSpec, dts).setAsyncSupported(true);
       }
       if (identifier != null) {
          app.setAttribute("identifier", identifier);
-         app.addFilter(SentryFilter.class, pathSpec, dts);
+         app.addFilter(SentryFilter.class, pathSpec, dts).setAsyncSupported(true);
       }
       filters.stream().forEach(f -> app.addFilter(f, pathSpec, dts));
 
@@ -194,6 +308,46 @@ public class EzServer {
       server.start();
       server.dump(System.out);
       log.info("Server started");
+      if (CdsLauncher.isTrainingRun()) {
+         CdsLauncher.train(port, context, cdsVerbs, ((CommandBroker) cmdBroker.getServlet()).getCommandVerbs());
+      }
+   }
+
+   private Server createServer() {
+      ExecutorService virtualThreadExecutor = virtualThreads ? newVirtualThreadExecutor() : null;
+      if (virtualThreadExecutor == null) {
+         return new Server(port);
+      }
+      // Jetty has no virtual thread support of its own : the whole server
+      // (connector, filters, CommandBroker, jsp rendering) runs on a thread
+      // pool starting a new virtual thread for each task. Thread bound
+      // resources such as DbHelper connections stay correct since each
+      // request keeps the same thread from the first filter to the end of
+      // the rendering.
+      Server server = new Server(new ExecutorThreadPool(virtualThreadExecutor));
+      ServerConnector connector = new ServerConnector(server);
+      connector.setPort(port);
+      server.addConnector(connector);
+      log.warn("Requests will be served on virtual threads (experimental)");
+      if (dbConfig != null) {
+         log.warn("Virtual threads are pinned by jdbc drivers blocking in synchronized code : expect a much lower throughput on database commands");
+      }
+      return server;
+   }
+
+   private static ExecutorService newVirtualThreadExecutor() {
+      try {
+         MethodHandle factory = MethodHandles.publicLookup()
+                                             .findStatic(Executors.class,
+                                                         "newVirtualThreadPerTaskExecutor",
+                                                         MethodType.methodType(ExecutorService.class));
+         return (ExecutorService) factory.invoke();
+      }
+      catch (Throwable e) {
+         log.warn("Virtual threads are not available on this jvm ({}), using the default thread pool",
+                  System.getProperty("java.version"));
+         return null;
+      }
    }
 
    private void setWebSockets(WebAppContext app) throws ServletException, DeploymentException {
@@ -205,10 +359,25 @@ public class EzServer {
       }
    }
 
+   private void precompileJsps(WebAppContext app) throws Exception {
+      Map<String, String> servlets = new JspPrecompiler(webContent, viewsPath, jspClassesDir, classesDir).precompile();
+      app.setExtraClasspath(classesDir + "," + jspClassesDir);
+      // le mapping exact sur le chemin de la jsp passe devant le *.jsp de
+      // jasper, y compris lors des forwards
+      for (Map.Entry<String, String> servlet : servlets.entrySet()) {
+         app.addServlet(servlet.getValue(), servlet.getKey());
+      }
+   }
+
    private ServletHolder getCommandBroker() {
       ServletHolder cmdBroker = new ServletHolder("CommandBroker", CommandBroker.class);
+      cmdBroker.setAsyncSupported(true);
       cmdBroker.setInitParameter("commandsPath", commandsPath);
       cmdBroker.setInitParameter("viewsPath", viewsPath);
+      if (statsVerb != null) {
+         cmdBroker.setInitParameter("statsVerb", statsVerb);
+      }
+      cmdBroker.setInitParameter("watchViews", watchViews + "");
       return cmdBroker;
    }
 }
@@ -0,0 +1,137 @@
+package net.barroux.ezserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.jasper.JasperException;
+import org.apache.jasper.JspC;
+import org.apache.jasper.compiler.JspUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compiles the jsp views ahead of time, so that no request pays for the
+ * jasper compilation. Each view becomes a plain servlet class to be mapped
+ * on the path of its jsp : once mapped, jasper never checks it again.
+ *
+ * Used by {@link EzServer#precompileJsps(boolean)} at startup and by the
+ * "jsp" target of build.xml at build time. Views whose class is newer than
+ * their jsp are not compiled again (delete the output directory when only a
+ * included fragment has changed).
+ */
+public final class JspPrecompiler {
+   private static final Logger log          = LoggerFactory.getLogger(JspPrecompiler.class);
+   private static final String BASE_PACKAGE = "jsp";
+
+   private final Path          webContent;
+   private final String        viewsPath;
+   private final File          outputDir;
+   private final String        classpath;
+
+   /**
+    * @param webContent
+    *           the root directory of the web application
+    * @param viewsPath
+    *           the context relative directory of the views, e.g.
+    *           "/WEB-INF/jsp"
+    * @param outputDir
+    *           the directory receiving the compiled views
+    * @param classesDir
+    *           the directory of the application classes used by the views
+    */
+   public JspPrecompiler(String webContent, String viewsPath, String outputDir, String classesDir) {
+      this.webContent = Paths.get(webContent);
+      this.viewsPath = viewsPath.startsWith("/") ? viewsPath.substring(1) : viewsPath;
+      this.outputDir = new File(outputDir);
+      this.classpath = classesDir + File.pathSeparator + System.getProperty("java.class.path");
+   }
+
+   /**
+    * Compiles the views that are missing or out of date.
+    *
+    * @return the servlet class name of every view, by context relative jsp
+    *         path
+    */
+   public Map<String, String> precompile() throws IOException, JasperException {
+      Map<String, String> servlets = new LinkedHashMap<>();
+      List<String> stale = new ArrayList<>();
+      for (String jsp : findViews()) {
+         String className = classNameOf(jsp);
+         servlets.put("/" + jsp, className);
+         File classFile = new File(outputDir, className.replace('.', '/') + ".class");
+         if (classFile.lastModified() < webContent.resolve(jsp).toFile().lastModified()) {
+            stale.add(jsp);
+         }
+      }
+      log.info("{} views found in {}, {} to compile", servlets.size(), viewsPath, stale.size());
+      if (stale.isEmpty()) return servlets;
+      JspC jspc = new JspC();
+      jspc.setUriroot(webContent.toString());
+      jspc.setOutputDir(outputDir.getPath());
+      jspc.setPackage(BASE_PACKAGE);
+      jspc.setClassPath(classpath);
+      jspc.setCompile(true);
+      jspc.setCompilerSourceVM("1.8");
+      jspc.setCompilerTargetVM("1.8");
+      jspc.setFailOnError(true);
+      long total = System.nanoTime();
+      // un appel par vue pour pouvoir tracer le temps de chacune
+      for (String jsp : stale) {
+         long start = System.nanoTime();
+         jspc.setJspFiles(jsp);
+         jspc.execute();
+         log.info("  {} compiled in {} ms", jsp, (System.nanoTime() - start) / 1_000_000);
+      }
+      log.info("{} views compiled in {} ms", stale.size(), (System.nanoTime() - total) / 1_000_000);
+      return servlets;
+   }
+
+   /**
+    * @return the jsp files below the views directory, relative to the web
+    *         content root
+    */
+   private List<String> findViews() throws IOException {
+      Path views = webContent.resolve(viewsPath);
+      if (!Files.isDirectory(views)) return new ArrayList<>();
+      try (Stream<Path> files = Files.walk(views)) {
+         return files.filter(p -> p.toString().endsWith(".jsp"))
+                     .map(p -> webContent.relativize(p).toString().replace(File.separatorChar, '/'))
+                     .sorted()
+                     .collect(Collectors.toList());
+      }
+   }
+
+   /**
+    * @return the name jasper gives to the servlet class of the jsp
+    */
+   static String classNameOf(String jsp) {
+      int slash = jsp.lastIndexOf('/');
+      String className = JspUtil.makeJavaIdentifier(jsp.substring(slash + 1));
+      if (slash == -1) return BASE_PACKAGE + "." + className;
+      return BASE_PACKAGE + "." + JspUtil.makeJavaPackage(jsp.substring(0, slash)) + "." + className;
+   }
+
+   /**
+    * Build time entry point.
+    *
+    * @param args
+    *           web content directory, views path, output directory and
+    *           application classes directory
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length != 4) {
+         System.err.println("usage: JspPrecompiler <webContent> <viewsPath> <outputDir> <classesDir>");
+         System.exit(2);
+      }
+      new JspPrecompiler(args[0], args[1], args[2], args[3]).precompile();
+   }
+}
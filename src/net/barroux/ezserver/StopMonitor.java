@@ -11,6 +11,8 @@ import java.net.Socket;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import net.barroux.ezserver.db.DbHelper;
+
 import org.eclipse.jetty.server.Server;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -56,6 +58,10 @@ class StopMonitor extends Thread {
          int graceDelay = gDelayS == null ? 100 : Integer.parseInt(gDelayS);
          doStop(graceDelay);
          log.debug("exiting");
+         if (CdsLauncher.isTrainingRun()) {
+            // la jvm doit sortir normalement pour écrire l'archive CDS
+            System.exit(0);
+         }
          Runtime.getRuntime().halt(0);
       }
       catch (IOException e) {
@@ -74,7 +80,9 @@ class StopMonitor extends Thread {
       catch (Exception e) {
          log.error("Could not stop properly server", e);
       }
-
+      // les requêtes asynchrones lancées par les dernières commandes ont le
+      // même délai de grace pour se terminer
+      DbHelper.shutdown(graceDelay);
    }
 
    /**
@@ -0,0 +1,385 @@
+package net.barroux.ezserver.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.jooq.SQLDialect;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes rows given one at a time, obtained from
+ * {@link EzQr#batchWriter(String)}, {@link EzQr#insertWriter(String, String...)}
+ * or {@link EzQr#upsertWriter(String, String[], String...)}.
+ * <p>
+ * The rows are buffered and written each time {@link #flushRows(int)} rows or
+ * about {@link #flushBytes(long)} bytes of values are pending, so that an
+ * import never holds more than that. Inserts and upserts are rewritten to
+ * multi-row statements of {@link #rowsPerStatement(int)} rows, sent as JDBC
+ * batches; the remaining rows of a flush go one row per statement, in a
+ * batch as well, so a writer prepares two statements at most.
+ * </p>
+ * <p>
+ * The rows are written on the connection of the current thread (see
+ * {@link DbHelper#conn()}), in its transaction : committing, between flushes
+ * or at the end, is up to the caller. Not thread safe.
+ * </p>
+ */
+public final class BatchWriter implements AutoCloseable {
+   private static final Logger              log                 = LoggerFactory.getLogger(BatchWriter.class);
+   static final int                         DEFAULT_FLUSH_ROWS  = 1000;
+   static final long                        DEFAULT_FLUSH_BYTES = 4 * 1024 * 1024;
+   static final int                         DEFAULT_ROWS        = 100;
+   // les drivers PostgreSQL antérieurs à 42.2 refusent plus de paramètres
+   private static final int                 MAX_PARAMS          = 32767;
+
+   private final String                     target;
+   private final int                        width;
+   private final IntFunction<String>        sql;
+   private final boolean                    multiRow;
+   private final int                        nullType;
+   private final int[]                      keys;
+   private final List<Object[]>             pending             = new ArrayList<>();
+   private final Map<List<Object>, Integer> pendingKeys         = new HashMap<>();
+   private long                             pendingBytes;
+   private int                              flushRows           = DEFAULT_FLUSH_ROWS;
+   private long                             flushBytes          = DEFAULT_FLUSH_BYTES;
+   private int                              rowsPerStatement    = DEFAULT_ROWS;
+   private long                             rows;
+   private long                             flushes;
+   private long                             start;
+   private long                             end;
+   private boolean                          closed;
+
+   private BatchWriter(String target, int width, IntFunction<String> sql, boolean multiRow, SQLDialect dialect, int[] keys) {
+      this.target = target;
+      this.width = width;
+      this.sql = sql;
+      this.multiRow = multiRow;
+      this.keys = keys;
+      // PostgreSQL refuse un null VARCHAR dans une colonne numérique
+      this.nullType = dialect != null && dialect.family() == SQLDialect.POSTGRES ? Types.NULL : Types.VARCHAR;
+   }
+
+   /**
+    * A writer sending the sql, one statement per row, in JDBC batches.
+    */
+   static BatchWriter of(String sql, SQLDialect dialect) {
+      return new BatchWriter(sql, -1, n -> sql, false, dialect, null);
+   }
+
+   static BatchWriter insert(SQLDialect dialect, String table, String... columns) {
+      boolean oracle = isOracle(dialect);
+      return new BatchWriter(table, columns.length, n -> insertSql(oracle, table, columns, n), multiRowValues(oracle, dialect), dialect, null);
+   }
+
+   /**
+    * A same statement cannot affect a row twice (PostgreSQL on conflict,
+    * Oracle merge) : a row whose keys are already pending replaces the
+    * pending one, as if they had been written in turn.
+    */
+   static BatchWriter upsert(SQLDialect dialect, String table, String[] keys, String... columns) {
+      List<String> all = Arrays.asList(columns);
+      int[] indexes = new int[keys.length];
+      for (int i = 0; i < keys.length; i++) {
+         indexes[i] = all.indexOf(keys[i]);
+         if (indexes[i] < 0) throw new IllegalArgumentException("Key " + keys[i] + " is not one of the columns of " + table);
+      }
+      boolean oracle = isOracle(dialect);
+      // échoue dès la création si le dialecte n'a pas d'upsert
+      upsertSql(oracle, dialect, table, keys, columns, 1);
+      return new BatchWriter(table,
+                             columns.length,
+                             n -> upsertSql(oracle, dialect, table, keys, columns, n),
+                             multiRowValues(oracle, dialect),
+                             dialect,
+                             indexes);
+   }
+
+   /**
+    * Fluent setter for the number of pending rows triggering a flush
+    * (defaults to {@value #DEFAULT_FLUSH_ROWS}).
+    */
+   public BatchWriter flushRows(int flushRows) {
+      this.flushRows = Math.max(1, flushRows);
+      return this;
+   }
+
+   /**
+    * Fluent setter for the estimated size of the pending values triggering a
+    * flush : 2 bytes per char, the length of byte arrays, 16 bytes for
+    * anything else (defaults to 4 MB).
+    */
+   public BatchWriter flushBytes(long flushBytes) {
+      this.flushBytes = flushBytes;
+      return this;
+   }
+
+   /**
+    * Fluent setter for the number of rows of the multi-row statements, 1 to
+    * send a statement per row (defaults to {@value #DEFAULT_ROWS}).
+    */
+   public BatchWriter rowsPerStatement(int rowsPerStatement) {
+      this.rowsPerStatement = Math.max(1, rowsPerStatement);
+      return this;
+   }
+
+   /**
+    * Adds a row, with the values of the columns in order (converted like the
+    * parameters of {@link EzQr}), flushing if needed.
+    */
+   public BatchWriter add(Object... row) {
+      if (this.closed) throw new IllegalStateException("BatchWriter closed : " + this.target);
+      if (this.width >= 0 && row.length != this.width) {
+         throw new IllegalArgumentException(row.length + " values for the " + this.width + " columns of " + this.target);
+      }
+      if (this.start == 0) this.start = System.nanoTime();
+      Object[] values = new Object[row.length];
+      for (int i = 0; i < row.length; i++) {
+         values[i] = EzQr.fixParam(row[i]);
+      }
+      Integer previous = this.keys == null ? null : this.pendingKeys.putIfAbsent(keyOf(values), this.pending.size());
+      if (previous == null) {
+         this.pending.add(values);
+      }
+      else {
+         this.pendingBytes -= sizeOf(this.pending.set(previous, values));
+      }
+      this.pendingBytes += sizeOf(values);
+      if (this.pending.size() >= this.flushRows || this.pendingBytes >= this.flushBytes) flush();
+      return this;
+   }
+
+   private List<Object> keyOf(Object[] values) {
+      Object[] key = new Object[this.keys.length];
+      for (int i = 0; i < key.length; i++) {
+         key[i] = values[this.keys[i]];
+      }
+      return Arrays.asList(key);
+   }
+
+   private static long sizeOf(Object[] values) {
+      long bytes = 16;
+      for (Object value : values) {
+         if (value instanceof CharSequence) bytes += 2 * ((CharSequence) value).length();
+         else if (value instanceof byte[]) bytes += ((byte[]) value).length;
+         else bytes += 16;
+      }
+      return bytes;
+   }
+
+   /**
+    * Writes the pending rows.
+    */
+   public void flush() {
+      int count = this.pending.size();
+      if (count == 0) return;
+      long deb = System.nanoTime();
+      int perStatement = 1;
+      if (this.multiRow && this.width > 0) perStatement = Math.max(1, Math.min(this.rowsPerStatement, MAX_PARAMS / this.width));
+      int grouped = perStatement == 1 ? 0 : count - count % perStatement;
+      Connection conn = DbHelper.conn();
+      try {
+         if (grouped > 0) execute(conn, perStatement, 0, grouped);
+         if (grouped < count) execute(conn, 1, grouped, count);
+      }
+      catch (SQLException e) {
+         SQLException next = e.getNextException();
+         if (next != null) log.error("Batch failure cause", next);
+         throw new DbException("Could not write " + count + " rows into " + this.target, e);
+      }
+      finally {
+         this.pending.clear();
+         this.pendingKeys.clear();
+         this.pendingBytes = 0;
+         DbHelper.written(this.sql.apply(1));
+      }
+      this.rows += count;
+      this.flushes++;
+      log.debug("{} rows written into {} in {}ms", count, this.target, (System.nanoTime() - deb) / 1_000_000);
+   }
+
+   /**
+    * Sends the pending rows from..to in a batch of statements of n rows.
+    */
+   private void execute(Connection conn, int n, int from, int to) throws SQLException {
+      PreparedStatement stmt = DbHelper.prepare(conn, this.sql.apply(n));
+      boolean sent = false;
+      try {
+         for (int row = from; row < to; row += n) {
+            int index = 1;
+            for (int i = row; i < row + n; i++) {
+               for (Object value : this.pending.get(i)) {
+                  if (value == null) stmt.setNull(index++, this.nullType);
+                  else stmt.setObject(index++, value);
+               }
+            }
+            stmt.addBatch();
+         }
+         stmt.executeBatch();
+         sent = true;
+      }
+      finally {
+         try {
+            // le statement peut retourner dans le cache : sans le lot en échec
+            if (!sent) stmt.clearBatch();
+            DbHelper.release(stmt);
+         }
+         catch (SQLException e) {
+            DbUtils.closeQuietly(stmt);
+         }
+      }
+   }
+
+   /**
+    * Flushes the pending rows and logs the throughput.
+    */
+   @Override
+   public void close() {
+      if (this.closed) return;
+      flush();
+      this.closed = true;
+      this.end = System.nanoTime();
+      log.info("{}", this);
+   }
+
+   /**
+    * @return the number of rows written, pending ones excluded
+    */
+   public long getRows() {
+      return this.rows;
+   }
+
+   public long getFlushes() {
+      return this.flushes;
+   }
+
+   /**
+    * @return the rows written per second from the first row added to now, or
+    *         to the close of the writer
+    */
+   public double getRowsPerSecond() {
+      long elapsed = (this.closed ? this.end : System.nanoTime()) - this.start;
+      return this.start == 0 || elapsed <= 0 ? 0 : this.rows * 1e9 / elapsed;
+   }
+
+   @Override
+   public String toString() {
+      return String.format("BatchWriter[%s rows=%d flushes=%d pending=%d %.0f rows/s]",
+                           this.target,
+                           getRows(),
+                           getFlushes(),
+                           this.pending.size(),
+                           getRowsPerSecond());
+   }
+
+   /**
+    * @return false for the dialects without multi-row VALUES
+    */
+   private static boolean multiRowValues(boolean oracle, SQLDialect dialect) {
+      return oracle || dialect.family() != SQLDialect.FIREBIRD;
+   }
+
+   /**
+    * @return true for Oracle, which the open source edition of jOOQ has no
+    *         dialect for : with the dialect left to DEFAULT, the database of
+    *         the current connection must then be Oracle
+    * @throws IllegalArgumentException
+    *            if the dialect is missing, or DEFAULT for another database
+    */
+   private static boolean isOracle(SQLDialect dialect) {
+      if (dialect == null) throw new IllegalArgumentException("No sql dialect : DbHelper.init() has not been called, or without dialect");
+      if (dialect != SQLDialect.DEFAULT) return false;
+      String product;
+      try {
+         product = DbHelper.conn().getMetaData().getDatabaseProductName();
+      }
+      catch (SQLException e) {
+         throw new DbException("Could not identify the database", e);
+      }
+      if (product != null && product.startsWith("Oracle")) return true;
+      throw new IllegalArgumentException("No sql dialect given for " + product + " : DEFAULT is only accepted for Oracle");
+   }
+
+   static String insertSql(boolean oracle, String table, String[] columns, int n) {
+      StringBuilder sql = new StringBuilder("insert into ").append(table).append(" (").append(String.join(", ", columns)).append(") ");
+      if (oracle) {
+         String select = "select " + marks(columns.length) + " from dual";
+         return sql.append(String.join(" union all ", repeat(select, n))).toString();
+      }
+      return sql.append("values ").append(String.join(", ", repeat("(" + marks(columns.length) + ")", n))).toString();
+   }
+
+   static String upsertSql(boolean oracle, SQLDialect dialect, String table, String[] keys, String[] columns, int n) {
+      List<String> keyList = Arrays.asList(keys);
+      List<String> updated = Arrays.stream(columns).filter(c -> !keyList.contains(c)).collect(Collectors.toList());
+      if (oracle) {
+         String select = "select " + Arrays.stream(columns).map(c -> "? " + c).collect(Collectors.joining(", ")) + " from dual";
+         return merge(table, keys, columns, updated, String.join(" union all ", repeat(select, n)), "s");
+      }
+      if (dialect == SQLDialect.POSTGRES_9_3 || dialect == SQLDialect.POSTGRES_9_4) {
+         throw new IllegalArgumentException("No upsert before PostgreSQL 9.5");
+      }
+      switch (dialect.family()) {
+         case POSTGRES:
+         case SQLITE:
+            return insertSql(false, table, columns, n)
+                   + " on conflict ("
+                   + String.join(", ", keys)
+                   + ") do "
+                   + (updated.isEmpty() ? "nothing" : "update set " + updated.stream().map(c -> c + " = excluded." + c).collect(Collectors.joining(", ")));
+         case MYSQL:
+         case MARIADB:
+            // sans colonne à mettre à jour, une affectation neutre ignore le doublon
+            List<String> set = updated.isEmpty() ? Arrays.asList(keys[0]) : updated;
+            return insertSql(false, table, columns, n) + " on duplicate key update " + set.stream().map(c -> c + " = values(" + c + ")").collect(Collectors.joining(", "));
+         case H2:
+            return "merge into "
+                   + table
+                   + " ("
+                   + String.join(", ", columns)
+                   + ") key ("
+                   + String.join(", ", keys)
+                   + ") values "
+                   + String.join(", ", repeat("(" + marks(columns.length) + ")", n));
+         case HSQLDB:
+            String source = "values " + String.join(", ", repeat("(" + marks(columns.length) + ")", n));
+            return merge(table, keys, columns, updated, source, "s (" + String.join(", ", columns) + ")");
+         default:
+            throw new IllegalArgumentException("No upsert for dialect " + dialect);
+      }
+   }
+
+   /**
+    * @return the standard MERGE of the rows of the source, aliased s
+    */
+   private static String merge(String table, String[] keys, String[] columns, List<String> updated, String source, String alias) {
+      StringBuilder sql = new StringBuilder("merge into ").append(table).append(" d using (").append(source).append(") ").append(alias).append(" on (");
+      sql.append(Arrays.stream(keys).map(k -> "d." + k + " = s." + k).collect(Collectors.joining(" and "))).append(")");
+      if (!updated.isEmpty()) {
+         sql.append(" when matched then update set ").append(updated.stream().map(c -> "d." + c + " = s." + c).collect(Collectors.joining(", ")));
+      }
+      sql.append(" when not matched then insert (").append(String.join(", ", columns)).append(") values (");
+      return sql.append(Arrays.stream(columns).map(c -> "s." + c).collect(Collectors.joining(", "))).append(")").toString();
+   }
+
+   private static String marks(int count) {
+      return String.join(", ", repeat("?", count));
+   }
+
+   private static List<String> repeat(String s, int n) {
+      String[] copies = new String[n];
+      Arrays.fill(copies, s);
+      return Arrays.asList(copies);
+   }
+}
@@ -0,0 +1,605 @@
+package net.barroux.ezserver.db;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoublePredicate;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntPredicate;
+import java.util.function.LongPredicate;
+import java.util.function.Predicate;
+
+import org.apache.commons.dbutils.ResultSetHandler;
+
+/**
+ * A query result stored by column, in primitive arrays, as returned by
+ * {@link EzQr#queryColumnar(String, Object...)} : no cell is boxed, so a
+ * result of a few hundred thousand rows costs a few arrays instead of
+ * millions of objects.
+ * <p>
+ * The kind of a column is chosen from its sql type :
+ * </p>
+ * <ul>
+ * <li>{@link Kind#INT} for integer types, booleans (1 or 0) and decimals of
+ * scale 0 and precision up to 9;</li>
+ * <li>{@link Kind#LONG} for BIGINT, decimals of scale 0 and precision up to
+ * 18, dates and timestamps (epoch milliseconds);</li>
+ * <li>{@link Kind#DOUBLE} for the other numbers, including Oracle NUMBER
+ * without precision;</li>
+ * <li>{@link Kind#STRING} for everything else, dictionary encoded : one int
+ * code per row, and each distinct value once.</li>
+ * </ul>
+ * <p>
+ * The nulls of a column are kept in a BitSet; the array holds 0 (or -1 for
+ * a string code) in their place. The operations work on whole arrays and
+ * return row indices or new tables, leaving this one untouched.
+ * </p>
+ */
+public final class ColumnarTable {
+   private static final BitSet NO_NULLS = new BitSet();
+
+   public enum Kind {
+      INT, LONG, DOUBLE, STRING
+   }
+
+   private final String[]   labels;
+   private final Kind[]     kinds;
+   private final Object[]   data;
+   private final String[][] dictionaries;
+   private final BitSet[]   nulls;
+   private final int        rows;
+
+   private ColumnarTable(String[] labels, Kind[] kinds, Object[] data, String[][] dictionaries, BitSet[] nulls, int rows) {
+      this.labels = labels;
+      this.kinds = kinds;
+      this.data = data;
+      this.dictionaries = dictionaries;
+      this.nulls = nulls;
+      this.rows = rows;
+   }
+
+   public int getRowCount() {
+      return this.rows;
+   }
+
+   public int getColumnCount() {
+      return this.labels.length;
+   }
+
+   public String getLabel(int column) {
+      return this.labels[column];
+   }
+
+   public Kind getKind(int column) {
+      return this.kinds[column];
+   }
+
+   /**
+    * @return the index of the column of this label (ignoring case)
+    * @throws IllegalArgumentException
+    *            if there is none
+    */
+   public int indexOf(String label) {
+      for (int i = 0; i < this.labels.length; i++) {
+         if (this.labels[i].equalsIgnoreCase(label)) return i;
+      }
+      throw new IllegalArgumentException("No column " + label + " in " + Arrays.toString(this.labels));
+   }
+
+   /**
+    * @return the values of an INT column, one per row (not a copy)
+    */
+   public int[] getInts(int column) {
+      return (int[]) data(column, Kind.INT);
+   }
+
+   /**
+    * @return the values of a LONG column, one per row (not a copy)
+    */
+   public long[] getLongs(int column) {
+      return (long[]) data(column, Kind.LONG);
+   }
+
+   /**
+    * @return the values of a DOUBLE column, one per row (not a copy)
+    */
+   public double[] getDoubles(int column) {
+      return (double[]) data(column, Kind.DOUBLE);
+   }
+
+   /**
+    * @return the dictionary codes of a STRING column, one per row (not a
+    *         copy), -1 for null
+    */
+   public int[] getCodes(int column) {
+      return (int[]) data(column, Kind.STRING);
+   }
+
+   /**
+    * @return the distinct values of a STRING column, indexed by code
+    */
+   public String[] getDictionary(int column) {
+      data(column, Kind.STRING);
+      return this.dictionaries[column].clone();
+   }
+
+   public String getString(int column, int row) {
+      int code = getCodes(column)[row];
+      return code < 0 ? null : this.dictionaries[column][code];
+   }
+
+   public boolean isNull(int column, int row) {
+      return this.nulls[column].get(row);
+   }
+
+   /**
+    * @return the rows holding null in the column
+    */
+   public BitSet getNulls(int column) {
+      return (BitSet) this.nulls[column].clone();
+   }
+
+   private Object data(int column, Kind kind) {
+      if (this.kinds[column] != kind) {
+         throw new IllegalArgumentException("Column " + this.labels[column] + " is " + this.kinds[column] + ", not " + kind);
+      }
+      return this.data[column];
+   }
+
+   /**
+    * @return the indices of the rows of an INT column matching the predicate,
+    *         nulls excluded
+    */
+   public int[] filterInts(int column, IntPredicate predicate) {
+      int[] values = getInts(column);
+      BitSet nulls = this.nulls[column];
+      int[] selected = new int[this.rows];
+      int count = 0;
+      for (int row = 0; row < this.rows; row++) {
+         if (predicate.test(values[row]) && !nulls.get(row)) selected[count++] = row;
+      }
+      return Arrays.copyOf(selected, count);
+   }
+
+   /**
+    * @return the indices of the rows of a LONG column matching the
+    *         predicate, nulls excluded
+    */
+   public int[] filterLongs(int column, LongPredicate predicate) {
+      long[] values = getLongs(column);
+      BitSet nulls = this.nulls[column];
+      int[] selected = new int[this.rows];
+      int count = 0;
+      for (int row = 0; row < this.rows; row++) {
+         if (predicate.test(values[row]) && !nulls.get(row)) selected[count++] = row;
+      }
+      return Arrays.copyOf(selected, count);
+   }
+
+   /**
+    * @return the indices of the rows of a DOUBLE column matching the
+    *         predicate, nulls excluded
+    */
+   public int[] filterDoubles(int column, DoublePredicate predicate) {
+      double[] values = getDoubles(column);
+      BitSet nulls = this.nulls[column];
+      int[] selected = new int[this.rows];
+      int count = 0;
+      for (int row = 0; row < this.rows; row++) {
+         if (predicate.test(values[row]) && !nulls.get(row)) selected[count++] = row;
+      }
+      return Arrays.copyOf(selected, count);
+   }
+
+   /**
+    * @return the indices of the rows of a STRING column matching the
+    *         predicate, nulls excluded. The predicate is only called once per
+    *         distinct value.
+    */
+   public int[] filterStrings(int column, Predicate<String> predicate) {
+      int[] codes = getCodes(column);
+      String[] dictionary = this.dictionaries[column];
+      boolean[] matching = new boolean[dictionary.length];
+      for (int code = 0; code < dictionary.length; code++) {
+         matching[code] = predicate.test(dictionary[code]);
+      }
+      int[] selected = new int[this.rows];
+      int count = 0;
+      for (int row = 0; row < this.rows; row++) {
+         int code = codes[row];
+         if (code >= 0 && matching[code]) selected[count++] = row;
+      }
+      return Arrays.copyOf(selected, count);
+   }
+
+   /**
+    * @return a table of the given rows, in that order
+    */
+   public ColumnarTable select(int[] rows) {
+      Object[] selected = new Object[this.data.length];
+      BitSet[] selectedNulls = new BitSet[this.data.length];
+      for (int column = 0; column < this.data.length; column++) {
+         Object values = this.data[column];
+         Object copy;
+         if (values instanceof int[]) copy = gather((int[]) values, rows);
+         else if (values instanceof long[]) copy = gather((long[]) values, rows);
+         else copy = gather((double[]) values, rows);
+         selected[column] = copy;
+         BitSet nulls = this.nulls[column];
+         if (nulls.isEmpty()) {
+            selectedNulls[column] = NO_NULLS;
+         }
+         else {
+            selectedNulls[column] = new BitSet(rows.length);
+            for (int i = 0; i < rows.length; i++) {
+               if (nulls.get(rows[i])) selectedNulls[column].set(i);
+            }
+         }
+      }
+      return new ColumnarTable(this.labels, this.kinds, selected, this.dictionaries, selectedNulls, rows.length);
+   }
+
+   private static int[] gather(int[] values, int[] rows) {
+      int[] copy = new int[rows.length];
+      for (int i = 0; i < rows.length; i++) {
+         copy[i] = values[rows[i]];
+      }
+      return copy;
+   }
+
+   private static long[] gather(long[] values, int[] rows) {
+      long[] copy = new long[rows.length];
+      for (int i = 0; i < rows.length; i++) {
+         copy[i] = values[rows[i]];
+      }
+      return copy;
+   }
+
+   private static double[] gather(double[] values, int[] rows) {
+      double[] copy = new double[rows.length];
+      for (int i = 0; i < rows.length; i++) {
+         copy[i] = values[rows[i]];
+      }
+      return copy;
+   }
+
+   /**
+    * Sums a numeric column per distinct value of the key column, like
+    * "select key, sum(value), count(value) ... group by key". Rows with a
+    * null key are left out, null values are not counted.
+    *
+    * @return a table of three columns : the key (same kind as the key
+    *         column), SUM (LONG, or DOUBLE for a DOUBLE value column) and
+    *         COUNT (LONG), sorted by key
+    */
+   public ColumnarTable sumBy(int keyColumn, int valueColumn) {
+      Kind valueKind = this.kinds[valueColumn];
+      if (valueKind == Kind.STRING) throw new IllegalArgumentException("Column " + this.labels[valueColumn] + " is not numeric");
+      BitSet keyNulls = this.nulls[keyColumn];
+      BitSet valueNulls = this.nulls[valueColumn];
+      int[] ints = valueKind == Kind.INT ? getInts(valueColumn) : null;
+      long[] longs = valueKind == Kind.LONG ? getLongs(valueColumn) : null;
+      double[] doubles = valueKind == Kind.DOUBLE ? getDoubles(valueColumn) : null;
+      // chaque clé a sa case : le rang dans le dictionnaire, la valeur moins
+      // le minimum pour des entiers assez denses, le rang après tri sinon
+      int[] keys;
+      int[] slotOfKey = null;
+      int offset = 0;
+      int slots;
+      int[] slotOfRow = null;
+      int[] range = this.kinds[keyColumn] == Kind.INT ? range(keyColumn) : null;
+      if (this.kinds[keyColumn] == Kind.STRING) {
+         keys = getCodes(keyColumn);
+         slotOfKey = rankOfCode(keyColumn);
+         slots = slotOfKey.length;
+      }
+      else if (range != null && (long) range[1] - range[0] < Math.max(1024, this.rows)) {
+         keys = getInts(keyColumn);
+         offset = -range[0];
+         slots = range[1] - range[0] + 1;
+      }
+      else {
+         keys = null;
+         slotOfRow = new int[this.rows];
+         int[] order = sortIndices(keyColumn, true);
+         IntBinaryOperator comparator = comparator(keyColumn);
+         slots = 0;
+         for (int i = 0; i < order.length && !keyNulls.get(order[i]); i++) {
+            if (i == 0 || comparator.applyAsInt(order[i - 1], order[i]) != 0) slots++;
+            slotOfRow[order[i]] = slots - 1;
+         }
+      }
+      int[] firsts = new int[slots];
+      Arrays.fill(firsts, -1);
+      long[] longSums = valueKind == Kind.DOUBLE ? null : new long[slots];
+      double[] doubleSums = valueKind == Kind.DOUBLE ? new double[slots] : null;
+      long[] counts = new long[slots];
+      for (int row = 0; row < this.rows; row++) {
+         if (keyNulls.get(row)) continue;
+         int slot = slotOfRow != null ? slotOfRow[row] : slotOfKey != null ? slotOfKey[keys[row]] : keys[row] + offset;
+         if (firsts[slot] < 0) firsts[slot] = row;
+         if (valueNulls.get(row)) continue;
+         counts[slot]++;
+         if (ints != null) longSums[slot] += ints[row];
+         else if (longs != null) longSums[slot] += longs[row];
+         else doubleSums[slot] += doubles[row];
+      }
+      int groups = 0;
+      for (int slot = 0; slot < slots; slot++) {
+         if (firsts[slot] < 0) continue;
+         firsts[groups] = firsts[slot];
+         counts[groups] = counts[slot];
+         if (longSums != null) longSums[groups] = longSums[slot];
+         else doubleSums[groups] = doubleSums[slot];
+         groups++;
+      }
+      ColumnarTable grouped = select(Arrays.copyOf(firsts, groups));
+      Object sums = longSums != null ? Arrays.copyOf(longSums, groups) : Arrays.copyOf(doubleSums, groups);
+      return new ColumnarTable(new String[] { this.labels[keyColumn], "SUM", "COUNT" },
+                               new Kind[] { this.kinds[keyColumn], longSums != null ? Kind.LONG : Kind.DOUBLE, Kind.LONG },
+                               new Object[] { grouped.data[keyColumn], sums, Arrays.copyOf(counts, groups) },
+                               new String[][] { this.dictionaries[keyColumn], null, null },
+                               new BitSet[] { NO_NULLS, NO_NULLS, NO_NULLS },
+                               groups);
+   }
+
+   /**
+    * @return the row indices in the order of the column, nulls last whatever
+    *         the direction
+    */
+   public int[] sortIndices(int column, boolean ascending) {
+      BitSet nulls = this.nulls[column];
+      int[] order = new int[this.rows];
+      int count = 0;
+      for (int row = nulls.nextClearBit(0); row < this.rows; row = nulls.nextClearBit(row + 1)) {
+         order[count++] = row;
+      }
+      int notNull = count;
+      for (int row = nulls.nextSetBit(0); row >= 0 && row < this.rows; row = nulls.nextSetBit(row + 1)) {
+         order[count++] = row;
+      }
+      Kind kind = this.kinds[column];
+      if (kind == Kind.INT || kind == Kind.STRING) {
+         // valeur (ou rang dans le dictionnaire) et indice tiennent dans un
+         // long : un tri de primitives suffit
+         int[] values = kind == Kind.INT ? getInts(column) : ranks(column);
+         long[] packed = new long[notNull];
+         for (int i = 0; i < notNull; i++) {
+            packed[i] = ((long) values[order[i]] << 32) | order[i];
+         }
+         Arrays.sort(packed);
+         for (int i = 0; i < notNull; i++) {
+            order[i] = (int) packed[i];
+         }
+      }
+      else {
+         mergeSort(comparator(column), order, new int[notNull], 0, notNull);
+      }
+      if (!ascending) {
+         for (int i = 0, j = notNull - 1; i < j; i++, j--) {
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+         }
+      }
+      return order;
+   }
+
+   /**
+    * @return for each code of a STRING column, the rank of its value in the
+    *         sorted dictionary
+    */
+   private int[] rankOfCode(int column) {
+      String[] dictionary = this.dictionaries[column];
+      Integer[] sorted = new Integer[dictionary.length];
+      for (int code = 0; code < sorted.length; code++) {
+         sorted[code] = code;
+      }
+      Arrays.sort(sorted, (a, b) -> dictionary[a].compareTo(dictionary[b]));
+      int[] rankOfCode = new int[dictionary.length];
+      for (int rank = 0; rank < sorted.length; rank++) {
+         rankOfCode[sorted[rank]] = rank;
+      }
+      return rankOfCode;
+   }
+
+   /**
+    * @return for each row of a STRING column, the rank of its value in the
+    *         sorted dictionary
+    */
+   private int[] ranks(int column) {
+      int[] rankOfCode = rankOfCode(column);
+      int[] codes = getCodes(column);
+      int[] ranks = new int[this.rows];
+      for (int row = 0; row < this.rows; row++) {
+         ranks[row] = codes[row] < 0 ? 0 : rankOfCode[codes[row]];
+      }
+      return ranks;
+   }
+
+   /**
+    * @return the min and the max of an INT column, null if it only holds
+    *         nulls
+    */
+   private int[] range(int column) {
+      int[] values = getInts(column);
+      BitSet nulls = this.nulls[column];
+      int min = Integer.MAX_VALUE;
+      int max = Integer.MIN_VALUE;
+      for (int row = 0; row < this.rows; row++) {
+         if (nulls.get(row)) continue;
+         min = Math.min(min, values[row]);
+         max = Math.max(max, values[row]);
+      }
+      return min > max ? null : new int[] { min, max };
+   }
+
+   private static void mergeSort(IntBinaryOperator comparator, int[] order, int[] buffer, int from, int to) {
+      if (to - from < 2) return;
+      int middle = (from + to) >>> 1;
+      mergeSort(comparator, order, buffer, from, middle);
+      mergeSort(comparator, order, buffer, middle, to);
+      if (comparator.applyAsInt(order[middle - 1], order[middle]) <= 0) return;
+      System.arraycopy(order, from, buffer, from, to - from);
+      for (int i = from, left = from, right = middle; i < to; i++) {
+         if (right >= to || left < middle && comparator.applyAsInt(buffer[left], buffer[right]) <= 0) order[i] = buffer[left++];
+         else order[i] = buffer[right++];
+      }
+   }
+
+   /**
+    * @return a comparison of two rows on the column (on the codes for a
+    *         STRING column, which is enough to tell equal values)
+    */
+   private IntBinaryOperator comparator(int column) {
+      switch (this.kinds[column]) {
+         case LONG:
+            long[] longs = getLongs(column);
+            return (row, other) -> Long.compare(longs[row], longs[other]);
+         case DOUBLE:
+            double[] doubles = getDoubles(column);
+            return (row, other) -> Double.compare(doubles[row], doubles[other]);
+         default:
+            int[] ints = (int[]) this.data[column];
+            return (row, other) -> Integer.compare(ints[row], ints[other]);
+      }
+   }
+
+   /**
+    * @return a handler reading the whole ResultSet into a table
+    */
+   static ResultSetHandler<ColumnarTable> handler() {
+      return ColumnarTable::read;
+   }
+
+   private static ColumnarTable read(ResultSet rs) throws SQLException {
+      ResultSetMetaData md = rs.getMetaData();
+      int columns = md.getColumnCount();
+      String[] labels = new String[columns];
+      Kind[] kinds = new Kind[columns];
+      Object[] data = new Object[columns];
+      BitSet[] nulls = new BitSet[columns];
+      List<Map<String, Integer>> codes = new ArrayList<>(columns);
+      boolean[] timestamps = new boolean[columns];
+      boolean[] booleans = new boolean[columns];
+      int capacity = 1024;
+      for (int i = 0; i < columns; i++) {
+         String label = md.getColumnLabel(i + 1);
+         labels[i] = label == null || label.isEmpty() ? md.getColumnName(i + 1) : label;
+         int type = md.getColumnType(i + 1);
+         kinds[i] = kindOf(type, md.getPrecision(i + 1), md.getScale(i + 1));
+         timestamps[i] = type == Types.DATE || type == Types.TIMESTAMP || type == Types.TIMESTAMP_WITH_TIMEZONE;
+         booleans[i] = type == Types.BOOLEAN || type == Types.BIT;
+         data[i] = newArray(kinds[i], capacity);
+         nulls[i] = new BitSet();
+         codes.add(kinds[i] == Kind.STRING ? new HashMap<>() : null);
+      }
+      int rows = 0;
+      while (rs.next()) {
+         if (rows == capacity) {
+            capacity = capacity * 2;
+            for (int i = 0; i < columns; i++) {
+               data[i] = grow(data[i], capacity);
+            }
+         }
+         for (int i = 0; i < columns; i++) {
+            int index = i + 1;
+            switch (kinds[i]) {
+               case INT:
+                  // getInt() n'est pas garanti sur un booléen : on stocke 1/0
+                  if (booleans[i]) ((int[]) data[i])[rows] = rs.getBoolean(index) ? 1 : 0;
+                  else ((int[]) data[i])[rows] = rs.getInt(index);
+                  break;
+               case LONG:
+                  if (timestamps[i]) {
+                     Timestamp value = rs.getTimestamp(index);
+                     ((long[]) data[i])[rows] = value == null ? 0 : value.getTime();
+                  }
+                  else {
+                     ((long[]) data[i])[rows] = rs.getLong(index);
+                  }
+                  break;
+               case DOUBLE:
+                  ((double[]) data[i])[rows] = rs.getDouble(index);
+                  break;
+               default:
+                  String value = rs.getString(index);
+                  Map<String, Integer> dictionary = codes.get(i);
+                  Integer code = value == null ? Integer.valueOf(-1) : dictionary.get(value);
+                  if (code == null) {
+                     code = dictionary.size();
+                     dictionary.put(value, code);
+                  }
+                  ((int[]) data[i])[rows] = code;
+            }
+            if (rs.wasNull()) nulls[i].set(rows);
+         }
+         rows++;
+      }
+      String[][] dictionaries = new String[columns][];
+      for (int i = 0; i < columns; i++) {
+         data[i] = grow(data[i], rows);
+         if (nulls[i].isEmpty()) nulls[i] = NO_NULLS;
+         Map<String, Integer> dictionary = codes.get(i);
+         if (dictionary != null) {
+            dictionaries[i] = new String[dictionary.size()];
+            for (Map.Entry<String, Integer> entry : dictionary.entrySet()) {
+               dictionaries[i][entry.getValue()] = entry.getKey();
+            }
+         }
+      }
+      return new ColumnarTable(labels, kinds, data, dictionaries, nulls, rows);
+   }
+
+   private static Kind kindOf(int type, int precision, int scale) {
+      switch (type) {
+         case Types.INTEGER:
+         case Types.SMALLINT:
+         case Types.TINYINT:
+         case Types.BOOLEAN:
+         case Types.BIT:
+            return Kind.INT;
+         case Types.BIGINT:
+         case Types.DATE:
+         case Types.TIMESTAMP:
+         case Types.TIMESTAMP_WITH_TIMEZONE:
+            return Kind.LONG;
+         case Types.NUMERIC:
+         case Types.DECIMAL:
+            if (scale == 0 && precision > 0 && precision <= 9) return Kind.INT;
+            if (scale == 0 && precision > 0 && precision <= 18) return Kind.LONG;
+            return Kind.DOUBLE;
+         case Types.REAL:
+         case Types.FLOAT:
+         case Types.DOUBLE:
+            return Kind.DOUBLE;
+         default:
+            return Kind.STRING;
+      }
+   }
+
+   private static Object newArray(Kind kind, int capacity) {
+      switch (kind) {
+         case LONG:
+            return new long[capacity];
+         case DOUBLE:
+            return new double[capacity];
+         default:
+            return new int[capacity];
+      }
+   }
+
+   private static Object grow(Object array, int length) {
+      if (array instanceof int[]) return Arrays.copyOf((int[]) array, length);
+      if (array instanceof long[]) return Arrays.copyOf((long[]) array, length);
+      return Arrays.copyOf((double[]) array, length);
+   }
+}
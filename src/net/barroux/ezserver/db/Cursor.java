@@ -0,0 +1,106 @@
+package net.barroux.ezserver.db;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+
+import org.apache.commons.dbutils.BasicRowProcessor;
+import org.apache.commons.dbutils.DbUtils;
+import org.apache.commons.dbutils.RowProcessor;
+
+/**
+ * The live ResultSet behind {@link EzQr#stream(Class, int, String, Object...)}
+ * : one row is read from the driver per element, and the ResultSet and its
+ * statement are released once the last row has been read or the stream is
+ * closed, whichever comes first.
+ */
+final class Cursor<T> extends Spliterators.AbstractSpliterator<T> implements AutoCloseable {
+   private static final RowProcessor ROWS = new BasicRowProcessor();
+
+   @FunctionalInterface
+   interface RowReader<T> {
+      T read(ResultSet rs) throws SQLException;
+   }
+
+   private final PreparedStatement stmt;
+   private final ResultSet         rs;
+   private final RowReader<T>      reader;
+   private boolean                 closed;
+
+   Cursor(PreparedStatement stmt, ResultSet rs, RowReader<T> reader) {
+      super(Long.MAX_VALUE, Spliterator.ORDERED);
+      this.stmt = stmt;
+      this.rs = rs;
+      this.reader = reader;
+   }
+
+   @Override
+   public boolean tryAdvance(Consumer<? super T> action) {
+      if (this.closed) return false;
+      T row;
+      try {
+         if (!this.rs.next()) {
+            close();
+            return false;
+         }
+         row = this.reader.read(this.rs);
+      }
+      catch (SQLException e) {
+         close();
+         throw new DbException("Could not read the next row", e);
+      }
+      action.accept(row);
+      return true;
+   }
+
+   @Override
+   public void close() {
+      if (this.closed) return;
+      this.closed = true;
+      DbUtils.closeQuietly(this.rs);
+      try {
+         // le statement peut retourner dans le cache : on oublie le fetch size
+         this.stmt.setFetchSize(0);
+         DbHelper.release(this.stmt);
+      }
+      catch (SQLException e) {
+         DbUtils.closeQuietly(this.stmt);
+      }
+   }
+
+   /**
+    * @return a reader of the first column for String, numbers, Boolean and
+    *         Object, of every column for Object[] and Map, and of a bean
+    *         (with the {@link RowMapper} of its columns) for any other type
+    */
+   @SuppressWarnings("unchecked")
+   static <T> RowReader<T> reader(Class<T> type, ResultSet cursor) throws SQLException {
+      if (type == String.class) return rs -> (T) rs.getString(1);
+      if (type == Object.class) return rs -> (T) rs.getObject(1);
+      if (type == BigDecimal.class) return rs -> (T) rs.getBigDecimal(1);
+      if (type == Integer.class) return rs -> {
+         int value = rs.getInt(1);
+         return rs.wasNull() ? null : (T) Integer.valueOf(value);
+      };
+      if (type == Long.class) return rs -> {
+         long value = rs.getLong(1);
+         return rs.wasNull() ? null : (T) Long.valueOf(value);
+      };
+      if (type == Double.class) return rs -> {
+         double value = rs.getDouble(1);
+         return rs.wasNull() ? null : (T) Double.valueOf(value);
+      };
+      if (type == Boolean.class) return rs -> {
+         boolean value = rs.getBoolean(1);
+         return rs.wasNull() ? null : (T) Boolean.valueOf(value);
+      };
+      if (type == Object[].class) return rs -> (T) ROWS.toArray(rs);
+      if (type == Map.class) return rs -> (T) ROWS.toMap(rs);
+      return RowMapper.of(type, cursor.getMetaData())::map;
+   }
+}
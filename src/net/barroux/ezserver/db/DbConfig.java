@@ -1,14 +1,26 @@
 package net.barroux.ezserver.db;
 
 import java.sql.Driver;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.jooq.SQLDialect;
 
 import com.jolbox.bonecp.BoneCPConfig;
 
 public class DbConfig {
-   private final BoneCPConfig boneCPConfig;
-   private final SQLDialect   sqlDialect;
+   private final BoneCPConfig       boneCPConfig;
+   private final SQLDialect         sqlDialect;
+   private final List<BoneCPConfig> replicas           = new ArrayList<>();
+   private ReplicaRouting           replicaRouting     = ReplicaRouting.ROUND_ROBIN;
+   private long                     readYourWritesMillis;
+   private PoolImplementation       pool               = PoolImplementation.BONECP;
+   private int                      statementCacheSize = 32;
+   private int                      asyncThreads       = 4;
+   private int                      asyncQueueSize     = 256;
+   private boolean                  asyncBackpressure;
+   private String                   oracleNumberList   = IdSet.ORACLE_NUMBER_LIST;
 
    public DbConfig(Class<? extends Driver> driverClass, BoneCPConfig boneCPConfig, SQLDialect sqlDialect) {
       if (driverClass == null) {
@@ -18,6 +30,87 @@ public class DbConfig {
       this.sqlDialect = sqlDialect;
    }
 
+   /**
+    * Fluent setter adding read replicas of the primary database. Read-only
+    * transactions (see {@link Transactional}) and asynchronous queries are
+    * then served by a replica, everything else by the primary.
+    */
+   public DbConfig replicas(BoneCPConfig... replicas) {
+      this.replicas.addAll(Arrays.asList(replicas));
+      return this;
+   }
+
+   /**
+    * Fluent setter for the choice of the replica (defaults to round-robin).
+    */
+   public DbConfig replicaRouting(ReplicaRouting replicaRouting) {
+      this.replicaRouting = replicaRouting;
+      return this;
+   }
+
+   /**
+    * Fluent setter for the read-your-writes window : for that long after a
+    * request of a session has written to the primary, the read-only requests
+    * of the same session are served by the primary as well, so that they see
+    * the write despite the replication lag (defaults to 0, disabled).
+    */
+   public DbConfig readYourWrites(long millis) {
+      this.readYourWritesMillis = millis;
+      return this;
+   }
+
+   /**
+    * Fluent setter for the connection pool used for the primary and the
+    * replicas (defaults to BoneCP). Both are configured from the same
+    * BoneCPConfig.
+    */
+   public DbConfig pool(PoolImplementation pool) {
+      this.pool = pool;
+      return this;
+   }
+
+   /**
+    * Fluent setter for the number of PreparedStatements {@link EzQr} keeps
+    * open per connection during a request, so that running the same sql again
+    * does not prepare it again (defaults to 32, 0 disables the cache).
+    */
+   public DbConfig statementCacheSize(int statementCacheSize) {
+      this.statementCacheSize = statementCacheSize;
+      return this;
+   }
+
+   /**
+    * Fluent setter for the threads running the asynchronous queries of
+    * {@link EzQr} and the number of queries which may wait for one of them
+    * (defaults to 4 threads and 256 queries).
+    */
+   public DbConfig asyncExecutor(int threads, int queueSize) {
+      this.asyncThreads = threads;
+      this.asyncQueueSize = queueSize;
+      return this;
+   }
+
+   /**
+    * Fluent setter for what happens to an asynchronous query once the queue
+    * is full : run by the calling thread if true, failed with a
+    * RejectedExecutionException if false (the default).
+    */
+   public DbConfig asyncBackpressure(boolean asyncBackpressure) {
+      this.asyncBackpressure = asyncBackpressure;
+      return this;
+   }
+
+   /**
+    * Fluent setter for the Oracle collection type the {@link IdSet}
+    * parameters are bound as (defaults to SYS.ODCINUMBERLIST, a VARRAY of
+    * 32767 numbers at most). Larger sets need a nested table type, created
+    * with <code>create type number_table as table of number</code>.
+    */
+   public DbConfig oracleNumberList(String oracleNumberList) {
+      this.oracleNumberList = oracleNumberList;
+      return this;
+   }
+
    public BoneCPConfig getBoneCPConfig() {
       return boneCPConfig;
    }
@@ -25,4 +118,40 @@ public class DbConfig {
    public SQLDialect getSqlDialect() {
       return sqlDialect;
    }
+
+   public List<BoneCPConfig> getReplicas() {
+      return replicas;
+   }
+
+   public ReplicaRouting getReplicaRouting() {
+      return replicaRouting;
+   }
+
+   public long getReadYourWritesMillis() {
+      return readYourWritesMillis;
+   }
+
+   public PoolImplementation getPool() {
+      return pool;
+   }
+
+   public int getStatementCacheSize() {
+      return statementCacheSize;
+   }
+
+   public int getAsyncThreads() {
+      return asyncThreads;
+   }
+
+   public int getAsyncQueueSize() {
+      return asyncQueueSize;
+   }
+
+   public boolean isAsyncBackpressure() {
+      return asyncBackpressure;
+   }
+
+   public String getOracleNumberList() {
+      return oracleNumberList;
+   }
 }
@@ -1,49 +1,294 @@
 package net.barroux.ezserver.db;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
 import javax.sql.DataSource;
 
 import org.apache.commons.dbutils.DbUtils;
 import org.jooq.DSLContext;
+import org.jooq.ExecuteContext;
+import org.jooq.ExecuteType;
 import org.jooq.SQLDialect;
 import org.jooq.impl.DSL;
+import org.jooq.impl.DefaultConfiguration;
 import org.jooq.impl.DefaultConnectionProvider;
+import org.jooq.impl.DefaultExecuteListener;
+import org.jooq.impl.DefaultExecuteListenerProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.jolbox.bonecp.BoneCPConfig;
 import com.jolbox.bonecp.BoneCPDataSource;
 
 public class DbHelper {
-   private static final ThreadLocal<Connection> CONNECTIONS = new ThreadLocal<>();
-   private static final ThreadLocal<DSLContext> CTXS        = new ThreadLocal<>();
-   private static final Logger                  log         = LoggerFactory.getLogger(DbHelper.class);
-   private static BoneCPDataSource              DS;
-   private static SQLDialect                    DIALECT;
+   private static final ThreadLocal<Connection>                CONNECTIONS = new ThreadLocal<>();
+   private static final ThreadLocal<DSLContext>                CTXS        = new ThreadLocal<>();
+   private static final ThreadLocal<Supplier<TransactionMode>> MODES       = new ThreadLocal<>();
+   private static final ThreadLocal<TransactionMode>           OPEN_MODES  = new ThreadLocal<>();
+   private static final ThreadLocal<Boolean>                   PRIMARY     = new ThreadLocal<>();
+   private static final ThreadLocal<Boolean>                   WROTE       = new ThreadLocal<>();
+   private static final ThreadLocal<Boolean>                   REPLICA     = new ThreadLocal<>();
+   private static final ThreadLocal<StatementCache>            STATEMENTS  = new ThreadLocal<>();
+   private static final LongAdder                              CHECKOUTS   = new LongAdder();
+   private static final AtomicInteger                          NEXT        = new AtomicInteger();
+   private static final DataSource                             READ_DS     = new ReplicaDataSource();
+   private static final Logger                                 log         = LoggerFactory.getLogger(DbHelper.class);
+   private static DataSource                                   DS;
+   private static DataSource[]                                 REPLICAS    = new DataSource[0];
+   private static ReplicaRouting                               ROUTING;
+   private static long                                         READ_YOUR_WRITES;
+   private static int                                          STATEMENT_CACHE_SIZE;
+   private static SQLDialect                                   DIALECT;
+   private static String                                       ORACLE_NUMBER_LIST = IdSet.ORACLE_NUMBER_LIST;
+   private static QueryExecutor                                ASYNC;
 
    protected static DataSource getDs() {
       return DS;
    }
 
+   /**
+    * @return a DataSource serving its connections from the replicas, or from
+    *         the primary if there is none
+    */
+   protected static DataSource getReadDs() {
+      return READ_DS;
+   }
+
    public static void init(DbConfig cfg) {
-      DS = new BoneCPDataSource(cfg.getBoneCPConfig());
+      DS = newPool(cfg.getPool(), cfg.getBoneCPConfig());
+      List<BoneCPConfig> replicas = cfg.getReplicas();
+      DataSource[] sources = new DataSource[replicas.size()];
+      for (int i = 0; i < sources.length; i++) {
+         sources[i] = newPool(cfg.getPool(), replicas.get(i));
+      }
+      REPLICAS = sources;
+      ROUTING = cfg.getReplicaRouting();
+      READ_YOUR_WRITES = cfg.getReadYourWritesMillis();
+      STATEMENT_CACHE_SIZE = cfg.getStatementCacheSize();
       DIALECT = cfg.getSqlDialect();
-      log.debug("Db access is now ready");
+      ORACLE_NUMBER_LIST = cfg.getOracleNumberList();
+      ASYNC = new QueryExecutor(READ_DS, cfg.getAsyncThreads(), cfg.getAsyncQueueSize(), cfg.isAsyncBackpressure());
+      log.debug("Db access is now ready ({} pool, {} replicas)", cfg.getPool(), sources.length);
+   }
+
+   /**
+    * Stops the asynchronous queries (see {@link QueryExecutor}), giving those
+    * already submitted the grace delay to finish.
+    */
+   public static void shutdown(long graceMillis) {
+      QueryExecutor async = ASYNC;
+      if (async == null) return;
+      async.shutdown(graceMillis);
+      log.debug("Async queries stopped");
+   }
+
+   /**
+    * @return the executor of the asynchronous queries, for its metrics
+    */
+   public static QueryExecutor getQueryExecutor() {
+      return ASYNC;
+   }
+
+   /**
+    * @return true if the connection of the current thread commits each
+    *         statement
+    */
+   static boolean isAutoCommit() {
+      return OPEN_MODES.get() == TransactionMode.NONE;
+   }
+
+   /**
+    * @return true if the connection of the current thread comes from a
+    *         replica, which may lag behind the primary
+    */
+   static boolean onReplica() {
+      return REPLICA.get() != null;
+   }
+
+   static SQLDialect dialect() {
+      return DIALECT;
+   }
+
+   /**
+    * @return the Oracle collection type of the {@link IdSet} parameters
+    */
+   static String oracleNumberList() {
+      return ORACLE_NUMBER_LIST;
+   }
+
+   static QueryExecutor async() {
+      QueryExecutor async = ASYNC;
+      if (async == null) throw new IllegalStateException("DbHelper.init() has not been called");
+      return async;
+   }
+
+   private static DataSource newPool(PoolImplementation pool, BoneCPConfig cfg) {
+      if (pool != PoolImplementation.EZPOOL) return new BoneCPDataSource(cfg);
+      try {
+         return new EzPool(cfg);
+      }
+      catch (SQLException e) {
+         throw new IllegalStateException("Could not open the pool to " + cfg.getJdbcUrl(), e);
+      }
+   }
+
+   private static int leased(DataSource ds) {
+      return ds instanceof EzPool ? ((EzPool) ds).getActive() : ((BoneCPDataSource) ds).getTotalLeased();
+   }
+
+   /**
+    * @return the pool of the replica serving the next read-only connection,
+    *         or the primary one if there is no replica
+    */
+   static DataSource readSource() {
+      DataSource[] replicas = REPLICAS;
+      if (replicas.length == 0) return DS;
+      int start = (NEXT.getAndIncrement() & Integer.MAX_VALUE) % replicas.length;
+      if (ROUTING == ReplicaRouting.ROUND_ROBIN) return replicas[start];
+      // à égalité, le tour de rôle départage les replicas
+      DataSource best = replicas[start];
+      int bestLeased = leased(best);
+      for (int i = 1; i < replicas.length && bestLeased > 0; i++) {
+         DataSource replica = replicas[(start + i) % replicas.length];
+         int leased = leased(replica);
+         if (leased < bestLeased) {
+            best = replica;
+            bestLeased = leased;
+         }
+      }
+      return best;
+   }
+
+   /**
+    * Declares the transaction of the current thread without opening it : the
+    * connection is only taken from the pool by the first {@link #conn()},
+    * with the mode answered by the supplier at that time. Until then,
+    * {@link #commit()}, {@link #rollback()} and {@link #close()} have nothing
+    * to do.
+    */
+   public static void begin(Supplier<TransactionMode> mode) {
+      begin(mode, false);
+   }
+
+   /**
+    * Same as {@link #begin(Supplier)}, optionally keeping read-only
+    * transactions on the primary (see {@link DbConfig#readYourWrites(long)}).
+    */
+   public static void begin(Supplier<TransactionMode> mode, boolean primaryOnly) {
+      MODES.set(mode);
+      if (primaryOnly) PRIMARY.set(Boolean.TRUE);
+   }
+
+   /**
+    * @return true if the current thread has written, through EzQr, a
+    *         BatchWriter or jOOQ, since its connection was taken
+    */
+   public static boolean hasWritten() {
+      return WROTE.get() != null;
+   }
+
+   /**
+    * Records a write of the current thread, for {@link #hasWritten()} and the
+    * result cache.
+    */
+   static void written(String sql) {
+      WROTE.set(Boolean.TRUE);
+      ResultCache.written(sql, isAutoCommit());
+   }
+
+   /**
+    * @return the read-your-writes window, 0 if disabled
+    */
+   public static long getReadYourWritesMillis() {
+      return READ_YOUR_WRITES;
+   }
+
+   /**
+    * @return true if the current thread holds a connection
+    */
+   public static boolean hasConn() {
+      return CONNECTIONS.get() != null;
+   }
+
+   /**
+    * @return the number of connections taken from the pool since startup
+    */
+   public static long getCheckouts() {
+      return CHECKOUTS.sum();
+   }
+
+   /**
+    * @return the number of PreparedStatements reused from the statement cache
+    */
+   public static long getStatementCacheHits() {
+      return StatementCache.getHits();
+   }
+
+   /**
+    * @return the number of PreparedStatements prepared by the statement cache
+    */
+   public static long getStatementCacheMisses() {
+      return StatementCache.getMisses();
+   }
+
+   /**
+    * @return the number of PreparedStatements closed to make room in the
+    *         statement cache
+    */
+   public static long getStatementCacheEvictions() {
+      return StatementCache.getEvictions();
+   }
+
+   /**
+    * Prepares the sql, from the statement cache when the connection is the
+    * one of the current thread. The statement must be given back to
+    * {@link #release(Statement)}.
+    */
+   static PreparedStatement prepare(Connection conn, String sql) throws SQLException {
+      if (STATEMENT_CACHE_SIZE <= 0 || conn != CONNECTIONS.get()) return conn.prepareStatement(sql);
+      StatementCache cache = STATEMENTS.get();
+      if (cache == null || !cache.isFor(conn)) {
+         if (cache != null) cache.close();
+         cache = new StatementCache(conn, STATEMENT_CACHE_SIZE);
+         STATEMENTS.set(cache);
+      }
+      return cache.prepare(sql);
+   }
+
+   /**
+    * Puts a statement back in the statement cache, or closes it if it does
+    * not come from there.
+    */
+   static void release(Statement stmt) throws SQLException {
+      StatementCache cache = STATEMENTS.get();
+      if (cache == null || !cache.release(stmt)) stmt.close();
    }
 
    public static void commit() {
+      Connection conn = CONNECTIONS.get();
+      if (conn == null || OPEN_MODES.get() == TransactionMode.NONE) return;
       try {
-         CONNECTIONS.get().commit();
+         conn.commit();
       }
       catch (SQLException e) {
          throw new DbException("Could not commit", e);
       }
+      ResultCache.committed();
    }
 
    public static void rollback() {
+      ResultCache.discard();
+      Connection conn = CONNECTIONS.get();
+      if (conn == null || OPEN_MODES.get() == TransactionMode.NONE) return;
       try {
-         CONNECTIONS.get().rollback();
+         conn.rollback();
       }
       catch (SQLException e) {
          throw new DbException("Could not rollback", e);
@@ -51,9 +296,31 @@ public class DbHelper {
    }
 
    public static void close() {
-      DbUtils.closeQuietly(CONNECTIONS.get());
+      Connection conn = CONNECTIONS.get();
+      StatementCache statements = STATEMENTS.get();
+      if (statements != null) {
+         statements.close();
+         STATEMENTS.remove();
+      }
+      if (conn != null && OPEN_MODES.get() == TransactionMode.READ_ONLY) {
+         // la connexion retourne au pool : on la rend de nouveau modifiable
+         try {
+            conn.setReadOnly(false);
+         }
+         catch (SQLException e) {
+            log.warn("Could not reset read-only connection", e);
+         }
+      }
+      DbUtils.closeQuietly(conn);
+      // écritures ni validées ni annulées : la fermeture les abandonne
+      ResultCache.discard();
       CTXS.remove();
       CONNECTIONS.remove();
+      OPEN_MODES.remove();
+      MODES.remove();
+      PRIMARY.remove();
+      WROTE.remove();
+      REPLICA.remove();
    }
 
    public static DSLContext db() {
@@ -73,13 +340,20 @@ public class DbHelper {
    }
 
    private static Connection initConn() {
+      Supplier<TransactionMode> declared = MODES.get();
+      TransactionMode mode = declared == null ? TransactionMode.READ_WRITE : declared.get();
+      boolean replica = mode == TransactionMode.READ_ONLY && PRIMARY.get() == null && REPLICAS.length > 0;
       try {
          long deb = System.nanoTime();
-         Connection conn = DS.getConnection();
-         conn.setAutoCommit(false);
+         Connection conn = replica ? readSource().getConnection() : DS.getConnection();
+         CHECKOUTS.increment();
          CONNECTIONS.set(conn);
+         OPEN_MODES.set(mode);
+         if (replica) REPLICA.set(Boolean.TRUE);
+         conn.setAutoCommit(mode == TransactionMode.NONE);
+         if (mode == TransactionMode.READ_ONLY) conn.setReadOnly(true);
          long elapsed = (System.nanoTime() - deb) / 1000;
-         log.debug("new connection initialized for thread {}µs", elapsed);
+         log.debug("new {} connection on {} initialized for thread {}µs", mode, replica ? "replica" : "primary", elapsed);
          return conn;
       }
       catch (SQLException e) {
@@ -89,8 +363,31 @@ public class DbHelper {
 
    private static DSLContext initCtx() {
       DefaultConnectionProvider dcp = new DefaultConnectionProvider(conn());
-      DSLContext ctx = DSL.using(dcp, DIALECT);
+      DSLContext ctx = DSL.using(new DefaultConfiguration().set(dcp)
+                                                         .set(DIALECT)
+                                                         .set(new DefaultExecuteListenerProvider(new WriteListener())));
       CTXS.set(ctx);
       return ctx;
    }
+
+   /**
+    * Records the writes made through jOOQ, for {@link #hasWritten()} and the
+    * result cache.
+    */
+   private static final class WriteListener extends DefaultExecuteListener {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      public void executeEnd(ExecuteContext ctx) {
+         if (ctx.type() == ExecuteType.READ) return;
+         if (ctx.sql() != null) {
+            written(ctx.sql());
+            return;
+         }
+         // batch de requêtes différentes : chacune compte
+         for (String sql : ctx.batchSQL()) {
+            written(sql == null ? "" : sql);
+         }
+      }
+   }
 }
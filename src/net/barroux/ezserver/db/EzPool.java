@@ -0,0 +1,391 @@
+package net.barroux.ezserver.db;
+
+import java.io.Closeable;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jolbox.bonecp.BoneCPConfig;
+
+/**
+ * Built-in JDBC connection pool, selected with
+ * {@link DbConfig#pool(PoolImplementation)}.
+ * <p>
+ * Borrowing takes no lock in the usual case : each thread first tries the
+ * connections it used last, which are likely free since it returned them
+ * itself, then scans the shared list of connections, claiming one with a
+ * compare-and-set. When every connection is in use, a new one is opened up to
+ * the maximum size; past it, the thread waits for a connection handed over by
+ * a returning thread, for the connection timeout at most.
+ * </p>
+ * <p>
+ * A connection is only validated when it has been idle for more than
+ * {@value #VALIDATE_IDLE_MS} ms, so a busy pool never pays for validation.
+ * Connections still borrowed after the close connection watch timeout are
+ * logged with the stack trace of their borrower.
+ * </p>
+ * Configured from a BoneCPConfig : jdbc url, user and password, driver
+ * properties, partition count times min and max connections per partition,
+ * connection timeout (30 s when unset), connection test statement and close
+ * connection watch (60 s when its timeout is unset).
+ */
+public final class EzPool implements DataSource, Closeable {
+   private static final Logger                      log                = LoggerFactory.getLogger(EzPool.class);
+   static final long                                VALIDATE_IDLE_MS   = 500;
+   private static final long                        DEFAULT_TIMEOUT_MS = 30_000;
+   private static final long                        DEFAULT_LEAK_MS    = 60_000;
+   private static final int                         VALIDATION_TIMEOUT = 5;
+   private static final int                         RECENT_PER_THREAD  = 16;
+   private static final long                        RESCAN_NANOS       = TimeUnit.MILLISECONDS.toNanos(10);
+   private static final int                         HANDOFF_TRIES      = 64;
+   private static final ScheduledThreadPoolExecutor LEAK_WATCH         = leakWatch();
+
+   private final CopyOnWriteArrayList<PooledConnection> connections  = new CopyOnWriteArrayList<>();
+   private final ThreadLocal<List<PooledConnection>>    recent       = ThreadLocal.withInitial(() -> new ArrayList<>(RECENT_PER_THREAD));
+   private final SynchronousQueue<PooledConnection>     handoff      = new SynchronousQueue<>(true);
+   private final AtomicInteger                          size         = new AtomicInteger();
+   private final AtomicInteger                          waiters      = new AtomicInteger();
+   private final AtomicInteger                          active       = new AtomicInteger();
+   private final LongAdder                              borrows      = new LongAdder();
+   private final LongAdder                              waitNanos    = new LongAdder();
+   private final AtomicLong                             maxWaitNanos = new AtomicLong();
+   private final LongAdder                              timeouts     = new LongAdder();
+   private final LongAdder                              leaks        = new LongAdder();
+   private final String                                 url;
+   private final Properties                             properties;
+   private final String                                 testStatement;
+   private final int                                    minSize;
+   private final int                                    maxSize;
+   private final long                                   timeoutNanos;
+   private final long                                   leakThresholdMs;
+   private volatile boolean                             closed;
+
+   public EzPool(BoneCPConfig cfg) throws SQLException {
+      this.url = cfg.getJdbcUrl();
+      this.properties = new Properties();
+      if (cfg.getDriverProperties() != null) this.properties.putAll(cfg.getDriverProperties());
+      if (cfg.getUsername() != null) this.properties.setProperty("user", cfg.getUsername());
+      if (cfg.getPassword() != null) this.properties.setProperty("password", cfg.getPassword());
+      this.testStatement = cfg.getConnectionTestStatement();
+      int partitions = Math.max(1, cfg.getPartitionCount());
+      this.maxSize = Math.max(1, partitions * cfg.getMaxConnectionsPerPartition());
+      this.minSize = Math.min(this.maxSize, partitions * cfg.getMinConnectionsPerPartition());
+      long timeoutMs = cfg.getConnectionTimeoutInMs();
+      this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs > 0 ? timeoutMs : DEFAULT_TIMEOUT_MS);
+      long leakMs = cfg.getCloseConnectionWatchTimeoutInMs();
+      // 0 : pas de délai pour BoneCP, qui attend la fin du thread emprunteur
+      this.leakThresholdMs = cfg.isCloseConnectionWatch() ? (leakMs > 0 ? leakMs : DEFAULT_LEAK_MS) : 0;
+      for (int i = 0; i < this.minSize; i++) {
+         this.size.incrementAndGet();
+         PooledConnection conn = open();
+         conn.state.set(PooledConnection.IDLE);
+         this.connections.add(conn);
+      }
+      log.debug("Pool ready for {} : {} connections, {} max", this.url, this.minSize, this.maxSize);
+   }
+
+   @Override
+   public Connection getConnection() throws SQLException {
+      long start = System.nanoTime();
+      PooledConnection conn = borrow(start);
+      long waited = System.nanoTime() - start;
+      this.borrows.increment();
+      this.waitNanos.add(waited);
+      long max;
+      while (waited > (max = this.maxWaitNanos.get()) && !this.maxWaitNanos.compareAndSet(max, waited)) {
+         // retry
+      }
+      this.active.incrementAndGet();
+      if (this.leakThresholdMs > 0) watchLeak(conn);
+      return conn;
+   }
+
+   private PooledConnection borrow(long start) throws SQLException {
+      if (this.closed) throw new SQLException("Pool is closed");
+      List<PooledConnection> mine = this.recent.get();
+      for (int i = mine.size() - 1; i >= 0; i--) {
+         PooledConnection conn = mine.remove(i);
+         if (conn.claim() && (conn = validated(conn)) != null) return conn;
+      }
+      this.waiters.incrementAndGet();
+      try {
+         while (true) {
+            for (PooledConnection conn : this.connections) {
+               if (conn.claim() && (conn = validated(conn)) != null) return conn;
+            }
+            PooledConnection created = tryOpen();
+            if (created != null) return created;
+            long remaining = this.timeoutNanos - (System.nanoTime() - start);
+            if (remaining <= 0) break;
+            // une connexion rendue sans preneur reste dans la liste : on la rescanne
+            PooledConnection conn = this.handoff.poll(Math.min(remaining, RESCAN_NANOS), TimeUnit.NANOSECONDS);
+            if (conn != null && conn.claim() && (conn = validated(conn)) != null) return conn;
+            if (this.closed) throw new SQLException("Pool is closed");
+         }
+      }
+      catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for a connection", e);
+      }
+      finally {
+         this.waiters.decrementAndGet();
+      }
+      this.timeouts.increment();
+      throw new SQLTransientConnectionException("No connection available after "
+                                                + TimeUnit.NANOSECONDS.toMillis(this.timeoutNanos)
+                                                + " ms ("
+                                                + this.active.get()
+                                                + " in use, "
+                                                + this.maxSize
+                                                + " max)");
+   }
+
+   /**
+    * @return the claimed connection, or null if it turned out to be broken
+    *         (it is then removed)
+    */
+   private PooledConnection validated(PooledConnection conn) {
+      if (System.currentTimeMillis() - conn.lastUsed <= VALIDATE_IDLE_MS) return conn;
+      try {
+         if (this.testStatement == null) {
+            if (conn.raw.isValid(VALIDATION_TIMEOUT)) return conn;
+         }
+         else {
+            try (Statement statement = conn.raw.createStatement()) {
+               statement.execute(this.testStatement);
+            }
+            return conn;
+         }
+      }
+      catch (SQLException e) {
+         log.debug("Idle connection failed validation", e);
+      }
+      log.info("Dropping broken connection to {}", this.url);
+      remove(conn);
+      return null;
+   }
+
+   /**
+    * @return a new connection, claimed, or null if the pool is full
+    */
+   private PooledConnection tryOpen() throws SQLException {
+      int current;
+      do {
+         current = this.size.get();
+         if (current >= this.maxSize) return null;
+      }
+      while (!this.size.compareAndSet(current, current + 1));
+      PooledConnection conn = open();
+      this.connections.add(conn);
+      return conn;
+   }
+
+   private PooledConnection open() throws SQLException {
+      try {
+         return new PooledConnection(this, DriverManager.getConnection(this.url, this.properties));
+      }
+      catch (SQLException | RuntimeException e) {
+         this.size.decrementAndGet();
+         throw e;
+      }
+   }
+
+   private void remove(PooledConnection conn) {
+      conn.state.set(PooledConnection.REMOVED);
+      if (this.connections.remove(conn)) this.size.decrementAndGet();
+      try {
+         conn.raw.close();
+      }
+      catch (SQLException e) {
+         log.debug("Could not close connection", e);
+      }
+   }
+
+   /**
+    * Called when a borrowed connection is closed : hands it to a waiting
+    * thread if there is one, otherwise makes it available again, first of
+    * all to the returning thread. Waiting threads also rescan the shared
+    * list every 10 ms, in case the handoff missed them.
+    */
+   void release(PooledConnection conn, boolean broken) {
+      if (conn.leakWatch != null) conn.leakWatch.cancel(false);
+      this.active.decrementAndGet();
+      if (broken || this.closed) {
+         remove(conn);
+         return;
+      }
+      conn.lastUsed = System.currentTimeMillis();
+      conn.state.set(PooledConnection.IDLE);
+      for (int i = 0; i < HANDOFF_TRIES && this.waiters.get() > 0; i++) {
+         if (conn.state.get() != PooledConnection.IDLE || this.handoff.offer(conn)) return;
+         LockSupport.parkNanos(10_000);
+      }
+      if (conn.state.get() != PooledConnection.IDLE) return;
+      List<PooledConnection> mine = this.recent.get();
+      if (mine.size() == RECENT_PER_THREAD) mine.remove(0);
+      mine.add(conn);
+   }
+
+   /**
+    * @return the thread of the leak watches : a cancelled watch leaves its
+    *         queue at once, with the stack trace it holds
+    */
+   private static ScheduledThreadPoolExecutor leakWatch() {
+      ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+         Thread thread = new Thread(r, "ezpool-leak-watch");
+         thread.setDaemon(true);
+         return thread;
+      });
+      executor.setRemoveOnCancelPolicy(true);
+      return executor;
+   }
+
+   private void watchLeak(PooledConnection conn) {
+      Exception borrower = new Exception("Connection borrowed here by " + Thread.currentThread().getName());
+      conn.leakWatch = LEAK_WATCH.schedule(() -> {
+         this.leaks.increment();
+         log.warn("Connection to " + this.url + " not closed after " + this.leakThresholdMs + " ms, possible leak", borrower);
+      }, this.leakThresholdMs, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Closes the idle connections now and the borrowed ones as they are
+    * returned.
+    */
+   @Override
+   public void close() {
+      this.closed = true;
+      for (PooledConnection conn : this.connections) {
+         if (conn.claim()) remove(conn);
+      }
+   }
+
+   /**
+    * @return the number of borrowed connections
+    */
+   public int getActive() {
+      return this.active.get();
+   }
+
+   /**
+    * @return the number of open connections not borrowed
+    */
+   public int getIdle() {
+      return Math.max(0, this.size.get() - this.active.get());
+   }
+
+   /**
+    * @return the number of threads waiting for a connection
+    */
+   public int getWaiting() {
+      return this.waiters.get();
+   }
+
+   public long getBorrows() {
+      return this.borrows.sum();
+   }
+
+   /**
+    * @return the mean time spent in getConnection(), in microseconds
+    */
+   public double getMeanWaitMicros() {
+      long count = this.borrows.sum();
+      return count == 0 ? 0 : this.waitNanos.sum() / 1000.0 / count;
+   }
+
+   /**
+    * @return the longest time spent in getConnection(), in microseconds
+    */
+   public long getMaxWaitMicros() {
+      return this.maxWaitNanos.get() / 1000;
+   }
+
+   /**
+    * @return the number of getConnection() that timed out
+    */
+   public long getTimeouts() {
+      return this.timeouts.sum();
+   }
+
+   /**
+    * @return the number of connections reported as possibly leaked
+    */
+   public long getLeaks() {
+      return this.leaks.sum();
+   }
+
+   @Override
+   public String toString() {
+      return String.format("EzPool[%s active=%d idle=%d waiting=%d borrows=%d meanWait=%.1fµs maxWait=%dµs timeouts=%d leaks=%d]",
+                           this.url,
+                           getActive(),
+                           getIdle(),
+                           getWaiting(),
+                           getBorrows(),
+                           getMeanWaitMicros(),
+                           getMaxWaitMicros(),
+                           getTimeouts(),
+                           getLeaks());
+   }
+
+   @Override
+   public Connection getConnection(String username, String password) throws SQLException {
+      throw new SQLFeatureNotSupportedException("Pooled connections use the credentials of the pool");
+   }
+
+   @Override
+   public PrintWriter getLogWriter() {
+      return null;
+   }
+
+   @Override
+   public void setLogWriter(PrintWriter out) throws SQLException {
+      throw new SQLFeatureNotSupportedException();
+   }
+
+   @Override
+   public void setLoginTimeout(int seconds) throws SQLException {
+      throw new SQLFeatureNotSupportedException();
+   }
+
+   @Override
+   public int getLoginTimeout() {
+      return (int) TimeUnit.NANOSECONDS.toSeconds(this.timeoutNanos);
+   }
+
+   @Override
+   public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+      throw new SQLFeatureNotSupportedException();
+   }
+
+   @Override
+   public <T> T unwrap(Class<T> iface) throws SQLException {
+      if (iface.isInstance(this)) return iface.cast(this);
+      throw new SQLException("Not a wrapper for " + iface.getName());
+   }
+
+   @Override
+   public boolean isWrapperFor(Class<?> iface) {
+      return iface.isInstance(this);
+   }
+}
@@ -3,36 +3,42 @@ package net.barroux.ezserver.db;
 import static com.google.common.collect.Lists.newArrayList;
 import static net.barroux.ezserver.db.DbHelper.conn;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import javax.servlet.http.HttpServletResponse;
 import javax.sql.DataSource;
 
-import org.apache.commons.dbutils.AsyncQueryRunner;
 import org.apache.commons.dbutils.DbUtils;
 import org.apache.commons.dbutils.QueryRunner;
 import org.apache.commons.dbutils.ResultSetHandler;
 import org.apache.commons.dbutils.handlers.ArrayHandler;
 import org.apache.commons.dbutils.handlers.ArrayListHandler;
-import org.apache.commons.dbutils.handlers.BeanListHandler;
 import org.apache.commons.dbutils.handlers.MapListHandler;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.barroux.ezserver.db.ResultSetStreamer.Format;
+
 public final class EzQr {
-   static final Logger                   log              = LoggerFactory.getLogger(EzQr.class);
-   private static final QueryRunner      QR               = new FsQueryRunner();
-   private static final ExecutorService  EXECUTOR_SERVICE = Executors.newFixedThreadPool(4);
-   private static final AsyncQueryRunner AQR              = new AsyncQueryRunner(EXECUTOR_SERVICE, new FsQueryRunner(DbHelper.getDs()));
+   static final Logger              log        = LoggerFactory.getLogger(EzQr.class);
+   private static final QueryRunner QR         = new FsQueryRunner();
+   static final int                 FETCH_SIZE = 2000;
 
    private EzQr() {
    }
@@ -44,6 +50,10 @@ public final class EzQr {
       catch (SQLException e) {
          throw new DbException(e);
       }
+      finally {
+         // même en échec : une partie a pu être écrite
+         DbHelper.written(sql);
+      }
    }
 
    public static Integer getInteger(String query, Object... params) {
@@ -75,14 +85,57 @@ public final class EzQr {
       }
    }
 
-   public static <V> Future<V> queryAsync(String sql, ResultSetHandler<V> rsh, Object... params) {
-      try {
-         return AQR.query(sql, rsh, params);
-      }
-      catch (SQLException s) {
-         log.error("Error while executing request " + s.getMessage(), s);
-         throw new DbException("Can't execute request " + sql, s);
-      }
+   /**
+    * Lance la requête sur une connexion à part, hors de la transaction en
+    * cours, dans un des threads configurés par
+    * {@link DbConfig#asyncExecutor(int, int)}. Annuler le future annule la
+    * requête ; si la file est pleine, le future échoue avec une
+    * RejectedExecutionException (voir {@link QueryExecutor}).
+    */
+   public static <V> CompletableFuture<V> queryAsync(String sql, ResultSetHandler<V> rsh, Object... params) {
+      return DbHelper.async().submit(sql, rsh, params);
+   }
+
+   /**
+    * Comme {@link #query(String, ResultSetHandler, Object...)}, en gardant le
+    * résultat dans la région du cache de résultats (voir {@link ResultCache})
+    * jusqu'à ce qu'une des tables lues soit modifiée. Le résultat, partagé
+    * entre les requêtes, ne doit pas être modifié.
+    * 
+    * La classe d'un handler ne dit pas ce qu'il construit (colonne d'un
+    * ScalarHandler, bean d'un BeanListHandler, lambda qui capture...) : le
+    * shape le nomme, et fait partie de la clé avec la requête et ses
+    * paramètres. Deux appels de même shape doivent donner le même résultat
+    * pour la même requête.
+    * 
+    * @param shape
+    *           le nom de ce que construit le handler, par exemple "count" ou
+    *           "users by id"
+    */
+   public static <V> V queryCached(String region, String shape, String sql, ResultSetHandler<V> rsh, Object... params) {
+      if (shape == null || shape.isEmpty()) throw new IllegalArgumentException("No cache shape given for " + sql);
+      Object[] fixed = fixParams(params);
+      // préfixé pour ne jamais croiser les clés des méthodes ci-dessous
+      return ResultCache.region(region).get("shape:" + shape, sql, fixed, () -> query(sql, rsh, fixed));
+   }
+
+   /**
+    * Comme {@link #queryAllInBeans(Class, String, Object...)}, par le cache de
+    * résultats (voir {@link #queryCached(String, String, String, ResultSetHandler, Object...)}
+    * ) : la liste renvoyée n'est pas modifiable.
+    */
+   public static <V> List<V> queryAllInBeansCached(String region, Class<V> bean, String query, Object... params) {
+      Object[] fixed = fixParams(params);
+      return ResultCache.region(region).get(bean.getName(), query, fixed, () -> Collections.unmodifiableList(queryAllInBeans(bean, query, fixed)));
+   }
+
+   /**
+    * Comme {@link #queryAllInListOfMap(String, Object...)}, par le cache de
+    * résultats : la liste renvoyée n'est pas modifiable.
+    */
+   public static List<Map<String, Object>> queryAllInListOfMapCached(String region, String query, Object... params) {
+      Object[] fixed = fixParams(params);
+      return ResultCache.region(region).get(Map.class.getName(), query, fixed, () -> Collections.unmodifiableList(queryAllInListOfMap(query, fixed)));
    }
 
    public static <V> List<V> queryAllInBeans(Class<V> bean, String query, Object... params) {
@@ -90,7 +143,7 @@ public final class EzQr {
       List<V> obj = null;
       log.debug(query);
       try {
-         ResultSetHandler<List<V>> h = new BeanListHandler<V>(bean);
+         ResultSetHandler<List<V>> h = RowMapper.listHandler(bean);
          obj = QR.query(conn(), query, h, fixParams(params));
       }
       catch (SQLException e) {
@@ -101,20 +154,9 @@ public final class EzQr {
       return obj;
    }
 
-   public static <V> Future<List<V>> queryAsyncAllInBeans(Class<V> bean, String query, Object... params) {
-      long start = new Date().getTime();
-      Future<List<V>> obj = null;
+   public static <V> CompletableFuture<List<V>> queryAsyncAllInBeans(Class<V> bean, String query, Object... params) {
       log.debug(query);
-      try {
-         ResultSetHandler<List<V>> h = new BeanListHandler<V>(bean);
-         obj = AQR.query(query, h, fixParams(params));
-      }
-      catch (SQLException e) {
-         log.error("QueryAllRowsInListBean. Cant process query", e);
-         throw new DbException("QueryAllRowsInListBean. Cant process query " + query, e);
-      }
-      log.debug("queryAllRowsInListBean launch Time : {}ms", (new Date().getTime() - start));
-      return obj;
+      return DbHelper.async().submit(query, RowMapper.listHandler(bean), fixParams(params));
    }
 
    public static List<Object[]> queryAllInList(String query, Object... params) {
@@ -134,18 +176,30 @@ public final class EzQr {
       return obj;
    }
 
-   public static Future<List<Object[]>> queryAsyncAllInList(String query, Object... params) {
-      Future<List<Object[]>> obj = null;
-      log.debug("--ASYNC SELECT  : " + query);
+   /**
+    * Comme {@link #queryAllInList(String, Object...)}, mais rangé par colonne
+    * dans des tableaux de primitives, sans objet par cellule : à préférer
+    * pour les requêtes d'analyse qui ramènent beaucoup de lignes.
+    */
+   public static ColumnarTable queryColumnar(String query, Object... params) {
+      long start = System.nanoTime();
+      log.debug("--SELECT  : " + query);
       log.debug("--PARAMS-- : " + StringUtils.join(params, " , "));
       try {
-         ResultSetHandler<List<Object[]>> h = new ArrayListHandler();
-         obj = AQR.query(query, h, fixParams(params));
+         ColumnarTable table = QR.query(conn(), query, ColumnarTable.handler(), fixParams(params));
+         log.debug("Execution Time :  {}ms ({} rows)", (System.nanoTime() - start) / 1_000_000, table.getRowCount());
+         return table;
       }
       catch (SQLException e) {
-         log.error("queryAllInList - Cant process query", e);
-         throw new DbException("queryAllInList - Cant process query " + query, e);
+         log.error("queryColumnar - Cant process query", e);
+         throw new DbException("queryColumnar - Cant process query " + query, e);
       }
+   }
+
+   public static CompletableFuture<List<Object[]>> queryAsyncAllInList(String query, Object... params) {
+      log.debug("--ASYNC SELECT  : " + query);
+      log.debug("--PARAMS-- : " + StringUtils.join(params, " , "));
+      CompletableFuture<List<Object[]>> obj = DbHelper.async().submit(query, new ArrayListHandler(), fixParams(params));
       log.debug("Async query launched ({}...)", query.substring(0, Math.min(30, query.length())));
       return obj;
    }
@@ -164,11 +218,35 @@ public final class EzQr {
       List<Object[]> objs = queryAllInList(query, params);
       List<Integer> result = newArrayList();
       for (Object[] ob : objs) {
-         result.add(((BigDecimal) ob[0]).intValue());
+         result.add(((Number) ob[0]).intValue());
       }
       return result;
    }
 
+   /**
+    * Renvoie l'ensemble des ids de la première colonne, lus avec getLong()
+    * quel que soit le type numérique (NUMBER Oracle, int, bigint ou numeric
+    * PostgreSQL), sans objet par ligne et compressés : à préférer à
+    * queryAllInListOfInteger dès qu'il y a beaucoup d'ids. Les nulls sont
+    * ignorés.
+    * 
+    * L'IdSet obtenu peut être passé en paramètre d'une autre requête (voir
+    * {@link IdSet}).
+    */
+   public static IdSet queryIdSet(String query, Object... params) {
+      long start = System.nanoTime();
+      log.debug(query);
+      try {
+         IdSet ids = QR.query(conn(), query, IdSet.handler(), fixParams(params));
+         log.debug("Execution Time :  {}ms ({} ids)", (System.nanoTime() - start) / 1_000_000, ids.size());
+         return ids;
+      }
+      catch (SQLException e) {
+         log.error("queryIdSet - Cant process query", e);
+         throw new DbException("queryIdSet - Cant process query " + query, e);
+      }
+   }
+
    /**
     * Renvoie une liste de String.
     * 
@@ -204,19 +282,165 @@ public final class EzQr {
       return obj;
    }
 
-   public static Future<List<Map<String, Object>>> queryAsyncAllInListOfMap(String query, Object... param) {
-      long start = new Date().getTime();
-      Future<List<Map<String, Object>>> obj = null;
+   public static CompletableFuture<List<Map<String, Object>>> queryAsyncAllInListOfMap(String query, Object... param) {
+      log.debug(query);
+      return DbHelper.async().submit(query, new MapListHandler(), fixParams(param));
+   }
+
+   /**
+    * Ecrit le résultat de la requête dans la réponse sous forme de tableau
+    * json d'objets (un par ligne, comme queryAllInListOfMap), au fil de la
+    * lecture du ResultSet : rien n'est gardé en mémoire, et le premier octet
+    * part dès que le tampon est plein.
+    * 
+    * @return le nombre de lignes écrites (partielles si le client s'est
+    *         déconnecté en cours de route)
+    */
+   public static long streamJson(HttpServletResponse response, String query, Object... params) {
+      response.setContentType("application/json;charset=UTF-8");
+      return stream(Format.JSON, output(response), query, params);
+   }
+
+   /**
+    * Comme {@link #streamJson(HttpServletResponse, String, Object...)}, en csv
+    * avec une ligne d'en-tête.
+    */
+   public static long streamCsv(HttpServletResponse response, String query, Object... params) {
+      response.setContentType("text/csv;charset=UTF-8");
+      return stream(Format.CSV, output(response), query, params);
+   }
+
+   public static long streamJson(OutputStream out, String query, Object... params) {
+      return stream(Format.JSON, out, query, params);
+   }
+
+   public static long streamCsv(OutputStream out, String query, Object... params) {
+      return stream(Format.CSV, out, query, params);
+   }
+
+   private static OutputStream output(HttpServletResponse response) {
+      try {
+         return response.getOutputStream();
+      }
+      catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   private static long stream(Format format, OutputStream out, String query, Object... params) {
+      long start = System.nanoTime();
       log.debug(query);
+      ResultSetStreamer streamer = new ResultSetStreamer(format, out);
+      Connection conn = conn();
+      PreparedStatement stmt = null;
+      ResultSet rs = null;
+      boolean autoCommit = false;
       try {
-         obj = AQR.query(query, new MapListHandler(), fixParams(param));
+         // le driver PostgreSQL charge tout le résultat dès l'exécution, sauf
+         // hors auto-commit et avec un fetch size posé avant
+         autoCommit = conn.getAutoCommit();
+         if (autoCommit) conn.setAutoCommit(false);
+         stmt = DbHelper.prepare(conn, query);
+         stmt.setFetchSize(FETCH_SIZE);
+         QR.fillStatement(stmt, fixParams(params));
+         rs = stmt.executeQuery();
+         long rows = streamer.handle(rs);
+         log.debug("{} export : {} rows in {}ms", format, rows, (System.nanoTime() - start) / 1_000_000);
+         return rows;
+      }
+      catch (UncheckedIOException e) {
+         log.info("{} export stopped, client gone : {}", format, e.getMessage());
+         return streamer.getRows();
       }
       catch (SQLException e) {
          log.error("Cant process query", e);
          throw new DbException("Cant process query " + query, e);
       }
-      log.debug("Launch Time :  {}ms", (new Date().getTime() - start));
-      return obj;
+      finally {
+         DbUtils.closeQuietly(rs);
+         releaseQuietly(stmt);
+         if (autoCommit) {
+            try {
+               // termine la transaction de lecture ouverte pour l'export
+               conn.setAutoCommit(true);
+            }
+            catch (SQLException e) {
+               log.warn("Could not restore auto-commit after export", e);
+            }
+         }
+      }
+   }
+
+   private static void releaseQuietly(PreparedStatement stmt) {
+      if (stmt == null) return;
+      try {
+         DbHelper.release(stmt);
+      }
+      catch (SQLException ignored) {
+         DbUtils.closeQuietly(stmt);
+      }
+   }
+
+   /**
+    * Parcourt le résultat de la requête au fil de la lecture du curseur, sans
+    * jamais garder plus de {@value #FETCH_SIZE} lignes en mémoire : de quoi
+    * traiter des dizaines de millions de lignes dans un batch.
+    * 
+    * Le Stream doit être fermé (try-with-resources) s'il n'est pas lu
+    * jusqu'au bout; il l'est de toute façon par {@link DbHelper#close()}.
+    * 
+    * @param type
+    *           String, Integer, Long, Double, BigDecimal, Boolean ou Object
+    *           pour la première colonne, Object[] ou Map pour la ligne
+    *           entière, un bean sinon
+    */
+   public static <T> Stream<T> stream(Class<T> type, String query, Object... params) {
+      return stream(type, FETCH_SIZE, query, params);
+   }
+
+   /**
+    * Comme {@link #stream(Class, String, Object...)}, en indiquant au driver
+    * le nombre de lignes à charger à la fois.
+    * 
+    * Sous PostgreSQL le driver ne lit par paquets qu'en dehors de
+    * l'auto-commit : la commande ne doit pas être en
+    * {@link TransactionMode#NONE}.
+    */
+   public static <T> Stream<T> stream(Class<T> type, int fetchSize, String query, Object... params) {
+      log.debug(query);
+      Connection conn = conn();
+      PreparedStatement stmt = null;
+      ResultSet rs = null;
+      boolean opened = false;
+      try {
+         stmt = DbHelper.prepare(conn, query);
+         stmt.setFetchSize(fetchSize);
+         QR.fillStatement(stmt, fixParams(params));
+         rs = stmt.executeQuery();
+         Cursor<T> cursor = new Cursor<>(stmt, rs, Cursor.reader(type, rs));
+         Stream<T> stream = StreamSupport.stream(cursor, false).onClose(cursor::close);
+         opened = true;
+         return stream;
+      }
+      catch (SQLException e) {
+         log.error("Cant process query", e);
+         throw new DbException("Cant process query " + query, e);
+      }
+      finally {
+         // le curseur n'a pas pu être ouvert (erreur sql, bean sans constructeur...)
+         if (!opened) {
+            DbUtils.closeQuietly(rs);
+            if (stmt != null) {
+               try {
+                  stmt.setFetchSize(0);
+               }
+               catch (SQLException ignored) {
+                  // releaseQuietly le ferme s'il est inutilisable
+               }
+               releaseQuietly(stmt);
+            }
+         }
+      }
    }
 
    public static <V> List<V> queryFixedNumberRowsInListBean(Class<V> bean, String query, int rowNumberMax) {
@@ -263,6 +487,41 @@ public final class EzQr {
          log.error("Cant process query", e);
          throw new DbException("Cant process query " + query, e);
       }
+      finally {
+         DbHelper.written(query);
+      }
+   }
+
+   /**
+    * Renvoie un BatchWriter envoyant la requête (insert, update ou delete) par
+    * lots JDBC, une ligne de paramètres à la fois, au lieu de tout
+    * matérialiser comme {@link #updateByBatch(String, Object[][])}.
+    */
+   public static BatchWriter batchWriter(String sql) {
+      return BatchWriter.of(sql, DbHelper.dialect());
+   }
+
+   /**
+    * Renvoie un BatchWriter insérant les lignes dans la table par requêtes
+    * multi-lignes : insert ... values (...), (...) ou, pour Oracle,
+    * insert ... select ... from dual union all ...
+    * 
+    * Le dialecte de {@link DbConfig} doit être celui de la base : jOOQ open
+    * source n'en ayant pas pour Oracle, DEFAULT n'est accepté que si la
+    * connexion est bien une connexion Oracle.
+    */
+   public static BatchWriter insertWriter(String table, String... columns) {
+      return BatchWriter.insert(DbHelper.dialect(), table, columns);
+   }
+
+   /**
+    * Comme {@link #insertWriter(String, String...)}, en mettant à jour les
+    * autres colonnes des lignes dont les clés existent déjà : on conflict
+    * (PostgreSQL), on duplicate key update (MySQL), merge (H2, HSQLDB et
+    * Oracle).
+    */
+   public static BatchWriter upsertWriter(String table, String[] keys, String... columns) {
+      return BatchWriter.upsert(DbHelper.dialect(), table, keys, columns);
    }
 
    /**
@@ -281,13 +540,17 @@ public final class EzQr {
       // Dbutils and jdbc won't handle properly java.util.Date as parameters :
       List<Object> fixedParams = newArrayList();
       for (Object o : params) {
-         if (o instanceof Date) fixedParams.add(new java.sql.Timestamp(((Date) o).getTime()));
-         else if (o != null && o.getClass().isEnum()) fixedParams.add(o.toString());
-         else fixedParams.add(o);
+         fixedParams.add(fixParam(o));
       }
       return fixedParams.toArray();
    }
 
+   static Object fixParam(Object o) {
+      if (o instanceof Date) return new java.sql.Timestamp(((Date) o).getTime());
+      if (o != null && o.getClass().isEnum()) return o.toString();
+      return o;
+   }
+
    public static class FsQueryRunner extends QueryRunner {
       public FsQueryRunner(DataSource ds) {
          super(ds);
@@ -297,10 +560,24 @@ public final class EzQr {
          super();
       }
 
+      /**
+       * Binds the IdSet parameters as sql arrays.
+       */
+      @Override
+      public void fillStatement(PreparedStatement stmt, Object... params) throws SQLException {
+         Object[] bound = params;
+         for (int i = 0; params != null && i < params.length; i++) {
+            if (!(params[i] instanceof IdSet)) continue;
+            if (bound == params) bound = params.clone();
+            bound[i] = ((IdSet) params[i]).toSqlArray(stmt.getConnection());
+         }
+         super.fillStatement(stmt, bound);
+      }
+
       @Override
       protected ResultSet wrap(ResultSet rs) {
          try {
-            rs.setFetchSize(2000);
+            rs.setFetchSize(FETCH_SIZE);
             log.trace("wrapping");
             return super.wrap(rs);
          }
@@ -309,6 +586,20 @@ public final class EzQr {
          }
       }
 
+      /**
+       * Takes the statement from the cache of the connection of the current
+       * thread (see {@link DbConfig#statementCacheSize(int)}).
+       */
+      @Override
+      protected PreparedStatement prepareStatement(Connection conn, String sql) throws SQLException {
+         return DbHelper.prepare(conn, sql);
+      }
+
+      @Override
+      protected void close(Statement stmt) throws SQLException {
+         if (stmt != null) DbHelper.release(stmt);
+      }
+
       @Override
       protected void close(Connection conn) throws SQLException {
          try {
@@ -0,0 +1,545 @@
+package net.barroux.ezserver.db;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.LongConsumer;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
+
+import org.apache.commons.dbutils.ResultSetHandler;
+
+/**
+ * An immutable set of ids, as returned by
+ * {@link EzQr#queryIdSet(String, Object...)}, stored without boxing and
+ * compressed the way Roaring bitmaps are : the ids are split in chunks of
+ * 65536 consecutive values, and each chunk holds either the sorted low 16
+ * bits of its ids (2 bytes per id, up to {@value #ARRAY_MAX} ids) or a bitmap
+ * of 8 KB when it is denser. Unions, intersections and differences work chunk
+ * by chunk, on whole words for the bitmaps.
+ * <p>
+ * Can be given back to a query as a parameter : {@link EzQr} binds it as a
+ * sql array, to be used as <code>where id = any(?)</code> with PostgreSQL or
+ * H2, and as <code>where id in (select column_value from table(?))</code>
+ * with Oracle (as a SYS.ODCINUMBERLIST, limited to {@value #ORACLE_LIST_MAX}
+ * ids, or the type given to {@link DbConfig#oracleNumberList(String)}).
+ * </p>
+ */
+public final class IdSet {
+   static final int            ARRAY_MAX          = 4096;
+   private static final int    WORDS              = 1024;
+   static final String         ORACLE_NUMBER_LIST = "SYS.ODCINUMBERLIST";
+   static final int            ORACLE_LIST_MAX    = 32767;
+   private static final IdSet  EMPTY              = new IdSet(new long[0], new Object[0], new int[0]);
+
+   /** high bits of the ids of each chunk, sorted */
+   private final long[]        keys;
+   /** char[] of sorted low bits, or long[] bitmap of WORDS words */
+   private final Object[]      chunks;
+   private final int[]         counts;
+   private final int           size;
+
+   private IdSet(long[] keys, Object[] chunks, int[] counts) {
+      this.keys = keys;
+      this.chunks = chunks;
+      this.counts = counts;
+      int total = 0;
+      for (int count : counts) {
+         total = Math.addExact(total, count);
+      }
+      this.size = total;
+   }
+
+   public static IdSet empty() {
+      return EMPTY;
+   }
+
+   /**
+    * @return the set of these ids, in any order, duplicates allowed
+    */
+   public static IdSet of(long... ids) {
+      long[] sorted = ids.clone();
+      Arrays.sort(sorted);
+      return ofSorted(sorted, sorted.length);
+   }
+
+   public static IdSet of(int... ids) {
+      long[] sorted = new long[ids.length];
+      for (int i = 0; i < ids.length; i++) {
+         sorted[i] = ids[i];
+      }
+      Arrays.sort(sorted);
+      return ofSorted(sorted, sorted.length);
+   }
+
+   /**
+    * @return a handler reading the first column of every row with getLong(),
+    *         whatever its numeric type, nulls ignored
+    */
+   static ResultSetHandler<IdSet> handler() {
+      return IdSet::read;
+   }
+
+   private static IdSet read(ResultSet rs) throws SQLException {
+      long[] ids = new long[1024];
+      int count = 0;
+      boolean sorted = true;
+      while (rs.next()) {
+         long id = rs.getLong(1);
+         if (rs.wasNull()) continue;
+         if (count == ids.length) ids = Arrays.copyOf(ids, count * 2);
+         if (count > 0 && id < ids[count - 1]) sorted = false;
+         ids[count++] = id;
+      }
+      // souvent déjà triés par un order by : on s'épargne le tri
+      if (!sorted) Arrays.sort(ids, 0, count);
+      return ofSorted(ids, count);
+   }
+
+   private static IdSet ofSorted(long[] ids, int length) {
+      if (length == 0) return EMPTY;
+      int chunkCount = 0;
+      for (int i = 0; i < length; i++) {
+         if (i == 0 || ids[i] >> 16 != ids[i - 1] >> 16) chunkCount++;
+      }
+      long[] keys = new long[chunkCount];
+      Object[] chunks = new Object[chunkCount];
+      int[] counts = new int[chunkCount];
+      char[] lows = new char[65536];
+      int chunk = 0;
+      for (int start = 0; start < length;) {
+         long key = ids[start] >> 16;
+         int count = 0;
+         int i = start;
+         for (; i < length && ids[i] >> 16 == key; i++) {
+            char low = (char) ids[i];
+            if (count == 0 || lows[count - 1] != low) lows[count++] = low;
+         }
+         keys[chunk] = key;
+         counts[chunk] = count;
+         chunks[chunk] = count <= ARRAY_MAX ? Arrays.copyOf(lows, count) : toBitmap(lows, count);
+         chunk++;
+         start = i;
+      }
+      return new IdSet(keys, chunks, counts);
+   }
+
+   public int size() {
+      return this.size;
+   }
+
+   public boolean isEmpty() {
+      return this.size == 0;
+   }
+
+   public boolean contains(long id) {
+      int index = Arrays.binarySearch(this.keys, id >> 16);
+      if (index < 0) return false;
+      Object chunk = this.chunks[index];
+      char low = (char) id;
+      if (chunk instanceof char[]) return Arrays.binarySearch((char[]) chunk, low) >= 0;
+      return (((long[]) chunk)[low >>> 6] & (1L << low)) != 0;
+   }
+
+   /**
+    * @return the ids in both sets
+    */
+   public IdSet and(IdSet other) {
+      int capacity = Math.min(this.keys.length, other.keys.length);
+      long[] keys = new long[capacity];
+      Object[] chunks = new Object[capacity];
+      int[] counts = new int[capacity];
+      int n = 0;
+      for (int i = 0, j = 0; i < this.keys.length && j < other.keys.length;) {
+         if (this.keys[i] < other.keys[j]) {
+            i++;
+         }
+         else if (this.keys[i] > other.keys[j]) {
+            j++;
+         }
+         else {
+            Object chunk = and(this.chunks[i], other.chunks[j]);
+            int count = count(chunk);
+            if (count > 0) {
+               keys[n] = this.keys[i];
+               chunks[n] = chunk;
+               counts[n++] = count;
+            }
+            i++;
+            j++;
+         }
+      }
+      return new IdSet(Arrays.copyOf(keys, n), Arrays.copyOf(chunks, n), Arrays.copyOf(counts, n));
+   }
+
+   /**
+    * @return the ids in either set
+    */
+   public IdSet or(IdSet other) {
+      int capacity = this.keys.length + other.keys.length;
+      long[] keys = new long[capacity];
+      Object[] chunks = new Object[capacity];
+      int[] counts = new int[capacity];
+      int n = 0;
+      int i = 0;
+      int j = 0;
+      while (i < this.keys.length || j < other.keys.length) {
+         if (j == other.keys.length || i < this.keys.length && this.keys[i] < other.keys[j]) {
+            keys[n] = this.keys[i];
+            chunks[n] = this.chunks[i];
+            counts[n++] = this.counts[i++];
+         }
+         else if (i == this.keys.length || this.keys[i] > other.keys[j]) {
+            keys[n] = other.keys[j];
+            chunks[n] = other.chunks[j];
+            counts[n++] = other.counts[j++];
+         }
+         else {
+            Object chunk = or(this.chunks[i++], other.chunks[j++]);
+            keys[n] = this.keys[i - 1];
+            chunks[n] = chunk;
+            counts[n++] = count(chunk);
+         }
+      }
+      return new IdSet(Arrays.copyOf(keys, n), Arrays.copyOf(chunks, n), Arrays.copyOf(counts, n));
+   }
+
+   /**
+    * @return the ids of this set which are not in the other
+    */
+   public IdSet andNot(IdSet other) {
+      long[] keys = new long[this.keys.length];
+      Object[] chunks = new Object[this.keys.length];
+      int[] counts = new int[this.keys.length];
+      int n = 0;
+      for (int i = 0, j = 0; i < this.keys.length; i++) {
+         while (j < other.keys.length && other.keys[j] < this.keys[i]) {
+            j++;
+         }
+         Object chunk = j < other.keys.length && other.keys[j] == this.keys[i] ? andNot(this.chunks[i], other.chunks[j]) : this.chunks[i];
+         int count = chunk == this.chunks[i] ? this.counts[i] : count(chunk);
+         if (count > 0) {
+            keys[n] = this.keys[i];
+            chunks[n] = chunk;
+            counts[n++] = count;
+         }
+      }
+      return new IdSet(Arrays.copyOf(keys, n), Arrays.copyOf(chunks, n), Arrays.copyOf(counts, n));
+   }
+
+   private static Object and(Object a, Object b) {
+      if (a instanceof char[] && b instanceof char[]) {
+         char[] left = (char[]) a;
+         char[] right = (char[]) b;
+         char[] result = new char[Math.min(left.length, right.length)];
+         int n = 0;
+         for (int i = 0, j = 0; i < left.length && j < right.length;) {
+            if (left[i] < right[j]) i++;
+            else if (left[i] > right[j]) j++;
+            else {
+               result[n++] = left[i++];
+               j++;
+            }
+         }
+         return Arrays.copyOf(result, n);
+      }
+      if (a instanceof char[] || b instanceof char[]) {
+         char[] lows = (char[]) (a instanceof char[] ? a : b);
+         long[] bits = (long[]) (a instanceof char[] ? b : a);
+         char[] result = new char[lows.length];
+         int n = 0;
+         for (char low : lows) {
+            if ((bits[low >>> 6] & (1L << low)) != 0) result[n++] = low;
+         }
+         return Arrays.copyOf(result, n);
+      }
+      long[] left = (long[]) a;
+      long[] right = (long[]) b;
+      long[] bits = new long[WORDS];
+      for (int w = 0; w < WORDS; w++) {
+         bits[w] = left[w] & right[w];
+      }
+      return compact(bits);
+   }
+
+   private static Object or(Object a, Object b) {
+      if (a instanceof char[] && b instanceof char[]) {
+         char[] left = (char[]) a;
+         char[] right = (char[]) b;
+         char[] result = new char[left.length + right.length];
+         int n = 0;
+         int i = 0;
+         int j = 0;
+         while (i < left.length && j < right.length) {
+            if (left[i] < right[j]) result[n++] = left[i++];
+            else if (left[i] > right[j]) result[n++] = right[j++];
+            else {
+               result[n++] = left[i++];
+               j++;
+            }
+         }
+         while (i < left.length) {
+            result[n++] = left[i++];
+         }
+         while (j < right.length) {
+            result[n++] = right[j++];
+         }
+         return n <= ARRAY_MAX ? Arrays.copyOf(result, n) : toBitmap(result, n);
+      }
+      if (a instanceof char[] || b instanceof char[]) {
+         char[] lows = (char[]) (a instanceof char[] ? a : b);
+         long[] bits = ((long[]) (a instanceof char[] ? b : a)).clone();
+         for (char low : lows) {
+            bits[low >>> 6] |= 1L << low;
+         }
+         return bits;
+      }
+      long[] left = (long[]) a;
+      long[] right = (long[]) b;
+      long[] bits = new long[WORDS];
+      for (int w = 0; w < WORDS; w++) {
+         bits[w] = left[w] | right[w];
+      }
+      return bits;
+   }
+
+   private static Object andNot(Object a, Object b) {
+      if (a instanceof char[]) {
+         char[] lows = (char[]) a;
+         char[] result = new char[lows.length];
+         int n = 0;
+         if (b instanceof char[]) {
+            char[] removed = (char[]) b;
+            int j = 0;
+            for (char low : lows) {
+               while (j < removed.length && removed[j] < low) {
+                  j++;
+               }
+               if (j == removed.length || removed[j] != low) result[n++] = low;
+            }
+         }
+         else {
+            long[] bits = (long[]) b;
+            for (char low : lows) {
+               if ((bits[low >>> 6] & (1L << low)) == 0) result[n++] = low;
+            }
+         }
+         return Arrays.copyOf(result, n);
+      }
+      long[] bits = ((long[]) a).clone();
+      if (b instanceof char[]) {
+         for (char low : (char[]) b) {
+            bits[low >>> 6] &= ~(1L << low);
+         }
+      }
+      else {
+         long[] removed = (long[]) b;
+         for (int w = 0; w < WORDS; w++) {
+            bits[w] &= ~removed[w];
+         }
+      }
+      return compact(bits);
+   }
+
+   private static long[] toBitmap(char[] lows, int count) {
+      long[] bits = new long[WORDS];
+      for (int i = 0; i < count; i++) {
+         bits[lows[i] >>> 6] |= 1L << lows[i];
+      }
+      return bits;
+   }
+
+   /**
+    * @return the bitmap, or the array of its bits if they are few enough
+    */
+   private static Object compact(long[] bits) {
+      int count = count(bits);
+      return count > ARRAY_MAX ? bits : lows(bits, count);
+   }
+
+   private static char[] lows(long[] bits, int count) {
+      char[] lows = new char[count];
+      int n = 0;
+      for (int w = 0; w < WORDS; w++) {
+         for (long word = bits[w]; word != 0; word &= word - 1) {
+            lows[n++] = (char) (w << 6 | Long.numberOfTrailingZeros(word));
+         }
+      }
+      return lows;
+   }
+
+   private static int count(Object chunk) {
+      if (chunk instanceof char[]) return ((char[]) chunk).length;
+      int count = 0;
+      for (long word : (long[]) chunk) {
+         count += Long.bitCount(word);
+      }
+      return count;
+   }
+
+   /**
+    * Calls the consumer with every id, in ascending order.
+    */
+   public void forEach(LongConsumer consumer) {
+      for (int c = 0; c < this.keys.length; c++) {
+         long base = this.keys[c] << 16;
+         Object chunk = this.chunks[c];
+         if (chunk instanceof char[]) {
+            for (char low : (char[]) chunk) {
+               consumer.accept(base | low);
+            }
+         }
+         else {
+            long[] bits = (long[]) chunk;
+            for (int w = 0; w < WORDS; w++) {
+               for (long word = bits[w]; word != 0; word &= word - 1) {
+                  consumer.accept(base | (w << 6 | Long.numberOfTrailingZeros(word)));
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * @return an iterator over the ids in ascending order, decoding one chunk
+    *         at a time
+    */
+   public PrimitiveIterator.OfLong iterator() {
+      return new PrimitiveIterator.OfLong() {
+         private int    chunk = -1;
+         private char[] lows  = new char[0];
+         private int    next;
+
+         @Override
+         public boolean hasNext() {
+            while (this.next == this.lows.length) {
+               if (this.chunk + 1 == IdSet.this.keys.length) return false;
+               this.chunk++;
+               Object current = IdSet.this.chunks[this.chunk];
+               this.lows = current instanceof char[] ? (char[]) current : lows((long[]) current, IdSet.this.counts[this.chunk]);
+               this.next = 0;
+            }
+            return true;
+         }
+
+         @Override
+         public long nextLong() {
+            if (!hasNext()) throw new NoSuchElementException();
+            return IdSet.this.keys[this.chunk] << 16 | this.lows[this.next++];
+         }
+      };
+   }
+
+   public LongStream stream() {
+      return StreamSupport.longStream(Spliterators.spliterator(iterator(), this.size, Spliterator.ORDERED
+                                                                                     | Spliterator.SORTED
+                                                                                     | Spliterator.DISTINCT
+                                                                                     | Spliterator.NONNULL), false);
+   }
+
+   /**
+    * @return the ids in ascending order
+    */
+   public long[] toLongArray() {
+      long[] ids = new long[this.size];
+      int[] n = { 0 };
+      forEach(id -> ids[n[0]++] = id);
+      return ids;
+   }
+
+   /**
+    * @return the ids in ascending order
+    * @throws ArithmeticException
+    *            if one of them does not fit in an int
+    */
+   public int[] toIntArray() {
+      int[] ids = new int[this.size];
+      int[] n = { 0 };
+      forEach(id -> ids[n[0]++] = Math.toIntExact(id));
+      return ids;
+   }
+
+   /**
+    * @return the ids as a sql array of the connection : a collection of the
+    *         configured type for Oracle, which has no createArrayOf(), a
+    *         BIGINT array otherwise
+    * @throws SQLException
+    *            if there are more ids than a SYS.ODCINUMBERLIST holds
+    */
+   java.sql.Array toSqlArray(Connection conn) throws SQLException {
+      Long[] ids = new Long[this.size];
+      int[] n = { 0 };
+      forEach(id -> ids[n[0]++] = id);
+      Class<?> oracle = OracleConnection.TYPE;
+      if (oracle == null || !conn.isWrapperFor(oracle)) return conn.createArrayOf("BIGINT", ids);
+      String type = DbHelper.oracleNumberList();
+      // le VARRAY ferait échouer l'exécution avec une ORA-22165 peu parlante
+      if (ORACLE_NUMBER_LIST.equalsIgnoreCase(type) && ids.length > ORACLE_LIST_MAX) {
+         throw new SQLException(ids.length + " ids do not fit in a " + type + " (" + ORACLE_LIST_MAX
+                                + " at most) : split the set or configure a nested table type with DbConfig.oracleNumberList()");
+      }
+      try {
+         return (java.sql.Array) oracle.getMethod("createOracleArray", String.class, Object.class)
+                                       .invoke(conn.unwrap(oracle), type, ids);
+      }
+      catch (ReflectiveOperationException e) {
+         throw new SQLException("Could not bind the ids as " + type, e);
+      }
+   }
+
+   /**
+    * The Oracle connection interface, looked up once, when the driver is
+    * there.
+    */
+   private static final class OracleConnection {
+      static final Class<?> TYPE = find();
+
+      private static Class<?> find() {
+         try {
+            return Class.forName("oracle.jdbc.OracleConnection", false, IdSet.class.getClassLoader());
+         }
+         catch (ClassNotFoundException e) {
+            return null;
+         }
+      }
+   }
+
+   @Override
+   public boolean equals(Object obj) {
+      if (this == obj) return true;
+      if (!(obj instanceof IdSet)) return false;
+      IdSet other = (IdSet) obj;
+      if (this.size != other.size || !Arrays.equals(this.keys, other.keys)) return false;
+      for (int c = 0; c < this.chunks.length; c++) {
+         Object a = this.chunks[c];
+         Object b = other.chunks[c];
+         if (a instanceof char[] ? !(b instanceof char[]) || !Arrays.equals((char[]) a, (char[]) b)
+                                 : !(b instanceof long[]) || !Arrays.equals((long[]) a, (long[]) b)) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   @Override
+   public int hashCode() {
+      int[] hash = { 1 };
+      forEach(id -> hash[0] = 31 * hash[0] + Long.hashCode(id));
+      return hash[0];
+   }
+
+   @Override
+   public String toString() {
+      StringBuilder text = new StringBuilder("IdSet[").append(this.size).append(" ids");
+      PrimitiveIterator.OfLong ids = iterator();
+      for (int i = 0; i < 10 && ids.hasNext(); i++) {
+         text.append(i == 0 ? ": " : ", ").append(ids.nextLong());
+      }
+      return text.append(ids.hasNext() ? ", ...]" : "]").toString();
+   }
+}
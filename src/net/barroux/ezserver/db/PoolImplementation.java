@@ -0,0 +1,16 @@
+package net.barroux.ezserver.db;
+
+/**
+ * The connection pool created for the primary database and each replica of a
+ * {@link DbConfig}. Both are configured from the same BoneCPConfig.
+ */
+public enum PoolImplementation {
+   /**
+    * BoneCP (the default).
+    */
+   BONECP,
+   /**
+    * The built-in {@link EzPool}, which scales better with many threads.
+    */
+   EZPOOL
+}
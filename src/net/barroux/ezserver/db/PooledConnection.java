@@ -0,0 +1,538 @@
+package net.barroux.ezserver.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.CallableStatement;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.NClob;
+import java.sql.PreparedStatement;
+import java.sql.SQLClientInfoException;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Struct;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A connection of an {@link EzPool}, handed out as is : closing it returns it
+ * to the pool. A transaction left open is rolled back and the auto-commit and
+ * read-only flags are reset on the way back; a connection which failed is
+ * dropped instead.
+ * <p>
+ * Its statements are delegates of the driver's : their failures count as
+ * failures of the connection, their getConnection() returns this one, and
+ * they are closed when it goes back to the pool.
+ * </p>
+ */
+final class PooledConnection implements Connection {
+   static final int             IDLE       = 0;
+   static final int             IN_USE     = 1;
+   static final int             REMOVED    = -1;
+
+   final AtomicInteger          state      = new AtomicInteger(IN_USE);
+   final Connection             raw;
+   private final EzPool         pool;
+   private final boolean        defaultAutoCommit;
+   volatile long                lastUsed   = System.currentTimeMillis();
+   volatile ScheduledFuture<?>  leakWatch;
+   private final List<Delegate> statements = new ArrayList<>();
+   private boolean              borrowed;
+   private boolean              autoCommit;
+   private boolean              dirty;
+   private boolean              readOnly;
+   private boolean              broken;
+
+   PooledConnection(EzPool pool, Connection raw) throws SQLException {
+      this.pool = pool;
+      this.raw = raw;
+      this.defaultAutoCommit = raw.getAutoCommit();
+      this.autoCommit = this.defaultAutoCommit;
+      this.borrowed = true;
+   }
+
+   /**
+    * @return true if the connection was idle and now belongs to the caller
+    */
+   boolean claim() {
+      if (!this.state.compareAndSet(IDLE, IN_USE)) return false;
+      this.borrowed = true;
+      return true;
+   }
+
+   private Connection raw() throws SQLException {
+      if (!this.borrowed) throw new SQLException("Connection is closed");
+      return this.raw;
+   }
+
+   /**
+    * Marks the connection as broken when the driver reports a connection
+    * level failure (SQL state class 08).
+    */
+   private SQLException failed(SQLException e) {
+      String sqlState = e.getSQLState();
+      if (sqlState != null && sqlState.startsWith("08")) this.broken = true;
+      return e;
+   }
+
+   private <S extends Statement> S track(S statement, Class<S> type) {
+      if (!this.autoCommit) this.dirty = true;
+      Delegate delegate = new Delegate(statement);
+      this.statements.add(delegate);
+      return type.cast(Proxy.newProxyInstance(PooledConnection.class.getClassLoader(), new Class<?>[] { type }, delegate));
+   }
+
+   @Override
+   public void close() throws SQLException {
+      if (!this.borrowed) return;
+      this.borrowed = false;
+      // l'emprunteur suivant ne doit pas hériter des statements de celui-ci
+      for (Delegate delegate : this.statements) {
+         delegate.invalidate();
+      }
+      this.statements.clear();
+      try {
+         if (this.dirty && !this.broken) this.raw.rollback();
+         if (this.readOnly && !this.broken) this.raw.setReadOnly(false);
+         if (this.autoCommit != this.defaultAutoCommit && !this.broken) {
+            this.raw.setAutoCommit(this.defaultAutoCommit);
+            this.autoCommit = this.defaultAutoCommit;
+         }
+      }
+      catch (SQLException e) {
+         this.broken = true;
+      }
+      this.dirty = false;
+      this.readOnly = false;
+      this.pool.release(this, this.broken);
+   }
+
+   @Override
+   public boolean isClosed() throws SQLException {
+      return !this.borrowed || this.raw.isClosed();
+   }
+
+   @Override
+   public Statement createStatement() throws SQLException {
+      try {
+         return track(raw().createStatement(), Statement.class);
+      }
+      catch (SQLException e) {
+         throw failed(e);
+      }
+   }
+
+   @Override
+   public PreparedStatement prepareStatement(String sql) throws SQLException {
+      try {
+         return track(raw().prepareStatement(sql), PreparedStatement.class);
+      }
+      catch (SQLException e) {
+         throw failed(e);
+      }
+   }
+
+   @Override
+   public CallableStatement prepareCall(String sql) throws SQLException {
+      try {
+         return track(raw().prepareCall(sql), CallableStatement.class);
+      }
+      catch (SQLException e) {
+         throw failed(e);
+      }
+   }
+
+   @Override
+   public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
+      try {
+         return track(raw().createStatement(resultSetType, resultSetConcurrency), Statement.class);
+      }
+      catch (SQLException e) {
+         throw failed(e);
+      }
+   }
+
+   @Override
+   public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+      try {
+         return track(raw().prepareStatement(sql, resultSetType, resultSetConcurrency), PreparedStatement.class);
+      }
+      catch (SQLException e) {
+         throw failed(e);
+      }
+   }
+
+   @Override
+   public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+      try {
+         return track(raw().prepareCall(sql, resultSetType, resultSetConcurrency), CallableStatement.class);
+      }
+      catch (SQLException e) {
+         throw failed(e);
+      }
+   }
+
+   @Override
+   public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+      try {
+         return track(raw().createStatement(resultSetType, resultSetConcurrency, resultSetHoldability), Statement.class);
+      }
+      catch (SQLException e) {
+         throw failed(e);
+      }
+   }
+
+   @Override
+   public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability)
+            throws SQLException {
+      try {
+         return track(raw().prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability), PreparedStatement.class);
+      }
+      catch (SQLException e) {
+         throw failed(e);
+      }
+   }
+
+   @Override
+   public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability)
+            throws SQLException {
+      try {
+         return track(raw().prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability), CallableStatement.class);
+      }
+      catch (SQLException e) {
+         throw failed(e);
+      }
+   }
+
+   @Override
+   public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+      try {
+         return track(raw().prepareStatement(sql, autoGeneratedKeys), PreparedStatement.class);
+      }
+      catch (SQLException e) {
+         throw failed(e);
+      }
+   }
+
+   @Override
+   public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
+      try {
+         return track(raw().prepareStatement(sql, columnIndexes), PreparedStatement.class);
+      }
+      catch (SQLException e) {
+         throw failed(e);
+      }
+   }
+
+   @Override
+   public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
+      try {
+         return track(raw().prepareStatement(sql, columnNames), PreparedStatement.class);
+      }
+      catch (SQLException e) {
+         throw failed(e);
+      }
+   }
+
+   @Override
+   public void setAutoCommit(boolean autoCommit) throws SQLException {
+      try {
+         raw().setAutoCommit(autoCommit);
+         this.autoCommit = autoCommit;
+         if (autoCommit) this.dirty = false;
+      }
+      catch (SQLException e) {
+         throw failed(e);
+      }
+   }
+
+   @Override
+   public boolean getAutoCommit() throws SQLException {
+      raw();
+      return this.autoCommit;
+   }
+
+   @Override
+   public void commit() throws SQLException {
+      try {
+         raw().commit();
+         this.dirty = false;
+      }
+      catch (SQLException e) {
+         throw failed(e);
+      }
+   }
+
+   @Override
+   public void rollback() throws SQLException {
+      try {
+         raw().rollback();
+         this.dirty = false;
+      }
+      catch (SQLException e) {
+         throw failed(e);
+      }
+   }
+
+   @Override
+   public void setReadOnly(boolean readOnly) throws SQLException {
+      try {
+         raw().setReadOnly(readOnly);
+         this.readOnly = readOnly;
+      }
+      catch (SQLException e) {
+         throw failed(e);
+      }
+   }
+
+   @Override
+   public boolean isReadOnly() throws SQLException {
+      return raw().isReadOnly();
+   }
+
+   @Override
+   public String nativeSQL(String sql) throws SQLException {
+      return raw().nativeSQL(sql);
+   }
+
+   @Override
+   public DatabaseMetaData getMetaData() throws SQLException {
+      return raw().getMetaData();
+   }
+
+   @Override
+   public void setCatalog(String catalog) throws SQLException {
+      raw().setCatalog(catalog);
+   }
+
+   @Override
+   public String getCatalog() throws SQLException {
+      return raw().getCatalog();
+   }
+
+   @Override
+   public void setTransactionIsolation(int level) throws SQLException {
+      raw().setTransactionIsolation(level);
+   }
+
+   @Override
+   public int getTransactionIsolation() throws SQLException {
+      return raw().getTransactionIsolation();
+   }
+
+   @Override
+   public SQLWarning getWarnings() throws SQLException {
+      return raw().getWarnings();
+   }
+
+   @Override
+   public void clearWarnings() throws SQLException {
+      raw().clearWarnings();
+   }
+
+   @Override
+   public Map<String, Class<?>> getTypeMap() throws SQLException {
+      return raw().getTypeMap();
+   }
+
+   @Override
+   public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
+      raw().setTypeMap(map);
+   }
+
+   @Override
+   public void setHoldability(int holdability) throws SQLException {
+      raw().setHoldability(holdability);
+   }
+
+   @Override
+   public int getHoldability() throws SQLException {
+      return raw().getHoldability();
+   }
+
+   @Override
+   public Savepoint setSavepoint() throws SQLException {
+      return raw().setSavepoint();
+   }
+
+   @Override
+   public Savepoint setSavepoint(String name) throws SQLException {
+      return raw().setSavepoint(name);
+   }
+
+   @Override
+   public void rollback(Savepoint savepoint) throws SQLException {
+      raw().rollback(savepoint);
+   }
+
+   @Override
+   public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+      raw().releaseSavepoint(savepoint);
+   }
+
+   @Override
+   public Clob createClob() throws SQLException {
+      return raw().createClob();
+   }
+
+   @Override
+   public Blob createBlob() throws SQLException {
+      return raw().createBlob();
+   }
+
+   @Override
+   public NClob createNClob() throws SQLException {
+      return raw().createNClob();
+   }
+
+   @Override
+   public SQLXML createSQLXML() throws SQLException {
+      return raw().createSQLXML();
+   }
+
+   @Override
+   public boolean isValid(int timeout) throws SQLException {
+      return raw().isValid(timeout);
+   }
+
+   @Override
+   public void setClientInfo(String name, String value) throws SQLClientInfoException {
+      this.raw.setClientInfo(name, value);
+   }
+
+   @Override
+   public void setClientInfo(Properties properties) throws SQLClientInfoException {
+      this.raw.setClientInfo(properties);
+   }
+
+   @Override
+   public String getClientInfo(String name) throws SQLException {
+      return raw().getClientInfo(name);
+   }
+
+   @Override
+   public Properties getClientInfo() throws SQLException {
+      return raw().getClientInfo();
+   }
+
+   @Override
+   public Array createArrayOf(String typeName, Object[] elements) throws SQLException {
+      return raw().createArrayOf(typeName, elements);
+   }
+
+   @Override
+   public Struct createStruct(String typeName, Object[] attributes) throws SQLException {
+      return raw().createStruct(typeName, attributes);
+   }
+
+   @Override
+   public void setSchema(String schema) throws SQLException {
+      raw().setSchema(schema);
+   }
+
+   @Override
+   public String getSchema() throws SQLException {
+      return raw().getSchema();
+   }
+
+   @Override
+   public void abort(Executor executor) throws SQLException {
+      this.broken = true;
+      raw().abort(executor);
+      close();
+   }
+
+   @Override
+   public void setNetworkTimeout(Executor executor, int milliseconds) throws SQLException {
+      raw().setNetworkTimeout(executor, milliseconds);
+   }
+
+   @Override
+   public int getNetworkTimeout() throws SQLException {
+      return raw().getNetworkTimeout();
+   }
+
+   @Override
+   public <T> T unwrap(Class<T> iface) throws SQLException {
+      if (iface.isInstance(this)) return iface.cast(this);
+      return raw().unwrap(iface);
+   }
+
+   @Override
+   public boolean isWrapperFor(Class<?> iface) throws SQLException {
+      return iface.isInstance(this) || raw().isWrapperFor(iface);
+   }
+
+   /**
+    * The handler of a statement handed out by the connection.
+    */
+   private final class Delegate implements InvocationHandler {
+      private final Statement  raw;
+      private volatile boolean closed;
+
+      Delegate(Statement raw) {
+         this.raw = raw;
+      }
+
+      void invalidate() {
+         this.closed = true;
+         try {
+            this.raw.close();
+         }
+         catch (SQLException e) {
+            // la connexion part de toute façon
+         }
+      }
+
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+         switch (method.getName()) {
+            case "equals":
+               return proxy == args[0];
+            case "hashCode":
+               return System.identityHashCode(proxy);
+            case "toString":
+               return "Pooled" + this.raw;
+            case "isClosed":
+               return this.closed || this.raw.isClosed();
+            case "close":
+               if (this.closed) return null;
+               this.closed = true;
+               statements.remove(this);
+               break;
+            case "getConnection":
+               if (this.closed) throw new SQLException("Statement is closed");
+               return PooledConnection.this;
+            case "unwrap":
+               if (((Class<?>) args[0]).isInstance(proxy)) return proxy;
+               break;
+            case "isWrapperFor":
+               if (((Class<?>) args[0]).isInstance(proxy)) return true;
+               break;
+            default:
+               if (this.closed) throw new SQLException("Statement is closed");
+         }
+         try {
+            return method.invoke(this.raw, args);
+         }
+         catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) throw failed((SQLException) cause);
+            throw cause;
+         }
+      }
+   }
+}
@@ -0,0 +1,254 @@
+package net.barroux.ezserver.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.apache.commons.dbutils.QueryRunner;
+import org.apache.commons.dbutils.ResultSetHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The threads running the asynchronous queries of {@link EzQr}, configured
+ * with {@link DbConfig#asyncExecutor(int, int)} and shut down with
+ * {@link DbHelper#shutdown(long)}.
+ * <p>
+ * Each query takes its own connection from the read DataSource (see
+ * {@link DbHelper#getReadDs()}), outside of the transaction of the request
+ * which launched it. The queue is bounded : once it is full, a query is
+ * either rejected, its future failing with a RejectedExecutionException, or
+ * run by the calling thread if {@link DbConfig#asyncBackpressure(boolean)}
+ * is set. Cancelling the future of a query removes it from the queue, or
+ * cancels its JDBC statement if it is already running.
+ * </p>
+ */
+public final class QueryExecutor {
+   private static final Logger      log          = LoggerFactory.getLogger(QueryExecutor.class);
+   private static final QueryRunner RUNNER       = new EzQr.FsQueryRunner();
+
+   private final ThreadPoolExecutor executor;
+   private final DataSource         ds;
+   private final boolean            backpressure;
+   private final Set<Query<?>>      running      = ConcurrentHashMap.newKeySet();
+   private final LongAdder          submitted    = new LongAdder();
+   private final LongAdder          rejected     = new LongAdder();
+   private final LongAdder          callerRuns   = new LongAdder();
+   private final LongAdder          executed     = new LongAdder();
+   private final LongAdder          waitNanos    = new LongAdder();
+   private final LongAdder          executeNanos = new LongAdder();
+   private final AtomicLong         maxWaitNanos = new AtomicLong();
+
+   QueryExecutor(DataSource ds, int threads, int queueSize, boolean backpressure) {
+      AtomicInteger count = new AtomicInteger();
+      this.ds = ds;
+      this.backpressure = backpressure;
+      this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize), r -> {
+         Thread thread = new Thread(r, "ezqr-async-" + count.incrementAndGet());
+         thread.setDaemon(true);
+         return thread;
+      }, this::overflow);
+      this.executor.allowCoreThreadTimeOut(true);
+   }
+
+   <V> CompletableFuture<V> submit(String sql, ResultSetHandler<V> rsh, Object... params) {
+      Query<V> query = new Query<>(sql, rsh, params);
+      this.submitted.increment();
+      this.executor.execute(query);
+      return query;
+   }
+
+   private void overflow(Runnable r, ThreadPoolExecutor pool) {
+      Query<?> query = (Query<?>) r;
+      if (this.backpressure && !pool.isShutdown()) {
+         // la file est pleine : le demandeur attend son résultat sur place
+         this.callerRuns.increment();
+         query.run();
+         return;
+      }
+      this.rejected.increment();
+      String reason = pool.isShutdown() ? "shut down" : "full";
+      query.completeExceptionally(new RejectedExecutionException("Async query queue is " + reason + " : " + query.sql));
+   }
+
+   /**
+    * Stops accepting queries and waits for the queued and running ones, for
+    * the grace delay at most, then cancels those still running.
+    */
+   void shutdown(long graceMillis) {
+      this.executor.shutdown();
+      try {
+         if (this.executor.awaitTermination(graceMillis, TimeUnit.MILLISECONDS)) return;
+      }
+      catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      for (Runnable r : this.executor.shutdownNow()) {
+         ((Query<?>) r).cancel(false);
+      }
+      // l'interruption des threads n'arrête pas un driver jdbc
+      for (Query<?> query : this.running) {
+         query.cancel(false);
+      }
+      log.warn("Async queries still running after {}ms, cancelled", graceMillis);
+   }
+
+   /**
+    * @return the number of queries waiting for a thread
+    */
+   public int getQueueDepth() {
+      return this.executor.getQueue().size();
+   }
+
+   /**
+    * @return the number of queries being run
+    */
+   public int getActive() {
+      return this.executor.getActiveCount();
+   }
+
+   public long getSubmitted() {
+      return this.submitted.sum();
+   }
+
+   /**
+    * @return the number of queries failed because the queue was full
+    */
+   public long getRejected() {
+      return this.rejected.sum();
+   }
+
+   /**
+    * @return the number of queries run by the calling thread because the
+    *         queue was full
+    */
+   public long getCallerRuns() {
+      return this.callerRuns.sum();
+   }
+
+   /**
+    * @return the mean time spent in the queue, in microseconds
+    */
+   public double getMeanWaitMicros() {
+      long count = this.executed.sum();
+      return count == 0 ? 0 : this.waitNanos.sum() / 1000.0 / count;
+   }
+
+   /**
+    * @return the longest time spent in the queue, in microseconds
+    */
+   public long getMaxWaitMicros() {
+      return this.maxWaitNanos.get() / 1000;
+   }
+
+   /**
+    * @return the mean time spent running a query, connection included, in
+    *         microseconds
+    */
+   public double getMeanExecuteMicros() {
+      long count = this.executed.sum();
+      return count == 0 ? 0 : this.executeNanos.sum() / 1000.0 / count;
+   }
+
+   @Override
+   public String toString() {
+      return String.format("QueryExecutor[threads=%d active=%d queued=%d submitted=%d rejected=%d callerRuns=%d meanWait=%.1fµs maxWait=%dµs meanExecute=%.1fµs]",
+                           this.executor.getMaximumPoolSize(),
+                           getActive(),
+                           getQueueDepth(),
+                           getSubmitted(),
+                           getRejected(),
+                           getCallerRuns(),
+                           getMeanWaitMicros(),
+                           getMaxWaitMicros(),
+                           getMeanExecuteMicros());
+   }
+
+   /**
+    * The future of a query, and its task.
+    */
+   private final class Query<V> extends CompletableFuture<V> implements Runnable {
+      private final String               sql;
+      private final ResultSetHandler<V>  rsh;
+      private final Object[]             params;
+      private final long                 queued = System.nanoTime();
+      private volatile PreparedStatement stmt;
+
+      Query(String sql, ResultSetHandler<V> rsh, Object[] params) {
+         this.sql = sql;
+         this.rsh = rsh;
+         this.params = params;
+      }
+
+      @Override
+      public void run() {
+         if (isDone()) return;
+         long start = System.nanoTime();
+         long waited = start - this.queued;
+         waitNanos.add(waited);
+         maxWaitNanos.accumulateAndGet(waited, Math::max);
+         running.add(this);
+         Connection conn = null;
+         PreparedStatement stmt = null;
+         ResultSet rs = null;
+         try {
+            conn = ds.getConnection();
+            stmt = conn.prepareStatement(this.sql);
+            stmt.setFetchSize(EzQr.FETCH_SIZE);
+            RUNNER.fillStatement(stmt, this.params);
+            this.stmt = stmt;
+            // annulée pendant la préparation : cancel() n'a pas vu le statement
+            if (isDone()) return;
+            rs = stmt.executeQuery();
+            complete(this.rsh.handle(rs));
+         }
+         catch (SQLException e) {
+            if (!isCancelled()) {
+               log.error("Error while executing request " + e.getMessage(), e);
+               completeExceptionally(new DbException("Can't execute request " + this.sql, e));
+            }
+         }
+         catch (RuntimeException | Error e) {
+            completeExceptionally(e);
+         }
+         finally {
+            this.stmt = null;
+            running.remove(this);
+            DbUtils.closeQuietly(conn, stmt, rs);
+            executed.increment();
+            executeNanos.add(System.nanoTime() - start);
+         }
+      }
+
+      @Override
+      public boolean cancel(boolean mayInterruptIfRunning) {
+         if (!super.cancel(mayInterruptIfRunning)) return false;
+         PreparedStatement stmt = this.stmt;
+         if (stmt == null) {
+            executor.remove(this);
+            return true;
+         }
+         try {
+            stmt.cancel();
+         }
+         catch (SQLException e) {
+            log.warn("Could not cancel async query " + this.sql, e);
+         }
+         return true;
+      }
+   }
+}
@@ -0,0 +1,64 @@
+package net.barroux.ezserver.db;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * DataSource taking each connection from the replica chosen by
+ * {@link DbHelper#readSource()}, for the queries running outside of the
+ * transaction of a request. Resolved on each call, so that it can be created
+ * before {@link DbHelper#init(DbConfig)}.
+ */
+final class ReplicaDataSource implements DataSource {
+
+   @Override
+   public Connection getConnection() throws SQLException {
+      return DbHelper.readSource().getConnection();
+   }
+
+   @Override
+   public Connection getConnection(String username, String password) throws SQLException {
+      throw new SQLFeatureNotSupportedException("Replica connections use the credentials of their pool");
+   }
+
+   @Override
+   public PrintWriter getLogWriter() throws SQLException {
+      return DbHelper.getDs().getLogWriter();
+   }
+
+   @Override
+   public void setLogWriter(PrintWriter out) throws SQLException {
+      throw new SQLFeatureNotSupportedException("Configure the log writer on the pools");
+   }
+
+   @Override
+   public void setLoginTimeout(int seconds) throws SQLException {
+      throw new SQLFeatureNotSupportedException("Configure the login timeout on the pools");
+   }
+
+   @Override
+   public int getLoginTimeout() throws SQLException {
+      return DbHelper.getDs().getLoginTimeout();
+   }
+
+   @Override
+   public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+      throw new SQLFeatureNotSupportedException();
+   }
+
+   @Override
+   public <T> T unwrap(Class<T> iface) throws SQLException {
+      if (iface.isInstance(this)) return iface.cast(this);
+      throw new SQLException("Not a wrapper for " + iface.getName());
+   }
+
+   @Override
+   public boolean isWrapperFor(Class<?> iface) {
+      return iface.isInstance(this);
+   }
+}
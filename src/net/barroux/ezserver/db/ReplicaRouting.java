@@ -0,0 +1,17 @@
+package net.barroux.ezserver.db;
+
+/**
+ * How read-only connections are spread over the replicas of a
+ * {@link DbConfig}.
+ */
+public enum ReplicaRouting {
+   /**
+    * Each replica in turn.
+    */
+   ROUND_ROBIN,
+   /**
+    * The replica with the fewest leased connections, which favours the
+    * replicas answering faster.
+    */
+   LEAST_BUSY
+}
@@ -0,0 +1,425 @@
+package net.barroux.ezserver.db;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.PersistenceConfiguration;
+import net.sf.ehcache.config.PersistenceConfiguration.Strategy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A region of the query result cache of {@link EzQr} (see
+ * {@link EzQr#queryCached(String, String, String, org.apache.commons.dbutils.ResultSetHandler, Object...)}
+ * ), stored in the Ehcache cache named {@value #PREFIX} followed by the name of
+ * the region, configured by ehcache.xml like any other.
+ * <p>
+ * Entries are keyed by result shape, sql and parameters, and remember the
+ * version of each table the query reads, taken from its from and join
+ * clauses. Each table written by {@link EzQr#update(String, Object...)},
+ * {@link EzQr#updateByBatch(String, Object[][])}, a {@link BatchWriter} or the
+ * jOOQ context of {@link DbHelper#db()} has its version incremented once the
+ * transaction commits, which discards the entries read before : a rollback
+ * leaves them valid. Writes made otherwise (statements run on
+ * {@link DbHelper#conn()}, stored procedures, triggers) must be declared with
+ * {@link #invalidate(String...)}.
+ * </p>
+ * <p>
+ * A transaction never reads from the cache the tables it has written and not
+ * yet committed, nor fills it with them. Cached results are shared between
+ * threads : they must not be modified.
+ * </p>
+ * <p>
+ * The versions are those of the primary : the results read on a replica (see
+ * {@link DbConfig#replicas(com.jolbox.bonecp.BoneCPConfig...)}), which may not
+ * have caught up with the last commits yet, are returned but never cached.
+ * Read-only transactions do use the entries filled by the others.
+ * </p>
+ */
+public final class ResultCache {
+   static final String                                     PREFIX   = "net.barroux.ezserver.db.results.";
+   private static final Logger                             log      = LoggerFactory.getLogger(ResultCache.class);
+   // une écriture dont on ne sait pas dire la table invalide tout
+   private static final String                             ALL      = "*";
+   private static final String                             KEYWORDS = "where|group|order|having|union|left|right|inner|outer|full|cross|natural|join|on|using|limit|offset|fetch|for|connect|start|window|minus|except|intersect";
+   // une table, avec son alias éventuel, qui ne peut pas être un mot clé
+   private static final String                             TABLE    = "[\\w.$\"]+(?:\\s+(?:as\\s+)?(?!(?:" + KEYWORDS + ")\\b)\\w+)?";
+   // from, join, ou virgule après une sous-requête : from (select ...) q, t
+   private static final Pattern                            READS    = Pattern.compile("(?:\\b(?:from|join)\\s+|\\)\\s*(?:as\\s+)?\\w+\\s*,\\s*)(" + TABLE + "(?:\\s*,\\s*" + TABLE + ")*)",
+                                                                                      Pattern.CASE_INSENSITIVE);
+   private static final Pattern                            WRITES   = Pattern.compile("^\\s*(?:insert\\s+into|update|delete\\s+from|delete|merge\\s+into|truncate\\s+table|drop\\s+table|alter\\s+table)\\s+([\\w.$\"]+)",
+                                                                                      Pattern.CASE_INSENSITIVE);
+   private static final ConcurrentMap<String, ResultCache> REGIONS  = new ConcurrentHashMap<>();
+   private static final ConcurrentMap<String, AtomicLong>  VERSIONS = new ConcurrentHashMap<>();
+   private static final ConcurrentMap<String, String[]>    TABLES   = new ConcurrentHashMap<>();
+   private static final int                                MAX_SQLS = 10_000;
+   private static final ThreadLocal<Set<String>>           WRITTEN  = ThreadLocal.withInitial(HashSet::new);
+
+   private final String    name;
+   private final Ehcache   cache;
+   private final LongAdder hits     = new LongAdder();
+   private final LongAdder misses   = new LongAdder();
+   private final LongAdder bypasses = new LongAdder();
+
+   private ResultCache(String name) {
+      this.name = name;
+      CacheManager manager = CacheManager.create();
+      if (manager.cacheExists(PREFIX + name)) {
+         this.cache = manager.getEhcache(PREFIX + name);
+         return;
+      }
+      // les résultats ne sont pas sérialisables : jamais de débordement sur
+      // disque, quelle que soit la configuration par défaut
+      CacheConfiguration defaults = manager.getConfiguration().getDefaultCacheConfiguration();
+      CacheConfiguration cfg = new CacheConfiguration(PREFIX + name, (int) defaults.getMaxEntriesLocalHeap())
+               .eternal(defaults.isEternal())
+               .timeToLiveSeconds(defaults.getTimeToLiveSeconds())
+               .timeToIdleSeconds(defaults.getTimeToIdleSeconds())
+               .memoryStoreEvictionPolicy(defaults.getMemoryStoreEvictionPolicy())
+               .persistence(new PersistenceConfiguration().strategy(Strategy.NONE));
+      this.cache = manager.addCacheIfAbsent(new Cache(cfg));
+   }
+
+   /**
+    * @return the region, created in memory with the defaults of ehcache.xml
+    *         the first time it is used, unless configured there
+    */
+   public static ResultCache region(String name) {
+      return REGIONS.computeIfAbsent(name, ResultCache::new);
+   }
+
+   /**
+    * @return the regions used so far
+    */
+   public static Collection<ResultCache> getRegions() {
+      return Collections.unmodifiableCollection(REGIONS.values());
+   }
+
+   /**
+    * Discards the cached results reading the tables (all of them if none is
+    * given), for writes made without EzQr. Takes effect immediately : within
+    * a transaction, call it after the commit.
+    */
+   public static void invalidate(String... tables) {
+      bump(tables.length == 0 ? Collections.singleton(ALL) : normalize(Arrays.asList(tables)));
+   }
+
+   /**
+    * Records a write of the current thread, applied to the cache at the next
+    * {@link #committed()}, or immediately when the connection is in
+    * auto-commit.
+    */
+   static void written(String sql, boolean autoCommit) {
+      Matcher m = WRITES.matcher(sql);
+      String table = m.find() ? normalize(m.group(1)) : ALL;
+      if (autoCommit) bump(Collections.singleton(table));
+      else WRITTEN.get().add(table);
+   }
+
+   static void committed() {
+      Set<String> written = WRITTEN.get();
+      if (written.isEmpty()) return;
+      bump(written);
+      written.clear();
+   }
+
+   /**
+    * Forgets the writes of the current thread, rolled back.
+    */
+   static void discard() {
+      WRITTEN.remove();
+   }
+
+   private static void bump(Collection<String> tables) {
+      for (String table : tables) {
+         version(table).incrementAndGet();
+      }
+      log.debug("Cached results of {} invalidated", tables);
+   }
+
+   private static AtomicLong version(String table) {
+      return VERSIONS.computeIfAbsent(table, t -> new AtomicLong());
+   }
+
+   /**
+    * @return the cached result of the query, or the one of the loader, cached
+    *         if no table it reads has been written meanwhile
+    */
+   @SuppressWarnings("unchecked")
+   <V> V get(String shape, String sql, Object[] params, Supplier<V> loader) {
+      String[] tables = TABLES.get(sql);
+      if (tables == null) {
+         // sql construites à la volée : on repart de zéro plutôt que grossir
+         if (TABLES.size() >= MAX_SQLS) TABLES.clear();
+         tables = tablesOf(sql);
+         TABLES.put(sql, tables);
+      }
+      Set<String> written = WRITTEN.get();
+      if (!written.isEmpty() && !Collections.disjoint(written, Arrays.asList(tables))) {
+         this.bypasses.increment();
+         return loader.get();
+      }
+      Key key = new Key(shape, sql, params);
+      Element element = this.cache.get(key);
+      if (element != null) {
+         Entry entry = (Entry) element.getObjectValue();
+         if (entry.isCurrent()) {
+            this.hits.increment();
+            return (V) entry.value;
+         }
+      }
+      this.misses.increment();
+      // versions lues avant la requête : une écriture concurrente rend
+      // l'entrée aussitôt périmée
+      long[] versions = versionsOf(tables);
+      V value = loader.get();
+      // un replica en retard donnerait, sous les nouvelles versions, les lignes d'avant l'écriture
+      if (DbHelper.onReplica()) return value;
+      this.cache.put(new Element(key, new Entry(value, tables, versions)));
+      return value;
+   }
+
+   /**
+    * @return the tables read by the sql, lower-cased and without schema,
+    *         followed by {@value #ALL} which the writes to unknown tables
+    *         invalidate
+    */
+   static String[] tablesOf(String sql) {
+      Set<String> tables = new LinkedHashSet<>();
+      Matcher m = READS.matcher(sql);
+      while (m.find()) {
+         for (String item : m.group(1).split(",")) {
+            tables.add(normalize(item.trim().split("\\s+")[0]));
+         }
+      }
+      tables.add(ALL);
+      return tables.toArray(new String[tables.size()]);
+   }
+
+   private static long[] versionsOf(String[] tables) {
+      long[] versions = new long[tables.length];
+      for (int i = 0; i < tables.length; i++) {
+         versions[i] = version(tables[i]).get();
+      }
+      return versions;
+   }
+
+   private static String normalize(String table) {
+      String name = table.replace("\"", "").toLowerCase(Locale.ROOT);
+      return name.substring(name.lastIndexOf('.') + 1);
+   }
+
+   private static Set<String> normalize(List<String> tables) {
+      Set<String> names = new HashSet<>();
+      for (String table : tables) {
+         names.add(normalize(table));
+      }
+      return names;
+   }
+
+   public String getName() {
+      return this.name;
+   }
+
+   public long getHits() {
+      return this.hits.sum();
+   }
+
+   /**
+    * @return the lookups not found, or found invalidated
+    */
+   public long getMisses() {
+      return this.misses.sum();
+   }
+
+   /**
+    * @return the queries run without the cache because their transaction had
+    *         written one of their tables
+    */
+   public long getBypasses() {
+      return this.bypasses.sum();
+   }
+
+   /**
+    * @return the hits per lookup, between 0 and 1
+    */
+   public double getHitRatio() {
+      long hits = this.hits.sum();
+      long lookups = hits + this.misses.sum();
+      return lookups == 0 ? 0 : (double) hits / lookups;
+   }
+
+   public int getSize() {
+      return this.cache.getSize();
+   }
+
+   /**
+    * @return the heap held by the results of the region, as estimated when
+    *         they were cached : iterates over the entries, for monitoring
+    *         pages only
+    */
+   public long getMemoryBytes() {
+      long bytes = 0;
+      for (Object key : this.cache.getKeys()) {
+         Element element = this.cache.getQuiet(key);
+         if (element != null) bytes += ((Entry) element.getObjectValue()).bytes;
+      }
+      return bytes;
+   }
+
+   /**
+    * @return an estimate of the heap held by a result : rows as arrays, lists
+    *         or maps of values, beans walked through their fields. Ehcache's
+    *         own sizeOf needs reflective access to the jdk classes, refused
+    *         by recent jvms.
+    */
+   static long sizeOf(Object value, int depth) {
+      if (value == null) return 0;
+      if (value instanceof String) return 40 + 2 * ((String) value).length();
+      if (value instanceof BigDecimal || value instanceof BigInteger) return 64;
+      if (value instanceof Number || value instanceof Boolean || value instanceof Character || value instanceof Enum) return 16;
+      if (value instanceof java.util.Date) return 32;
+      Class<?> type = value.getClass();
+      if (type.isArray()) {
+         int length = Array.getLength(value);
+         if (type.getComponentType().isPrimitive()) return 16 + length * 8L;
+         long bytes = 16 + 4L * length;
+         for (int i = 0; i < length && depth > 0; i++) {
+            bytes += sizeOf(Array.get(value, i), depth - 1);
+         }
+         return bytes;
+      }
+      if (value instanceof Collection) {
+         long bytes = 40 + 16L * ((Collection<?>) value).size();
+         if (depth > 0) {
+            for (Object item : (Collection<?>) value) {
+               bytes += sizeOf(item, depth - 1);
+            }
+         }
+         return bytes;
+      }
+      if (value instanceof Map) {
+         long bytes = 48 + 32L * ((Map<?, ?>) value).size();
+         if (depth > 0) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+               bytes += sizeOf(entry.getKey(), depth - 1) + sizeOf(entry.getValue(), depth - 1);
+            }
+         }
+         return bytes;
+      }
+      long bytes = 16;
+      boolean walk = depth > 0 && !type.getName().startsWith("java");
+      for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+         for (Field field : c.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers())) continue;
+            bytes += field.getType().isPrimitive() ? 8 : 4;
+            if (!walk || field.getType().isPrimitive()) continue;
+            try {
+               field.setAccessible(true);
+               bytes += sizeOf(field.get(value), depth - 1);
+            }
+            catch (RuntimeException | IllegalAccessException e) {
+               // champ inaccessible : compté pour sa seule référence
+            }
+         }
+      }
+      return bytes;
+   }
+
+   /**
+    * Removes every entry of the region.
+    */
+   public void clear() {
+      this.cache.removeAll();
+   }
+
+   @Override
+   public String toString() {
+      return String.format("ResultCache[%s size=%d hits=%d misses=%d bypasses=%d hitRatio=%.2f]",
+                           this.name,
+                           getSize(),
+                           getHits(),
+                           getMisses(),
+                           getBypasses(),
+                           getHitRatio());
+   }
+
+   /**
+    * The value of an entry, with the versions of the tables it was read from.
+    */
+   private static final class Entry {
+      final Object   value;
+      final String[] tables;
+      final long[]   versions;
+      final long     bytes;
+
+      Entry(Object value, String[] tables, long[] versions) {
+         this.value = value;
+         this.tables = tables;
+         this.versions = versions;
+         this.bytes = sizeOf(value, 4);
+      }
+
+      boolean isCurrent() {
+         for (int i = 0; i < this.tables.length; i++) {
+            if (version(this.tables[i]).get() != this.versions[i]) return false;
+         }
+         return true;
+      }
+   }
+
+   /**
+    * The shape of the result (handler, bean), the sql and the parameters.
+    */
+   private static final class Key {
+      private final String   shape;
+      private final String   sql;
+      private final Object[] params;
+      private final int      hash;
+
+      Key(String shape, String sql, Object[] params) {
+         this.shape = shape;
+         this.sql = sql;
+         this.params = params == null ? new Object[0] : params;
+         this.hash = 31 * (31 * shape.hashCode() + sql.hashCode()) + Arrays.deepHashCode(this.params);
+      }
+
+      @Override
+      public boolean equals(Object obj) {
+         if (this == obj) return true;
+         if (!(obj instanceof Key)) return false;
+         Key other = (Key) obj;
+         return this.hash == other.hash && this.shape.equals(other.shape) && this.sql.equals(other.sql) && Arrays.deepEquals(this.params, other.params);
+      }
+
+      @Override
+      public int hashCode() {
+         return this.hash;
+      }
+   }
+}
@@ -0,0 +1,244 @@
+package net.barroux.ezserver.db;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+import org.apache.commons.dbutils.ResultSetHandler;
+
+/**
+ * Writes a ResultSet row by row as a json array of objects (one per row,
+ * keyed by column label like {@link EzQr#queryAllInListOfMap}) or as csv with
+ * a header line, without ever holding more than the current row.
+ *
+ * The output is utf-8, written through a single buffer of
+ * {@value #BUFFER_SIZE} chars : each time it fills, a chunk goes to the
+ * client. A failing write (client gone) stops the iteration and is rethrown
+ * as an UncheckedIOException.
+ */
+final class ResultSetStreamer implements ResultSetHandler<Long> {
+   static final int BUFFER_SIZE = 32 * 1024;
+
+   enum Format {
+      JSON, CSV
+   }
+
+   private static final int   TEXT    = 0;
+   private static final int   NUMBER  = 1;
+   private static final int   DECIMAL = 2;
+   private static final int   BOOLEAN = 3;
+   private static final int   DATE    = 4;
+   private static final int   TIME    = 5;
+
+   private final Format       format;
+   private final OutputStream out;
+   private final char[]       buffer  = new char[BUFFER_SIZE];
+   private Writer             writer;
+   private int                position;
+   private long               rows;
+
+   ResultSetStreamer(Format format, OutputStream out) {
+      this.format = format;
+      this.out = out;
+   }
+
+   @Override
+   public Long handle(ResultSet rs) throws SQLException {
+      ResultSetMetaData md = rs.getMetaData();
+      int columns = md.getColumnCount();
+      String[] labels = new String[columns];
+      int[] kinds = new int[columns];
+      for (int i = 0; i < columns; i++) {
+         labels[i] = md.getColumnLabel(i + 1);
+         kinds[i] = kindOf(md.getColumnType(i + 1));
+      }
+      writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+      try {
+         if (format == Format.JSON) {
+            write('[');
+         }
+         else {
+            for (int i = 0; i < columns; i++) {
+               if (i > 0) write(',');
+               writeCsv(labels[i]);
+            }
+            write("\r\n");
+         }
+         while (rs.next()) {
+            if (format == Format.JSON) writeJsonRow(rs, labels, kinds, rows > 0);
+            else writeCsvRow(rs, kinds);
+            rows++;
+         }
+         if (format == Format.JSON) write(']');
+         flush();
+         writer.flush();
+      }
+      catch (IOException e) {
+         throw new UncheckedIOException("Export aborted after " + rows + " rows", e);
+      }
+      return rows;
+   }
+
+   /**
+    * @return the number of rows written so far
+    */
+   long getRows() {
+      return rows;
+   }
+
+   private void writeJsonRow(ResultSet rs, String[] labels, int[] kinds, boolean next) throws SQLException, IOException {
+      write(next ? ",{" : "{");
+      for (int i = 0; i < labels.length; i++) {
+         if (i > 0) write(',');
+         writeJsonString(labels[i]);
+         write(':');
+         String value = valueOf(rs, i + 1, kinds[i]);
+         if (value == null) write("null");
+         else if (kinds[i] == NUMBER || kinds[i] == DECIMAL || kinds[i] == BOOLEAN) write(value);
+         else writeJsonString(value);
+      }
+      write('}');
+   }
+
+   private void writeCsvRow(ResultSet rs, int[] kinds) throws SQLException, IOException {
+      for (int i = 0; i < kinds.length; i++) {
+         if (i > 0) write(',');
+         String value = valueOf(rs, i + 1, kinds[i]);
+         if (value != null) writeCsv(value);
+      }
+      write("\r\n");
+   }
+
+   /**
+    * @return the value of the column as written in the output, null for sql
+    *         NULL and for non finite floating point numbers
+    */
+   private static String valueOf(ResultSet rs, int column, int kind) throws SQLException {
+      switch (kind) {
+         case DECIMAL:
+            double d = rs.getDouble(column);
+            return rs.wasNull() || Double.isNaN(d) || Double.isInfinite(d) ? null : Double.toString(d);
+         case BOOLEAN:
+            boolean b = rs.getBoolean(column);
+            return rs.wasNull() ? null : b ? "true" : "false";
+         case DATE:
+            Date date = rs.getDate(column);
+            return date == null ? null : date.toLocalDate().toString();
+         case TIME:
+            Timestamp ts = rs.getTimestamp(column);
+            return ts == null ? null : ts.toLocalDateTime().toString();
+         default:
+            return rs.getString(column);
+      }
+   }
+
+   private static int kindOf(int sqlType) {
+      switch (sqlType) {
+         case Types.TINYINT:
+         case Types.SMALLINT:
+         case Types.INTEGER:
+         case Types.BIGINT:
+         case Types.NUMERIC:
+         case Types.DECIMAL:
+            return NUMBER;
+         case Types.REAL:
+         case Types.FLOAT:
+         case Types.DOUBLE:
+            return DECIMAL;
+         case Types.BIT:
+         case Types.BOOLEAN:
+            return BOOLEAN;
+         case Types.DATE:
+            return DATE;
+         case Types.TIMESTAMP:
+         case Types.TIMESTAMP_WITH_TIMEZONE:
+            return TIME;
+         default:
+            return TEXT;
+      }
+   }
+
+   private void writeJsonString(String s) throws IOException {
+      write('"');
+      for (int i = 0, n = s.length(); i < n; i++) {
+         char c = s.charAt(i);
+         switch (c) {
+            case '"':
+               write("\\\"");
+               break;
+            case '\\':
+               write("\\\\");
+               break;
+            case '\n':
+               write("\\n");
+               break;
+            case '\r':
+               write("\\r");
+               break;
+            case '\t':
+               write("\\t");
+               break;
+            default:
+               if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                  write("\\u");
+                  write(Character.forDigit(c >> 12, 16));
+                  write(Character.forDigit((c >> 8) & 0xf, 16));
+                  write(Character.forDigit((c >> 4) & 0xf, 16));
+                  write(Character.forDigit(c & 0xf, 16));
+               }
+               else {
+                  write(c);
+               }
+         }
+      }
+      write('"');
+   }
+
+   private void writeCsv(String s) throws IOException {
+      boolean quote = false;
+      for (int i = 0, n = s.length(); i < n && !quote; i++) {
+         char c = s.charAt(i);
+         quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+      }
+      if (!quote) {
+         write(s);
+         return;
+      }
+      write('"');
+      for (int i = 0, n = s.length(); i < n; i++) {
+         char c = s.charAt(i);
+         if (c == '"') write('"');
+         write(c);
+      }
+      write('"');
+   }
+
+   private void write(char c) throws IOException {
+      if (position == BUFFER_SIZE) flush();
+      buffer[position++] = c;
+   }
+
+   private void write(String s) throws IOException {
+      for (int i = 0, n = s.length(); i < n;) {
+         if (position == BUFFER_SIZE) flush();
+         int count = Math.min(n - i, BUFFER_SIZE - position);
+         s.getChars(i, i + count, buffer, position);
+         position += count;
+         i += count;
+      }
+   }
+
+   private void flush() throws IOException {
+      writer.write(buffer, 0, position);
+      position = 0;
+   }
+}
@@ -0,0 +1,335 @@
+package net.barroux.ezserver.db;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.LambdaConversionException;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+import java.util.function.ObjDoubleConsumer;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Supplier;
+
+import org.apache.commons.dbutils.ResultSetHandler;
+import org.joda.time.DateTime;
+
+/**
+ * Maps the rows of a ResultSet to beans like dbutils' BeanProcessor : each
+ * column goes to the writable property of the same name (ignoring case),
+ * through the getter of the ResultSet matching the type of the property.
+ * <p>
+ * The matching is done once per bean class and column layout, not for every
+ * row : a mapper holds, for each column, a typed read (getInt(), getLong(),
+ * getTimestamp()...) and the setter compiled into a lambda by the
+ * LambdaMetafactory, so that mapping a row is plain code the JIT can inline.
+ * The conversions (Joda DateTime like {@link JodaConverter}, java.time,
+ * enums) are also chosen when the mapper is built.
+ * </p>
+ * <p>
+ * At most {@value #MAX_LAYOUTS} column layouts are kept per bean class : past
+ * that, as for queries built with varying select lists, the mapper is built
+ * for each result set.
+ * </p>
+ */
+final class RowMapper<T> {
+   private static final int                                             MAX_LAYOUTS = 64;
+   private static final MethodHandles.Lookup                            LOOKUP      = MethodHandles.lookup();
+   private static final JodaConverter                                   JODA        = new JodaConverter();
+   private static final ClassValue<ConcurrentMap<String, RowMapper<?>>> MAPPERS     = new ClassValue<ConcurrentMap<String, RowMapper<?>>>() {
+      @Override
+      protected ConcurrentMap<String, RowMapper<?>> computeValue(Class<?> type) {
+         return new ConcurrentHashMap<>();
+      }
+   };
+
+   private final Supplier<T>                                            factory;
+   private final Column[]                                               columns;
+
+   private RowMapper(Supplier<T> factory, Column[] columns) {
+      this.factory = factory;
+      this.columns = columns;
+   }
+
+   /**
+    * @return a handler mapping every row, like BeanListHandler
+    */
+   static <T> ResultSetHandler<List<T>> listHandler(Class<T> type) {
+      return rs -> {
+         RowMapper<T> mapper = of(type, rs.getMetaData());
+         List<T> rows = new ArrayList<>();
+         while (rs.next()) {
+            rows.add(mapper.map(rs));
+         }
+         return rows;
+      };
+   }
+
+   /**
+    * @return the mapper of the bean class for these columns, built on first
+    *         use
+    */
+   @SuppressWarnings("unchecked")
+   static <T> RowMapper<T> of(Class<T> type, ResultSetMetaData md) throws SQLException {
+      int count = md.getColumnCount();
+      String[] labels = new String[count];
+      StringBuilder layout = new StringBuilder();
+      for (int i = 0; i < count; i++) {
+         String label = md.getColumnLabel(i + 1);
+         if (label == null || label.isEmpty()) label = md.getColumnName(i + 1);
+         labels[i] = label;
+         // les propriétés sont cherchées sans tenir compte de la casse
+         layout.append(label.toLowerCase(Locale.ROOT)).append('\u0000');
+      }
+      ConcurrentMap<String, RowMapper<?>> mappers = MAPPERS.get(type);
+      RowMapper<?> mapper = mappers.get(layout.toString());
+      if (mapper == null) {
+         mapper = build(type, labels);
+         if (mappers.size() < MAX_LAYOUTS) {
+            RowMapper<?> previous = mappers.putIfAbsent(layout.toString(), mapper);
+            if (previous != null) mapper = previous;
+         }
+      }
+      return (RowMapper<T>) mapper;
+   }
+
+   T map(ResultSet rs) throws SQLException {
+      T bean = this.factory.get();
+      for (Column column : this.columns) {
+         column.read(rs, bean);
+      }
+      return bean;
+   }
+
+   private static <T> RowMapper<T> build(Class<T> type, String[] labels) throws SQLException {
+      Map<String, PropertyDescriptor> properties = new HashMap<>();
+      try {
+         for (PropertyDescriptor property : Introspector.getBeanInfo(type).getPropertyDescriptors()) {
+            if (property.getWriteMethod() != null) properties.put(property.getName().toLowerCase(Locale.ROOT), property);
+         }
+      }
+      catch (IntrospectionException e) {
+         throw new SQLException("Bean introspection failed: " + e.getMessage(), e);
+      }
+      List<Column> columns = new ArrayList<>();
+      try {
+         for (int i = 0; i < labels.length; i++) {
+            PropertyDescriptor property = properties.get(labels[i].toLowerCase(Locale.ROOT));
+            if (property != null) columns.add(column(type, i + 1, property));
+         }
+         return new RowMapper<>(factoryOf(type), columns.toArray(new Column[columns.size()]));
+      }
+      catch (ReflectiveOperationException e) {
+         throw new SQLException("Cannot create a mapper for " + type.getName() + ": " + e.getMessage(), e);
+      }
+   }
+
+   @SuppressWarnings("unchecked")
+   private static <T> Supplier<T> factoryOf(Class<T> type) throws ReflectiveOperationException {
+      MethodHandle constructor = MethodHandles.publicLookup().findConstructor(type, MethodType.methodType(void.class));
+      if (isVisible(type)) {
+         try {
+            return (Supplier<T>) LambdaMetafactory.metafactory(LOOKUP,
+                                                              "get",
+                                                              MethodType.methodType(Supplier.class),
+                                                              MethodType.methodType(Object.class),
+                                                              constructor,
+                                                              MethodType.methodType(type))
+                                                 .getTarget()
+                                                 .invokeExact();
+         }
+         catch (Throwable t) {
+            // constructeur hors d'atteinte de la LambdaMetafactory : on l'appelle par son handle
+         }
+      }
+      MethodHandle handle = constructor.asType(MethodType.methodType(Object.class));
+      return () -> {
+         try {
+            return (T) handle.invokeExact();
+         }
+         catch (RuntimeException | Error e) {
+            throw e;
+         }
+         catch (Throwable e) {
+            throw new IllegalStateException(e);
+         }
+      };
+   }
+
+   private static Column column(Class<?> bean, int index, PropertyDescriptor property) throws ReflectiveOperationException {
+      Class<?> type = property.getPropertyType();
+      MethodHandle setter = MethodHandles.publicLookup().unreflect(property.getWriteMethod());
+      if (type == int.class) {
+         ObjIntConsumer<Object> set = lambda(ObjIntConsumer.class, bean, setter, int.class);
+         return set == null ? boxed(setter, index, (rs, i) -> rs.getInt(i)) : (rs, target) -> set.accept(target, rs.getInt(index));
+      }
+      if (type == long.class) {
+         ObjLongConsumer<Object> set = lambda(ObjLongConsumer.class, bean, setter, long.class);
+         return set == null ? boxed(setter, index, (rs, i) -> rs.getLong(i)) : (rs, target) -> set.accept(target, rs.getLong(index));
+      }
+      if (type == double.class) {
+         ObjDoubleConsumer<Object> set = lambda(ObjDoubleConsumer.class, bean, setter, double.class);
+         return set == null ? boxed(setter, index, (rs, i) -> rs.getDouble(i)) : (rs, target) -> set.accept(target, rs.getDouble(index));
+      }
+      Reader reader = readerOf(property, type);
+      BiConsumer<Object, Object> set = lambda(BiConsumer.class, bean, setter, Object.class);
+      if (set == null) return boxed(setter, index, reader);
+      return (rs, target) -> set.accept(target, reader.read(rs, index));
+   }
+
+   /**
+    * @return the typed read of a column for a property of this type, null
+    *         values included
+    */
+   private static Reader readerOf(PropertyDescriptor property, Class<?> type) {
+      if (type == String.class) return (rs, i) -> rs.getString(i);
+      if (type == Integer.class || type == int.class) return (rs, i) -> {
+         int value = rs.getInt(i);
+         return rs.wasNull() && !type.isPrimitive() ? null : Integer.valueOf(value);
+      };
+      if (type == Long.class || type == long.class) return (rs, i) -> {
+         long value = rs.getLong(i);
+         return rs.wasNull() && !type.isPrimitive() ? null : Long.valueOf(value);
+      };
+      if (type == Double.class || type == double.class) return (rs, i) -> {
+         double value = rs.getDouble(i);
+         return rs.wasNull() && !type.isPrimitive() ? null : Double.valueOf(value);
+      };
+      if (type == Float.class || type == float.class) return (rs, i) -> {
+         float value = rs.getFloat(i);
+         return rs.wasNull() && !type.isPrimitive() ? null : Float.valueOf(value);
+      };
+      if (type == Short.class || type == short.class) return (rs, i) -> {
+         short value = rs.getShort(i);
+         return rs.wasNull() && !type.isPrimitive() ? null : Short.valueOf(value);
+      };
+      if (type == Byte.class || type == byte.class) return (rs, i) -> {
+         byte value = rs.getByte(i);
+         return rs.wasNull() && !type.isPrimitive() ? null : Byte.valueOf(value);
+      };
+      if (type == Boolean.class || type == boolean.class) return (rs, i) -> {
+         boolean value = rs.getBoolean(i);
+         return rs.wasNull() && !type.isPrimitive() ? null : Boolean.valueOf(value);
+      };
+      if (type == BigDecimal.class) return (rs, i) -> rs.getBigDecimal(i);
+      if (type == Timestamp.class || type == java.util.Date.class) return (rs, i) -> rs.getTimestamp(i);
+      if (type == java.sql.Date.class) return (rs, i) -> rs.getDate(i);
+      if (type == Time.class) return (rs, i) -> rs.getTime(i);
+      if (type == DateTime.class) return (rs, i) -> JODA.from(rs.getTimestamp(i));
+      if (type == LocalDateTime.class) return (rs, i) -> {
+         Timestamp value = rs.getTimestamp(i);
+         return value == null ? null : value.toLocalDateTime();
+      };
+      if (type == LocalDate.class) return (rs, i) -> {
+         java.sql.Date value = rs.getDate(i);
+         return value == null ? null : value.toLocalDate();
+      };
+      if (type.isEnum()) {
+         Map<String, Object> constants = new HashMap<>();
+         for (Object constant : type.getEnumConstants()) {
+            constants.put(((Enum<?>) constant).name(), constant);
+         }
+         return (rs, i) -> {
+            String value = rs.getString(i);
+            Object constant = constants.get(value);
+            if (constant == null && value != null) throw incompatible(property, value);
+            return constant;
+         };
+      }
+      Class<?> boxed = MethodType.methodType(type).wrap().returnType();
+      return (rs, i) -> {
+         Object value = rs.getObject(i);
+         if (value != null && !boxed.isInstance(value)) throw incompatible(property, value);
+         return value;
+      };
+   }
+
+   private static SQLException incompatible(PropertyDescriptor property, Object value) {
+      return new SQLException("Cannot set " + property.getName() + ": incompatible types, cannot convert "
+                              + value.getClass().getName() + " to " + property.getPropertyType().getName());
+   }
+
+   /**
+    * @return the setter as an implementation of the functional interface, or
+    *         null if the LambdaMetafactory cannot reach it (setter inherited
+    *         from a class which is not public, bean or property type not
+    *         visible from the class loader of this library)
+    */
+   @SuppressWarnings("unchecked")
+   private static <F> F lambda(Class<? super F> face, Class<?> bean, MethodHandle setter, Class<?> value) {
+      MethodType erased = MethodType.methodType(void.class, Object.class, value);
+      Class<?> parameter = value.isPrimitive() ? value : MethodType.methodType(setter.type().parameterType(1)).wrap().returnType();
+      if (!isVisible(bean) || !isVisible(parameter)) return null;
+      MethodType instantiated = MethodType.methodType(void.class, bean, parameter);
+      try {
+         return (F) LambdaMetafactory.metafactory(LOOKUP, "accept", MethodType.methodType(face), erased, setter, instantiated)
+                                     .getTarget()
+                                     .invoke();
+      }
+      catch (LambdaConversionException e) {
+         return null;
+      }
+      catch (Throwable t) {
+         throw new IllegalStateException("Could not generate the setter " + setter, t);
+      }
+   }
+
+   /**
+    * @return false for a class the lookup of this class cannot resolve, like
+    *         the beans of a webapp when the library is in the server's class
+    *         path : the LambdaMetafactory would fail to link them
+    */
+   private static boolean isVisible(Class<?> type) {
+      if (type.isPrimitive()) return true;
+      try {
+         return Class.forName(type.getName(), false, RowMapper.class.getClassLoader()) == type;
+      }
+      catch (ClassNotFoundException e) {
+         return false;
+      }
+   }
+
+   private static Column boxed(MethodHandle setter, int index, Reader reader) {
+      MethodHandle handle = setter.asType(MethodType.methodType(void.class, Object.class, Object.class));
+      return (rs, target) -> {
+         Object value = reader.read(rs, index);
+         try {
+            handle.invokeExact(target, value);
+         }
+         catch (RuntimeException | Error e) {
+            throw e;
+         }
+         catch (Throwable t) {
+            throw new IllegalStateException(t);
+         }
+      };
+   }
+
+   @FunctionalInterface
+   private interface Reader {
+      Object read(ResultSet rs, int index) throws SQLException;
+   }
+
+   @FunctionalInterface
+   private interface Column {
+      void read(ResultSet rs, Object bean) throws SQLException;
+   }
+}
@@ -0,0 +1,104 @@
+package net.barroux.ezserver.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.dbutils.DbUtils;
+
+/**
+ * The PreparedStatements of the connection held by a thread in
+ * {@link DbHelper}, keyed by their sql and kept until the connection goes
+ * back to the pool, the least recently used being closed past the size limit.
+ * <p>
+ * A statement is taken out of the cache while it is in use, so that a query
+ * run again from its own ResultSetHandler gets a statement of its own. Not
+ * thread safe : like the connection, a cache belongs to a single thread.
+ * </p>
+ */
+final class StatementCache {
+   private static final LongAdder               HITS      = new LongAdder();
+   private static final LongAdder               MISSES    = new LongAdder();
+   private static final LongAdder               EVICTIONS = new LongAdder();
+
+   private final Connection                     conn;
+   private final Map<String, PreparedStatement> idle;
+   private final Map<PreparedStatement, String> inUse     = new IdentityHashMap<>();
+
+   StatementCache(Connection conn, int maxSize) {
+      this.conn = conn;
+      this.idle = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+            if (size() <= maxSize) return false;
+            EVICTIONS.increment();
+            DbUtils.closeQuietly(eldest.getValue());
+            return true;
+         }
+      };
+   }
+
+   boolean isFor(Connection connection) {
+      return this.conn == connection;
+   }
+
+   PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement stmt = this.idle.remove(sql);
+      if (stmt != null) {
+         HITS.increment();
+      }
+      else {
+         MISSES.increment();
+         stmt = this.conn.prepareStatement(sql);
+      }
+      this.inUse.put(stmt, sql);
+      return stmt;
+   }
+
+   /**
+    * @return false if the statement does not come from this cache, or is not
+    *         kept : the caller must then close it
+    */
+   boolean release(Statement stmt) throws SQLException {
+      String sql = this.inUse.remove(stmt);
+      if (sql == null || this.idle.containsKey(sql)) return false;
+      PreparedStatement prepared = (PreparedStatement) stmt;
+      prepared.clearParameters();
+      // un batch abandonné sur erreur ne doit pas partir avec le suivant
+      prepared.clearBatch();
+      this.idle.put(sql, prepared);
+      return true;
+   }
+
+   /**
+    * Closes every statement, including those still in use.
+    */
+   void close() {
+      List<Statement> all = new ArrayList<>(this.idle.values());
+      all.addAll(this.inUse.keySet());
+      this.idle.clear();
+      this.inUse.clear();
+      for (Statement stmt : all) {
+         DbUtils.closeQuietly(stmt);
+      }
+   }
+
+   static long getHits() {
+      return HITS.sum();
+   }
+
+   static long getMisses() {
+      return MISSES.sum();
+   }
+
+   static long getEvictions() {
+      return EVICTIONS.sum();
+   }
+}
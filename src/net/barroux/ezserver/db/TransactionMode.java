@@ -0,0 +1,21 @@
+package net.barroux.ezserver.db;
+
+/**
+ * How the connection of a request is used, see {@link Transactional}.
+ */
+public enum TransactionMode {
+   /**
+    * Auto-commit : each statement is committed on its own.
+    */
+   NONE,
+   /**
+    * A single transaction on a connection set read-only, which lets the
+    * driver and the database skip the write bookkeeping.
+    */
+   READ_ONLY,
+   /**
+    * A single transaction, committed at the end of the request unless it
+    * failed (the default).
+    */
+   READ_WRITE
+}
@@ -0,0 +1,23 @@
+package net.barroux.ezserver.db;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares how a command uses the database connection of its request.
+ * Commands without this annotation get a read-write transaction. In any
+ * mode, the connection is only taken from the pool when the command runs its
+ * first statement.
+ *
+ * <pre>
+ * &#64;Transactional(TransactionMode.READ_ONLY)
+ * public class ListInvoicesCommand implements Command {
+ * </pre>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Transactional {
+   TransactionMode value() default TransactionMode.READ_WRITE;
+}
@@ -3,6 +3,8 @@ package net.barroux.ezserver.filters;
 import java.io.IOException;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -21,14 +23,41 @@ public class LogRequestFilter implements Filter {
    @Override
    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
       log.trace("entering");
-      int reqNr = COUNTER.incrementAndGet();
+      final int reqNr = COUNTER.incrementAndGet();
       final long deb = System.currentTimeMillis();
       final HttpServletRequest req = (HttpServletRequest) request;
       if (log.isTraceEnabled()) {
          log.trace("filtering {} - paramsMap : {}", req.getRequestURI(), req.getParameterMap());
       }
       chain.doFilter(req, response);
+      if (req.isAsyncStarted()) {
+         // flushing now would commit the response before the async command
+         // gets a chance to write it
+         req.getAsyncContext().addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) throws IOException {
+               logTotal(reqNr, req, deb);
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+            }
+
+            @Override
+            public void onError(AsyncEvent event) throws IOException {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) throws IOException {
+            }
+         });
+         return;
+      }
       response.flushBuffer();
+      logTotal(reqNr, req, deb);
+   }
+
+   private static void logTotal(int reqNr, HttpServletRequest req, long deb) {
       long total = System.currentTimeMillis() - deb;
       log.info("{} - [{}]; total : {}ms", reqNr, req.getRequestURI(), total);
    }
@@ -5,6 +5,7 @@ import static net.barroux.ezserver.db.DbHelper.commit;
 import static net.barroux.ezserver.db.DbHelper.rollback;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -12,22 +13,48 @@ import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
 
 import net.barroux.ezserver.db.DbHelper;
+import net.barroux.ezserver.db.TransactionMode;
+import net.barroux.ezserver.db.Transactional;
 
+import org.bibeault.frontman.CommandBroker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Wraps each request in a database transaction, opened lazily : no
+ * connection is taken from the pool until the command runs its first
+ * statement, and nothing is committed nor rolled back for requests that never
+ * did. The mode of the transaction comes from the {@link Transactional}
+ * annotation of the command, read when the connection is taken. Read-only
+ * transactions go to a replica when there are some, except within the
+ * read-your-writes window following a write by the same session.
+ */
 public class TransactionFilter implements Filter {
-   private static final Logger log = LoggerFactory.getLogger(TransactionFilter.class);
+   private static final Logger                     log        = LoggerFactory.getLogger(TransactionFilter.class);
+   private static final String                     LAST_WRITE = TransactionFilter.class.getName() + ".lastWrite";
+   private static final LongAdder                  REQUESTS   = new LongAdder();
+   private static final LongAdder                  CHECKOUTS  = new LongAdder();
+   private static final ClassValue<TransactionMode> MODES     = new ClassValue<TransactionMode>() {
+      @Override
+      protected TransactionMode computeValue(Class<?> type) {
+         Transactional transactional = type.getAnnotation(Transactional.class);
+         return transactional == null ? TransactionMode.READ_WRITE : transactional.value();
+      }
+   };
 
    @Override
    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
       log.trace("entering");
+      REQUESTS.increment();
+      DbHelper.begin(() -> modeOf(request), isWithinReadYourWrites(request));
       try {
-         DbHelper.conn();
          chain.doFilter(request, response);
          commit();
+         if (DbHelper.hasWritten()) rememberWrite(request);
       }
       catch (Exception e) {
          log.warn("exception during request processing. propagating", e.getMessage());
@@ -35,11 +62,65 @@ public class TransactionFilter implements Filter {
          throw e;
       }
       finally {
+         if (DbHelper.hasConn()) CHECKOUTS.increment();
          close();
       }
       log.trace("done");
    }
 
+   /**
+    * @return true if the session of the request wrote recently enough to
+    *         keep reading from the primary
+    */
+   private static boolean isWithinReadYourWrites(ServletRequest request) {
+      long window = DbHelper.getReadYourWritesMillis();
+      if (window <= 0) return false;
+      HttpSession session = ((HttpServletRequest) request).getSession(false);
+      Object lastWrite = session == null ? null : session.getAttribute(LAST_WRITE);
+      return lastWrite instanceof Long && System.currentTimeMillis() - (Long) lastWrite < window;
+   }
+
+   /**
+    * Starts the read-your-writes window of the session, if any.
+    */
+   private static void rememberWrite(ServletRequest request) {
+      if (DbHelper.getReadYourWritesMillis() <= 0) return;
+      HttpSession session = ((HttpServletRequest) request).getSession(false);
+      if (session != null) session.setAttribute(LAST_WRITE, System.currentTimeMillis());
+   }
+
+   /**
+    * @return the transaction mode declared by the command serving the
+    *         request, read-write if none
+    */
+   private static TransactionMode modeOf(ServletRequest request) {
+      Object commandClass = request.getAttribute(CommandBroker.COMMAND_CLASS_ATTRIBUTE);
+      return commandClass instanceof Class ? MODES.get((Class<?>) commandClass) : TransactionMode.READ_WRITE;
+   }
+
+   /**
+    * @return the number of requests filtered since startup
+    */
+   public static long getRequests() {
+      return REQUESTS.sum();
+   }
+
+   /**
+    * @return the number of those requests which took a connection from the
+    *         pool
+    */
+   public static long getCheckouts() {
+      return CHECKOUTS.sum();
+   }
+
+   /**
+    * @return the pool checkouts per request, between 0 and 1
+    */
+   public static double getCheckoutsPerRequest() {
+      long requests = REQUESTS.sum();
+      return requests == 0 ? 0 : (double) CHECKOUTS.sum() / requests;
+   }
+
    @Override
    public void init(FilterConfig filterConfig) throws ServletException {
    }
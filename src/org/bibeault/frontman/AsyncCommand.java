@@ -0,0 +1,63 @@
+package org.bibeault.frontman;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import javax.servlet.ServletException;
+
+/**
+ * Variant of {@link Command} for commands that spend most of their time waiting
+ * on slow work (database, remote services...).
+ * <p>
+ * The Command Broker puts the request in asynchronous mode before calling
+ * {@link #executeAsync(CommandContext)} and releases the container thread as
+ * soon as the method returns. The response is finished when the returned
+ * future completes: the command (or a callback chained on the future) is
+ * expected to forward to a view, redirect or send an error through the
+ * CommandContext, which remains valid until then. If it did none of those, the
+ * response is simply completed. A future completed exceptionally results in an
+ * internal server error.
+ * </p>
+ * <p>
+ * The asynchronous part of the work runs outside of the request thread, and
+ * thus outside of the thread-bound transaction managed by the
+ * TransactionFilter.
+ * </p>
+ */
+public interface AsyncCommand extends Command {
+
+   /**
+    * Called by the Command Broker in order to allow each command to start its
+    * action.
+    *
+    * @return a future completed once the command is done with the response
+    * @throws ServletException
+    * @throws IOException
+    */
+   public CompletableFuture<?> executeAsync(CommandContext commandContext) throws ServletException, IOException;
+
+   /**
+    * Blocking execution, used when the request cannot be made asynchronous
+    * (for instance when a filter of the chain does not support it). A null
+    * future means the command is already done, as in asynchronous mode.
+    */
+   public default void execute(CommandContext commandContext) throws ServletException, IOException {
+      CompletableFuture<?> future = executeAsync(commandContext);
+      if (future == null) return;
+      try {
+         future.get();
+      }
+      catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new ServletException("Interrupted while waiting for command completion", e);
+      }
+      catch (ExecutionException e) {
+         Throwable cause = e.getCause();
+         if (cause instanceof ServletException) throw (ServletException) cause;
+         if (cause instanceof IOException) throw (IOException) cause;
+         throw new ServletException(cause);
+      }
+   }
+
+}
@@ -0,0 +1,103 @@
+package org.bibeault.frontman;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finishes the response of an {@link AsyncCommand} once its future completes,
+ * or once the container gives up on the request (timeout or error), whichever
+ * happens first.
+ */
+final class AsyncCommandCompletion implements BiConsumer<Object, Throwable>, AsyncListener {
+   private static final Logger                log      = LoggerFactory.getLogger(AsyncCommandCompletion.class);
+
+   private final AtomicBoolean                finished = new AtomicBoolean();
+   private final CommandRoute                 route;
+   private final Command                      command;
+   private final CommandContextImplementation commandContext;
+   private final AsyncContext                 asyncContext;
+   private final long                         start;
+   private volatile CompletableFuture<?>      future;
+
+   AsyncCommandCompletion(CommandRoute route,
+                          Command command,
+                          CommandContextImplementation commandContext,
+                          AsyncContext asyncContext,
+                          long start) {
+      this.route = route;
+      this.command = command;
+      this.commandContext = commandContext;
+      this.asyncContext = asyncContext;
+      this.start = start;
+   }
+
+   void attach(CompletableFuture<?> future) {
+      this.future = future;
+      future.whenComplete(this);
+   }
+
+   @Override
+   public void accept(Object result, Throwable failure) {
+      if (failure instanceof CompletionException && failure.getCause() != null) failure = failure.getCause();
+      if (failure != null) log.error("Command " + this.route.getVerb() + " failed", failure);
+      finish(failure == null ? 0 : HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+   }
+
+   @Override
+   public void onTimeout(AsyncEvent event) throws IOException {
+      log.warn("Command {} timed out", this.route.getVerb());
+      CompletableFuture<?> pending = this.future;
+      if (pending != null) pending.cancel(true);
+      finish(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+   }
+
+   @Override
+   public void onError(AsyncEvent event) throws IOException {
+      log.warn("Asynchronous processing of command " + this.route.getVerb() + " failed", event.getThrowable());
+      CompletableFuture<?> pending = this.future;
+      if (pending != null) pending.cancel(true);
+      finish(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+   }
+
+   @Override
+   public void onComplete(AsyncEvent event) throws IOException {
+   }
+
+   @Override
+   public void onStartAsync(AsyncEvent event) throws IOException {
+   }
+
+   /**
+    * Sends the passed error status (unless 0 or the response is already
+    * committed) and completes the request, unless the command dispatched it
+    * to a view or another command in the meantime. Only the first call has any
+    * effect.
+    */
+   private void finish(int errorStatus) {
+      if (!this.finished.compareAndSet(false, true)) return;
+      this.route.release(this.command);
+      HttpServletResponse response = this.commandContext.getResponse();
+      boolean failed = errorStatus != 0 || CommandStats.isServerError(response);
+      this.route.getStats().record(System.nanoTime() - this.start, 0, failed);
+      try {
+         if (errorStatus != 0 && !response.isCommitted()) response.sendError(errorStatus);
+      }
+      catch (IOException e) {
+         log.warn("Could not send error for command {}: {}", this.route.getVerb(), e.getMessage());
+      }
+      finally {
+         if (!this.commandContext.isDispatched()) this.asyncContext.complete();
+      }
+   }
+}
@@ -0,0 +1,67 @@
+package org.bibeault.frontman;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Output of a command execution captured by a {@link CapturingResponse},
+ * along with the entity tag derived from its body. Instances are immutable
+ * apart from the refresh flag used by the {@link OutputCache}.
+ */
+final class BufferedOutput implements Serializable {
+   private static final long   serialVersionUID = 1L;
+
+   private final String        contentType;
+   private final byte[]        body;
+   private final String        etag;
+   private final long          created          = System.currentTimeMillis();
+   private final AtomicBoolean refreshing       = new AtomicBoolean();
+
+   BufferedOutput(String contentType, byte[] body) {
+      this.contentType = contentType;
+      this.body = body;
+      this.etag = ConditionalRequests.etagOf(body);
+   }
+
+   /**
+    * @return the time this output was produced, in milliseconds
+    */
+   long getCreated() {
+      return this.created;
+   }
+
+   /**
+    * Elects the single request that will refresh this output once stale.
+    *
+    * @return true for the first caller only
+    */
+   boolean startRefresh() {
+      return this.refreshing.compareAndSet(false, true);
+   }
+
+   /**
+    * Makes the output refreshable again after a failed refresh.
+    */
+   void cancelRefresh() {
+      this.refreshing.set(false);
+   }
+
+   /**
+    * Sends the output with its ETag, or only a 304 status if the request
+    * already holds it.
+    */
+   void writeTo(HttpServletRequest request, HttpServletResponse response) throws IOException {
+      response.setHeader(ConditionalRequests.ETAG, this.etag);
+      if (ConditionalRequests.isNotModified(request, this.etag, -1)) {
+         response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+         return;
+      }
+      if (this.contentType != null) response.setContentType(this.contentType);
+      response.setContentLength(this.body.length);
+      response.getOutputStream().write(this.body);
+   }
+}
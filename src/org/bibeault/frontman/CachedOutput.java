@@ -0,0 +1,51 @@
+package org.bibeault.frontman;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares that the output of a command may be cached by the
+ * {@link CommandBroker}. Placed next to {@link FrontmanCommand}, it makes GET
+ * and HEAD requests for the command be answered from the captured bytes of a
+ * previous execution (view included) while the entry is fresh.
+ * <p>
+ * The cache key is made of the request path info, the values of the listed
+ * request parameters and the string value of the optional session attribute.
+ * Only successful (200) responses are cached, and only their content type
+ * and body are replayed: headers and cookies set by the command are not.
+ * </p>
+ * <p>
+ * Once the time to live has elapsed, the entry is still served for
+ * staleWhileRevalidate more seconds while a single request executes the
+ * command again to refresh it. Entries are kept in the Ehcache cache named
+ * {@value OutputCache#CACHE_NAME}, which can be configured in ehcache.xml;
+ * otherwise the default cache configuration applies.
+ * </p>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface CachedOutput {
+   /**
+    * Number of seconds during which the cached output is served as is.
+    */
+   public abstract int ttl();
+
+   /**
+    * Number of seconds after expiry during which the stale output is still
+    * served while it is being refreshed.
+    */
+   public abstract int staleWhileRevalidate() default 0;
+
+   /**
+    * Names of the request parameters taking part in the cache key.
+    */
+   public abstract String[] parameters() default {};
+
+   /**
+    * Name of a session attribute taking part in the cache key, typically the
+    * current user for per-user pages.
+    */
+   public abstract String sessionAttribute() default "";
+}
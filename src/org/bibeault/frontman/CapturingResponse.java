@@ -0,0 +1,142 @@
+package org.bibeault.frontman;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Response wrapper buffering the body written by a command and its view, so
+ * that it can be stored in an {@link OutputCache} or tagged before being sent.
+ * Headers go straight to the wrapped response; redirects and errors are
+ * passed through and make the output uncacheable.
+ */
+final class CapturingResponse extends HttpServletResponseWrapper {
+   private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+   private ServletOutputStream         outputStream;
+   private PrintWriter                 writer;
+   private int                         status = SC_OK;
+   private boolean                     passedThrough;
+
+   CapturingResponse(HttpServletResponse response) {
+      super(response);
+   }
+
+   @Override
+   public ServletOutputStream getOutputStream() {
+      if (this.writer != null) throw new IllegalStateException("getWriter() has already been called");
+      if (this.outputStream == null) {
+         this.outputStream = new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+               CapturingResponse.this.buffer.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+               CapturingResponse.this.buffer.write(b, off, len);
+            }
+
+            @Override
+            public boolean isReady() {
+               return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+               throw new IllegalStateException("Output is captured, not written asynchronously");
+            }
+         };
+      }
+      return this.outputStream;
+   }
+
+   @Override
+   public PrintWriter getWriter() throws IOException {
+      if (this.outputStream != null) throw new IllegalStateException("getOutputStream() has already been called");
+      if (this.writer == null) this.writer = new PrintWriter(new OutputStreamWriter(this.buffer, getCharacterEncoding()));
+      return this.writer;
+   }
+
+   @Override
+   public void flushBuffer() {
+      if (this.writer != null) this.writer.flush();
+   }
+
+   @Override
+   public boolean isCommitted() {
+      return this.passedThrough && super.isCommitted();
+   }
+
+   @Override
+   public void resetBuffer() {
+      if (this.writer != null) this.writer.flush();
+      this.buffer.reset();
+   }
+
+   @Override
+   public void reset() {
+      super.reset();
+      resetBuffer();
+      this.status = SC_OK;
+   }
+
+   @Override
+   public void setContentLength(int len) {
+      // Set from the captured body when it is sent
+   }
+
+   @Override
+   public void setContentLengthLong(long len) {
+      // Set from the captured body when it is sent
+   }
+
+   @Override
+   public void setStatus(int sc) {
+      this.status = sc;
+      super.setStatus(sc);
+   }
+
+   @Override
+   public void sendError(int sc, String msg) throws IOException {
+      this.passedThrough = true;
+      super.sendError(sc, msg);
+   }
+
+   @Override
+   public void sendError(int sc) throws IOException {
+      this.passedThrough = true;
+      super.sendError(sc);
+   }
+
+   @Override
+   public void sendRedirect(String location) throws IOException {
+      this.passedThrough = true;
+      super.sendRedirect(location);
+   }
+
+   /**
+    * @return the captured output, or null if the response may not be cached
+    */
+   BufferedOutput toBufferedOutput() {
+      if (this.passedThrough || this.status != SC_OK) return null;
+      flushBuffer();
+      return new BufferedOutput(getContentType(), this.buffer.toByteArray());
+   }
+
+   /**
+    * Sends the captured body to the wrapped response, unless the response
+    * was already answered by a redirect or an error.
+    */
+   void sendCaptured() throws IOException {
+      if (this.passedThrough) return;
+      flushBuffer();
+      getResponse().setContentLength(this.buffer.size());
+      this.buffer.writeTo(getResponse().getOutputStream());
+   }
+}
@@ -24,18 +24,32 @@
  */
 package org.bibeault.frontman;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Modifier;
 import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.MissingResourceException;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
 import javax.servlet.UnavailableException;
 import javax.servlet.http.HttpServlet;
@@ -65,10 +79,25 @@ import org.slf4j.LoggerFactory;
  * &lt;servlet&gt; element in the deplyment descriptor.</li>
  * <li>
  * GET and POST requests are handled equally by this servlet.</li>
+ * <li>
+ * Commands implementing {@link AsyncCommand} are executed asynchronously,
+ * provided the servlet and every filter of the chain support asynchronous
+ * requests; otherwise they are executed in a blocking fashion.</li>
+ * <li>
+ * Commands implementing {@link EventStreamCommand} keep their response open
+ * to push Server-Sent Events; a single scheduler thread sends the heartbeats
+ * of every open stream.</li>
  * </ol>
  * </p>
  */
 public class CommandBroker extends HttpServlet {
+   /**
+    * Name of the request attribute holding the class of the command serving
+    * the request, set before the command is executed. Lets filters adapt to
+    * the command, e.g. read its annotations.
+    */
+   public static final String  COMMAND_CLASS_ATTRIBUTE             = "org.bibeault.frontman.commandClass";
+
    private static final Logger log                                 = LoggerFactory.getLogger(CommandBroker.class);
 
    private static final String INIT_PARAM_COMMANDS_ROOT            = "commandsPath";
@@ -76,12 +105,43 @@ public class CommandBroker extends HttpServlet {
 
    private static final String INIT_PARAM_COMMAND_VERBS_PROPERTIES = "commandVerbsProperties";
    private static final String INIT_PARAM_VIEW_NAMES_PROPERTIES    = "viewNamesProperties";
+   private static final String INIT_PARAM_STATS_VERB               = "statsVerb";
+   private static final String INIT_PARAM_WATCH_VIEWS              = "watchViews";
+   private static final String INIT_PARAM_EVENT_STREAM_HEARTBEAT   = "eventStreamHeartbeat";
+
+   /**
+    * Upper bound of the negative cache of unknown verbs. When reached, the
+    * cache is simply emptied so that a flood of distinct bogus verbs can never
+    * grow it without limit.
+    */
+   private static final int    MAX_UNKNOWN_VERBS                   = 1024;
+
+   /**
+    * Upper bound of the view path and dispatcher caches, emptied when reached
+    * for the same reason.
+    */
+   private static final int    MAX_CACHED_VIEWS                    = 1024;
+   /**
+    * Seconds of silence after which a comment is sent on an open event
+    * stream, unless configured otherwise.
+    */
+   private static final int    DEFAULT_EVENT_STREAM_HEARTBEAT      = 15;
 
-   private String              commandsPathRoot;
-   private String              viewsPathRoot;
-   private Properties          commandVerbProperties;
-   private Properties          viewNameProperties;
-   private Map<String, Class>  annotatedCommands;
+   private final ConcurrentMap<String, CommandRoute>      lateRoutes   = new ConcurrentHashMap<String, CommandRoute>();
+   private final ConcurrentMap<String, Boolean>           unknownVerbs = new ConcurrentHashMap<String, Boolean>();
+   private final ConcurrentMap<String, String>            viewPaths    = new ConcurrentHashMap<String, String>();
+   private final ConcurrentMap<String, RequestDispatcher> dispatchers  = new ConcurrentHashMap<String, RequestDispatcher>();
+   private Map<Class<? extends Command>, CommandRoute>    routesByClass;
+   private ViewsWatcher                                   viewsWatcher;
+   private volatile EventStreams                          eventStreams;
+   private String                                    commandsPathRoot;
+   private String                                    viewsPathRoot;
+   private String                                    statsVerb;
+   private Properties                                commandVerbProperties;
+   private Properties                                viewNameProperties;
+   private Map<String, Class>                        annotatedCommands;
+   private Map<String, Class>                        conventionCommands;
+   private Map<String, CommandRoute>                 routes;
 
    public void init() throws ServletException {
       log.info("Initializing...");
@@ -90,13 +150,17 @@ public class CommandBroker extends HttpServlet {
       //
       this.commandsPathRoot = getServletConfig().getInitParameter(INIT_PARAM_COMMANDS_ROOT);
       this.viewsPathRoot = getServletConfig().getInitParameter(INIT_PARAM_VIEWS_ROOT);
+      this.statsVerb = getServletConfig().getInitParameter(INIT_PARAM_STATS_VERB);
       String commandVerbsPropertiesPath = getServletConfig().getInitParameter(INIT_PARAM_COMMAND_VERBS_PROPERTIES);
       String viewNamesPropertiesPath = getServletConfig().getInitParameter(INIT_PARAM_VIEW_NAMES_PROPERTIES);
+      boolean watchViews = Boolean.parseBoolean(getServletConfig().getInitParameter(INIT_PARAM_WATCH_VIEWS));
       if (log.isDebugEnabled()) {
          log.debug(INIT_PARAM_COMMAND_VERBS_PROPERTIES + "=" + commandVerbsPropertiesPath);
          log.debug(INIT_PARAM_COMMANDS_ROOT + "=" + this.commandsPathRoot);
          log.debug(INIT_PARAM_VIEW_NAMES_PROPERTIES + "=" + viewNameProperties);
          log.debug(INIT_PARAM_VIEWS_ROOT + "=" + this.viewsPathRoot);
+         log.debug(INIT_PARAM_STATS_VERB + "=" + this.statsVerb);
+         log.debug(INIT_PARAM_WATCH_VIEWS + "=" + watchViews);
       }
       //
       // Make sure that at least one way of locating command classes has been
@@ -116,9 +180,20 @@ public class CommandBroker extends HttpServlet {
       if (viewNamesPropertiesPath != null) this.viewNameProperties = getPropertiesFrom(viewNamesPropertiesPath);
       //
       // If a command verb path was provided, find all command classes
-      // (those that are annotated with FrontmanCommand).
+      // (those that are annotated with FrontmanCommand, and those that follow
+      // the naming convention).
+      //
+      this.annotatedCommands = new HashMap<String, Class>();
+      this.conventionCommands = new HashMap<String, Class>();
+      findCommands();
+      //
+      // Freeze every known verb in a single read-only routing table
+      //
+      this.routes = buildRoutes();
+      //
+      // Resolved views are cached; in development, follow the views files
       //
-      this.annotatedCommands = findAnnotatedCommands();
+      if (watchViews) watchViews();
       //
       // If logging is enabled, dump the results of the resource loading
       //
@@ -138,6 +213,12 @@ public class CommandBroker extends HttpServlet {
                log.info("    " + entry.getKey() + "=" + entry.getValue());
             }
          }
+         if (this.conventionCommands.size() > 0) {
+            log.info("  Command classes: (by convention in package " + this.commandsPathRoot + ")");
+            for (Map.Entry<String, Class> entry : this.conventionCommands.entrySet()) {
+               log.info("    " + entry.getKey() + "=" + entry.getValue());
+            }
+         }
          if (this.viewsPathRoot != null) log.info("  Views path root: " + this.viewsPathRoot);
          if (this.viewNameProperties != null) {
             log.info("  View names: (loaded from " + viewNamesPropertiesPath + ")");
@@ -151,16 +232,66 @@ public class CommandBroker extends HttpServlet {
       log.info("Done initializing.");
    }
 
-   private Map<String, Class> findAnnotatedCommands() throws UnavailableException {
-      Map<String, Class> commands = new HashMap<String, Class>();
+   public void destroy() {
+      if (this.eventStreams != null) this.eventStreams.shutdown();
+      if (this.viewsWatcher != null) {
+         try {
+            this.viewsWatcher.close();
+         }
+         catch (IOException e) {
+            log.warn("Could not stop watching views", e);
+         }
+      }
+      super.destroy();
+   }
+
+   /**
+    * Starts watching the views directory, forgetting the cached views
+    * whenever a file changes in it. Views served from an unexploded archive
+    * have no directory to watch and stay cached.
+    */
+   private void watchViews() {
+      String realPath = this.viewsPathRoot == null ? null : getServletContext().getRealPath(this.viewsPathRoot);
+      if (realPath == null || !new File(realPath).isDirectory()) {
+         log.warn("No views directory to watch, resolved views will stay cached");
+         return;
+      }
+      try {
+         this.viewsWatcher = new ViewsWatcher(Paths.get(realPath), new Runnable() {
+            public void run() {
+               clearViewCaches();
+            }
+         });
+         log.info("  Watching views in " + realPath);
+      }
+      catch (IOException e) {
+         log.warn("Could not watch views in " + realPath + ", resolved views will stay cached", e);
+      }
+   }
+
+   void clearViewCaches() {
+      this.viewPaths.clear();
+      this.dispatchers.clear();
+   }
+
+   private void findCommands() throws UnavailableException {
+      if (this.commandsPathRoot != null && loadCommandIndex()) return;
       if (this.commandsPathRoot != null) {
          try {
             List<Class> candidateClasses = ClassFinder.findInterfaceImplementors(this.commandsPathRoot,
                                                                                  Command.class);
-            System.out.println("found " + candidateClasses.size() + " Command implementors");
+            log.debug("found {} Command implementors", candidateClasses.size());
             for (Class candidate : candidateClasses) {
                FrontmanCommand annotation = (FrontmanCommand) candidate.getAnnotation(FrontmanCommand.class);
-               if (annotation != null) commands.put(annotation.value(), candidate);
+               if (annotation != null) this.annotatedCommands.put(annotation.value(), candidate);
+               String conventionVerb = conventionVerbOf(candidate);
+               if (conventionVerb != null) {
+                  this.conventionCommands.put(conventionVerb, candidate);
+                  // the conventional lookup capitalizes the verb, so both
+                  // forms of the first letter lead to the same class
+                  String lowered = lowerFirstLetterOfName(conventionVerb);
+                  if (!this.conventionCommands.containsKey(lowered)) this.conventionCommands.put(lowered, candidate);
+               }
             }
          }
          catch (Exception e) {
@@ -172,7 +303,131 @@ public class CommandBroker extends HttpServlet {
                                            + e.getMessage());
          }
       }
-      return commands;
+   }
+
+   /**
+    * Loads the annotated commands of the commands package from the indexes
+    * generated at compile time by the {@link FrontmanCommandProcessor}.
+    * Classes are loaded without being initialized. Commands following the
+    * naming convention are not indexed: they are resolved, and then
+    * remembered, on their first request.
+    *
+    * @return false if no index lists a command of the commands package, in
+    *         which case the package has to be scanned.
+    */
+   private boolean loadCommandIndex() throws UnavailableException {
+      ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+      if (classLoader == null) classLoader = CommandBroker.class.getClassLoader();
+      String prefix = this.commandsPathRoot + '.';
+      try {
+         Enumeration<URL> indexes = classLoader.getResources(FrontmanCommandProcessor.INDEX_RESOURCE);
+         while (indexes.hasMoreElements()) {
+            URL index = indexes.nextElement();
+            Properties properties = new Properties();
+            InputStream in = index.openStream();
+            try {
+               properties.load(in);
+            }
+            finally {
+               in.close();
+            }
+            for (String commandVerb : properties.stringPropertyNames()) {
+               String className = properties.getProperty(commandVerb);
+               if (!className.startsWith(prefix)) continue;
+               Class commandClass = Class.forName(className, false, classLoader);
+               if (Command.class.isAssignableFrom(commandClass)) this.annotatedCommands.put(commandVerb, commandClass);
+            }
+            log.debug("loaded command index {}", index);
+         }
+      }
+      catch (Exception e) {
+         throw new UnavailableException("Error while loading the command index for "
+                                        + this.commandsPathRoot
+                                        + ": ("
+                                        + e.getClass().getName()
+                                        + ") "
+                                        + e.getMessage());
+      }
+      return !this.annotatedCommands.isEmpty();
+   }
+
+   /**
+    * Computes the verb under which the conventional lookup would find the
+    * passed class, or null if the class does not follow the naming
+    * convention.
+    */
+   private String conventionVerbOf(Class candidate) {
+      if (Modifier.isAbstract(candidate.getModifiers())) return null;
+      String className = candidate.getName();
+      String prefix = this.commandsPathRoot + '.';
+      if (!className.startsWith(prefix) || !className.endsWith("Command")) return null;
+      String verb = className.substring(prefix.length(), className.length() - "Command".length());
+      if (verb.length() == 0 || verb.endsWith(".") || !PATTERN.matcher(verb).matches()) return null;
+      return verb;
+   }
+
+   private static String lowerFirstLetterOfName(String verb) {
+      int nameIndex = verb.lastIndexOf('.') + 1;
+      return new StringBuilder().append(verb, 0, nameIndex)
+                                .append(Character.toLowerCase(verb.charAt(nameIndex)))
+                                .append(verb, nameIndex + 1, verb.length())
+                                .toString();
+   }
+
+   /**
+    * Builds the routing table out of the three sources of commands, honoring
+    * their precedence: properties first, then annotations, then convention.
+    * Every verb is registered both bare and with a leading slash, so that the
+    * most common path info ("/verb") is resolved without any string
+    * manipulation.
+    */
+   private Map<String, CommandRoute> buildRoutes() throws ServletException {
+      Map<String, Class> commands = new HashMap<String, Class>(this.conventionCommands);
+      commands.putAll(this.annotatedCommands);
+      if (this.statsVerb != null) commands.put(this.statsVerb, CommandStatsCommand.class);
+      if (this.commandVerbProperties != null) {
+         for (String commandVerb : this.commandVerbProperties.stringPropertyNames()) {
+            String commandClassName = this.commandVerbProperties.getProperty(commandVerb);
+            try {
+               commands.put(commandVerb, Class.forName(commandClassName));
+            }
+            catch (ClassNotFoundException e) {
+               throw new UnavailableException("Could not locate class for commandVerb "
+                                              + commandVerb
+                                              + " as defined by the command properties:"
+                                              + e.getMessage());
+            }
+         }
+      }
+      Map<String, CommandRoute> table = new HashMap<String, CommandRoute>(commands.size() * 4);
+      Map<Class<? extends Command>, CommandRoute> routesByClass = new HashMap<Class<? extends Command>, CommandRoute>();
+      for (Map.Entry<String, Class> entry : commands.entrySet()) {
+         Class<? extends Command> commandClass = commandClassOf(entry.getKey(), entry.getValue());
+         // a class reachable through several verbs keeps a single set of
+         // instances (this matters for singletons and pools)
+         CommandRoute route = routesByClass.get(commandClass);
+         if (route == null) {
+            route = new CommandRoute(entry.getKey(), commandClass);
+            routesByClass.put(commandClass, route);
+         }
+         else {
+            route = new CommandRoute(entry.getKey(), route);
+         }
+         table.put(entry.getKey(), route);
+         table.put('/' + entry.getKey(), route);
+      }
+      this.routesByClass = routesByClass;
+      return Collections.unmodifiableMap(table);
+   }
+
+   private static Class<? extends Command> commandClassOf(String commandVerb, Class<?> candidate) throws UnavailableException {
+      if (!Command.class.isAssignableFrom(candidate)) throw new UnavailableException("Class "
+                                                                                     + candidate.getName()
+                                                                                     + " of command verb "
+                                                                                     + commandVerb
+                                                                                     + " does not implement "
+                                                                                     + Command.class);
+      return candidate.asSubclass(Command.class);
    }
 
    private Properties getPropertiesFrom(String path) throws UnavailableException {
@@ -191,117 +446,337 @@ public class CommandBroker extends HttpServlet {
       }
    }
 
+   /**
+    * @return every route resolved so far, each one only once.
+    */
+   Collection<CommandRoute> getRoutes() {
+      Set<CommandRoute> all = Collections.newSetFromMap(new IdentityHashMap<CommandRoute, Boolean>());
+      all.addAll(this.routes.values());
+      all.addAll(this.lateRoutes.values());
+      return all;
+   }
+
+   /**
+    * @return the verbs of all the commands known at init, sorted.
+    */
+   public Set<String> getCommandVerbs() {
+      Set<String> verbs = new TreeSet<String>();
+      for (CommandRoute route : this.routes.values()) {
+         verbs.add(route.getVerb());
+      }
+      return verbs;
+   }
+
    public void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
       doPost(request, response);
    }
 
    public void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+      long start = System.nanoTime();
       boolean debug = log.isDebugEnabled();
       if (debug) {
          log.debug("Begin brokering...");
-         log.debug("  request uri: " + request.getRequestURI());
+         log.debug("  request uri: {}", request.getRequestURI());
       }
       //
       // Create the command context
       //
-      CommandContext commandContext = new CommandContextImplementation(this, request, response);
+      CommandContextImplementation commandContext = new CommandContextImplementation(this, request, response);
       //
       // Get the command verb from the path info and fetch the corresponding
-      // command class
+      // command route
       //
       String pathInfo = commandContext.getPathInfo();
       if (pathInfo == null) throw new CommandNotFoundException(null);
-      String commandVerb = pathInfo.startsWith("/") ? pathInfo.substring(1) : pathInfo;
-      int closingSlashIndex = commandVerb.indexOf("/");
-      if (closingSlashIndex != -1) commandVerb = commandVerb.substring(0, closingSlashIndex);
+      CommandRoute route = findRoute(pathInfo);
+      Class commandClass = route.getCommandClass();
       if (debug) {
-         log.debug("  path info: " + pathInfo);
-         log.debug("  command verb: " + commandVerb);
+         log.debug("  path info: {}", pathInfo);
+         log.debug("  command verb: {}", route.getVerb());
+         log.debug("  command class name: {}", commandClass.getName());
       }
-      Class commandClass = findCommandClass(commandVerb);
-      if (debug) log.debug("  command class name: " + commandClass.getName());
+      request.setAttribute(COMMAND_CLASS_ATTRIBUTE, commandClass);
       //
-      // Create an instance of the command
+      // Answer from the output cache when the command allows it
       //
-      Command command;
-      try {
-         Object commandObject = commandClass.newInstance();
-         if (!(commandObject instanceof Command)) throw new ClassCastException("Class "
-                                                                               + commandClass.getName()
-                                                                               + " does not implement "
-                                                                               + Command.class);
-         command = (Command) commandObject;
+      OutputCache outputCache = route.getOutputCache();
+      if (outputCache != null && outputCache.accepts(request)) {
+         executeCached(route, outputCache, outputCache.keyOf(request, pathInfo), request, response, start);
+         if (debug) log.debug("Done.");
+         return;
       }
-      catch (Exception e) {
-         throw new CommandNotFoundException("Could not create command instance for command with verb"
-                                            + commandVerb
-                                            + "; command class was "
-                                            + commandClass.getName(), e);
+      if (route.hasContentETag() && outputCache == null) {
+         executeTagged(route, request, response, start);
+         if (debug) log.debug("Done.");
+         return;
+      }
+      if (route.isEventStream()) {
+         openEventStream(route, commandContext, start);
+         if (debug) log.debug("Done (event stream opened).");
+         return;
       }
       //
-      // Execute the command
+      // Obtain an instance of the command and execute it
       //
-      if (log.isInfoEnabled()) log.info("executing command "
-                                        + commandVerb
-                                        + " ("
-                                        + commandClass.getName()
-                                        + ")");
-      command.execute(commandContext);
+      if (route.isAsync() && request.isAsyncSupported()) {
+         Command command = route.acquire();
+         if (log.isInfoEnabled()) log.info("executing command {} ({})", route.getVerb(), commandClass.getName());
+         executeAsync(route, (AsyncCommand) command, commandContext, start);
+         if (debug) log.debug("Done (asynchronous execution started).");
+         return;
+      }
+      execute(route, commandContext, start);
       if (debug) log.debug("Done.");
    }
 
-   Class findCommandClass(String commandVerb) throws CommandNotFoundException {
-      boolean debug = log.isDebugEnabled();
-      if (debug) log.debug("Locating command class for verb: " + commandVerb);
-      Class commandClass = null;
-      //
-      // If command mapping properties were supplied, try there first
-      //
-      if (this.commandVerbProperties != null) {
-         if (debug) log.debug("  trying command properties...");
-         String commandClassName = this.commandVerbProperties.getProperty(commandVerb);
-         if (commandClassName != null) {
-            try {
-               commandClass = Class.forName(commandClassName);
-            }
-            catch (ClassNotFoundException e) {
-               throw new CommandNotFoundException("Could not locate class for commandVerb "
-                                                  + commandVerb
-                                                  + " as defined by the command properties:"
-                                                  + e.getMessage(), e);
-            }
-            if (debug && commandClass != null) log.debug("    found!");
+   /**
+    * Executes the command of the route synchronously and records its timing.
+    */
+   private void execute(CommandRoute route, CommandContextImplementation commandContext, long start)
+            throws ServletException, IOException {
+      Command command = route.acquire();
+      if (log.isInfoEnabled()) log.info("executing command {} ({})", route.getVerb(), route.getCommandClass().getName());
+      boolean failed = true;
+      try {
+         command.execute(commandContext);
+         failed = false;
+      }
+      finally {
+         route.release(command);
+         failed = failed || CommandStats.isServerError(commandContext.getResponse());
+         route.getStats().record(System.nanoTime() - start, commandContext.getViewNanos(), failed);
+      }
+   }
+
+   /**
+    * Serves a command declared with {@link CachedOutput}. A fresh entry is
+    * sent as is. A stale entry is sent as well, except to the one request
+    * elected to refresh it, which executes the command. On a miss the first
+    * request executes the command while the others wait for its output.
+    */
+   private void executeCached(CommandRoute route,
+                              OutputCache outputCache,
+                              String key,
+                              HttpServletRequest request,
+                              HttpServletResponse response,
+                              long start) throws ServletException, IOException {
+      BufferedOutput cached = outputCache.get(key);
+      if (cached != null && (outputCache.isFresh(cached) || !cached.startRefresh())) {
+         if (log.isDebugEnabled()) log.debug("  serving cached output of {}", key);
+         cached.writeTo(request, response);
+         route.getStats().record(System.nanoTime() - start, 0, false);
+         return;
+      }
+      CapturingResponse capture = new CapturingResponse(response);
+      BufferedOutput produced = null;
+      try {
+         execute(route, new CommandContextImplementation(this, request, capture), start);
+         produced = capture.toBufferedOutput();
+         if (produced != null) outputCache.put(key, produced);
+      }
+      finally {
+         if (produced == null) outputCache.release(key, cached);
+      }
+      if (produced != null) produced.writeTo(request, response);
+      else capture.sendCaptured();
+   }
+
+   /**
+    * Serves a command declared with {@link ContentETag}: its output is
+    * buffered and answered with 304 when its hash matches If-None-Match.
+    */
+   private void executeTagged(CommandRoute route,
+                              HttpServletRequest request,
+                              HttpServletResponse response,
+                              long start) throws ServletException, IOException {
+      CapturingResponse capture = new CapturingResponse(response);
+      execute(route, new CommandContextImplementation(this, request, capture), start);
+      BufferedOutput output = capture.toBufferedOutput();
+      if (output != null) output.writeTo(request, response);
+      else capture.sendCaptured();
+   }
+
+   /**
+    * Puts the request in asynchronous mode and starts the command. The
+    * response will be finished by an {@link AsyncCommandCompletion} once the
+    * returned future completes; exceptions thrown while starting the command
+    * are handled the same way as a failed future.
+    */
+   private void executeAsync(CommandRoute route,
+                             AsyncCommand command,
+                             CommandContextImplementation commandContext,
+                             long start) {
+      AsyncCommandCompletion completion;
+      boolean started = false;
+      try {
+         AsyncContext asyncContext = commandContext.startAsync();
+         completion = new AsyncCommandCompletion(route, command, commandContext, asyncContext, start);
+         asyncContext.addListener(completion);
+         started = true;
+      }
+      finally {
+         // once started, the completion releases the command
+         if (!started) {
+            route.release(command);
+            route.getStats().record(System.nanoTime() - start, 0, true);
          }
       }
-      //
-      // If not found, see if an annotated command class had been found
-      //
-      if (commandClass == null) {
-         if (debug) log.debug("  trying annotated commands...");
-         commandClass = this.annotatedCommands.get(commandVerb);
-         if (debug && commandClass != null) log.debug("    found!");
+      CompletableFuture<?> future;
+      try {
+         future = command.executeAsync(commandContext);
+         if (future == null) future = CompletableFuture.completedFuture(null);
       }
-      //
-      // If still not found, try the conventional command path
-      //
-      if (commandClass == null && this.commandsPathRoot != null) {
-         if (debug) log.debug("  trying command path: " + this.commandsPathRoot);
-         String commandClassName = new StringBuilder().append(this.commandsPathRoot).append('.').append(adjustVerb(commandVerb)).append("Command").toString();
-         log.debug("    command class name: " + commandClassName);
+      catch (Exception e) {
+         future = new CompletableFuture<Object>();
+         future.completeExceptionally(e);
+      }
+      completion.attach(future);
+   }
+
+   /**
+    * Puts the request in asynchronous mode without timeout, sends the event
+    * stream headers and hands the stream to the command. The container
+    * thread is released as soon as the command returns; the stream is
+    * closed by the command, by the client going away (detected by the
+    * heartbeats) or by the destruction of the servlet.
+    */
+   private void openEventStream(CommandRoute route, CommandContextImplementation commandContext, long start)
+            throws ServletException, IOException {
+      HttpServletRequest request = commandContext.getRequest();
+      if (!request.isAsyncSupported()) {
+         throw new ServletException("Command " + route.getVerb() + " needs asynchronous support to stream events");
+      }
+      HttpServletResponse response = commandContext.getResponse();
+      AsyncContext asyncContext = commandContext.startAsync();
+      asyncContext.setTimeout(0);
+      response.setContentType("text/event-stream;charset=UTF-8");
+      response.setHeader("Cache-Control", "no-cache");
+      response.flushBuffer();
+      EventStreams streams = getEventStreams();
+      EventStream stream = new EventStream(streams, asyncContext, response.getOutputStream(), request.getHeader("Last-Event-ID"));
+      streams.add(stream);
+      Command command = route.acquire();
+      if (log.isInfoEnabled()) log.info("opening event stream {} ({})", route.getVerb(), route.getCommandClass().getName());
+      boolean failed = true;
+      try {
+         ((EventStreamCommand) command).openStream(stream, commandContext);
+         failed = false;
+      }
+      finally {
+         route.release(command);
+         route.getStats().record(System.nanoTime() - start, 0, failed);
+         if (failed) stream.close();
+      }
+   }
+
+   /**
+    * @return the open event streams, created with their scheduler on first
+    *         use
+    */
+   private EventStreams getEventStreams() {
+      EventStreams streams = this.eventStreams;
+      if (streams == null) {
+         synchronized (this) {
+            streams = this.eventStreams;
+            if (streams == null) {
+               String heartbeat = getServletConfig().getInitParameter(INIT_PARAM_EVENT_STREAM_HEARTBEAT);
+               streams = new EventStreams(heartbeat == null ? DEFAULT_EVENT_STREAM_HEARTBEAT : Integer.parseInt(heartbeat.trim()));
+               this.eventStreams = streams;
+            }
+         }
+      }
+      return streams;
+   }
+
+   /**
+    * Resolves the route for the passed path info. Known verbs are answered
+    * straight from the routing table built at init; anything else goes through
+    * {@link #findLateRoute(String)}.
+    */
+   CommandRoute findRoute(String pathInfo) throws CommandNotFoundException {
+      CommandRoute route = this.routes.get(pathInfo);
+      if (route != null) return route;
+      String commandVerb = pathInfo.startsWith("/") ? pathInfo.substring(1) : pathInfo;
+      int closingSlashIndex = commandVerb.indexOf('/');
+      if (closingSlashIndex != -1) commandVerb = commandVerb.substring(0, closingSlashIndex);
+      route = this.routes.get(commandVerb);
+      if (route != null) return route;
+      return findLateRoute(commandVerb);
+   }
+
+   Class findCommandClass(String commandVerb) throws CommandNotFoundException {
+      CommandRoute route = this.routes.get(commandVerb);
+      if (route == null) route = findLateRoute(commandVerb);
+      return route.getCommandClass();
+   }
+
+   /**
+    * Last resort lookup for verbs missing from the routing table: a command
+    * class following the naming convention may still be reachable through the
+    * class loader without having been found by the initial scan. Routes are
+    * keyed by class name, so that the variants of a verb ("foo", "Foo") share
+    * a single route, created once, and a class already routed at init under
+    * another verb reuses that route. Misses are remembered in a bounded
+    * negative cache so that unknown verbs don't cost a class loader lookup on
+    * every request.
+    */
+   private CommandRoute findLateRoute(String commandVerb) throws CommandNotFoundException {
+      boolean debug = log.isDebugEnabled();
+      if (debug) log.debug("Locating command class for verb: {}", commandVerb);
+      if (this.commandsPathRoot != null && !this.unknownVerbs.containsKey(commandVerb)) {
+         if (debug) log.debug("  trying command path: {}", this.commandsPathRoot);
+         String commandClassName = new StringBuilder().append(this.commandsPathRoot)
+                                                      .append('.')
+                                                      .append(adjustVerb(commandVerb))
+                                                      .append("Command")
+                                                      .toString();
+         CommandRoute route = this.lateRoutes.get(commandClassName);
+         if (route != null) return route;
+         if (debug) log.debug("    command class name: {}", commandClassName);
          try {
-            commandClass = Class.forName(commandClassName);
-            log.debug("      found");
+            route = this.lateRoutes.computeIfAbsent(commandClassName, name -> {
+               try {
+                  Class<? extends Command> commandClass = Class.forName(name).asSubclass(Command.class);
+                  // a command known at init under another verb keeps its
+                  // instances and stats
+                  CommandRoute known = this.routesByClass.get(commandClass);
+                  return known != null ? known : new CommandRoute(commandVerb, commandClass);
+               }
+               catch (ClassNotFoundException | CommandNotFoundException e) {
+                  throw new LateRouteFailure(e);
+               }
+            });
+            if (debug) log.debug("      found");
+            return route;
          }
-         catch (ClassNotFoundException e) {
-            log.debug("      not found");
+         catch (LateRouteFailure e) {
+            if (e.getCause() instanceof CommandNotFoundException) throw (CommandNotFoundException) e.getCause();
+            if (debug) log.debug("      not found");
+            rememberUnknownVerb(commandVerb);
          }
       }
       //
       // If still not located, throw our hands up in disgust
       //
-      if (commandClass == null) throw new CommandNotFoundException("Could not associate a Command implementation with command verb "
-                                                                   + commandVerb);
-      return commandClass;
+      throw new CommandNotFoundException("Could not associate a Command implementation with command verb "
+                                         + commandVerb);
+   }
+
+   /**
+    * Carries the checked failures of a late route creation out of
+    * {@link ConcurrentMap#computeIfAbsent(Object, java.util.function.Function)}.
+    */
+   private static final class LateRouteFailure extends RuntimeException {
+      private static final long serialVersionUID = 1L;
+
+      LateRouteFailure(Exception cause) {
+         super(cause);
+      }
+   }
+
+   private void rememberUnknownVerb(String commandVerb) {
+      if (this.unknownVerbs.size() >= MAX_UNKNOWN_VERBS) this.unknownVerbs.clear();
+      this.unknownVerbs.put(commandVerb, Boolean.TRUE);
    }
 
    private static final Pattern PATTERN = Pattern.compile("(.+\\.)*((\\w)+)");
@@ -318,13 +793,43 @@ public class CommandBroker extends HttpServlet {
          return verb.toString();
       }
       else {
+         rememberUnknownVerb(commandVerb);
          throw new CommandNotFoundException("Command verb "
                                             + commandVerb
                                             + " does not match required pattern");
       }
    }
 
+   /**
+    * Resolves the path of a view, remembering it for the next requests.
+    */
    String findViewPath(String viewName) throws ViewNotFoundException {
+      String viewPath = this.viewPaths.get(viewName);
+      if (viewPath != null) return viewPath;
+      viewPath = resolveViewPath(viewName);
+      if (this.viewPaths.size() >= MAX_CACHED_VIEWS) this.viewPaths.clear();
+      this.viewPaths.put(viewName, viewPath);
+      return viewPath;
+   }
+
+   /**
+    * Returns a dispatcher for the passed path. Dispatchers for context
+    * relative paths without query string only depend on the path, so they
+    * are looked up once and shared.
+    */
+   RequestDispatcher getRequestDispatcher(HttpServletRequest request, String path) {
+      if (!path.startsWith("/") || path.indexOf('?') != -1) return request.getRequestDispatcher(path);
+      RequestDispatcher dispatcher = this.dispatchers.get(path);
+      if (dispatcher == null) {
+         dispatcher = getServletContext().getRequestDispatcher(path);
+         if (dispatcher == null) return null;
+         if (this.dispatchers.size() >= MAX_CACHED_VIEWS) this.dispatchers.clear();
+         this.dispatchers.put(path, dispatcher);
+      }
+      return dispatcher;
+   }
+
+   private String resolveViewPath(String viewName) throws ViewNotFoundException {
       boolean debug = log.isDebugEnabled();
       if (debug) log.debug("Finding view path for name: " + viewName + "...");
       String viewPath = null;
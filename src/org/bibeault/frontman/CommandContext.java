@@ -194,6 +194,55 @@ public interface CommandContext {
    */
   void sendError(int statusCode) throws IOException, IllegalStateException;
 
+  /**
+   * Declares the entity tag of the output the command is about to produce and checks it against the
+   * If-None-Match header of the request. The ETag header is set on the response; when a GET or HEAD request
+   * already holds this version, a 304 (Not Modified) status is set instead and the command should return
+   * without producing any output.
+   *
+   * @param etag the entity tag, quoted or not, optionally prefixed by W/ for a weak validator
+   * @return true if the response was answered with 304
+   */
+  boolean checkNotModified(String etag);
+
+  /**
+   * Declares the last modification time of the output the command is about to produce and checks it against
+   * the If-Modified-Since header of the request, in the same way as {@link #checkNotModified(String)}.
+   *
+   * @param lastModified the last modification time, in milliseconds since the epoch
+   * @return true if the response was answered with 304
+   */
+  boolean checkNotModified(long lastModified);
+
+  /**
+   * Declares both validators. As mandated by HTTP, If-Modified-Since is only considered when the request
+   * carries no If-None-Match header.
+   *
+   * @param etag         the entity tag, see {@link #checkNotModified(String)}
+   * @param lastModified the last modification time, in milliseconds since the epoch
+   * @return true if the response was answered with 304
+   */
+  boolean checkNotModified(String etag, long lastModified);
+
+  /**
+   * Creates an object of the passed class and fills it from the request parameters, each property taking
+   * the value of the parameter of the same name.
+   * <p>
+   * Beans need a public no-argument constructor and are filled through their public setters and public
+   * non-final fields; records are created through their canonical constructor. Supported property types
+   * are String, the primitive types and their wrappers, BigDecimal, UUID, enums (by constant name), the
+   * java.time and Joda-Time dates and times (ISO-8601), and arrays of those for multi-valued parameters.
+   * Missing and empty parameters leave a property to its default value. The binding of each class is
+   * prepared once and reused for every request.
+   * </p>
+   *
+   * @param type the class of the object to create
+   * @return the new object
+   * @throws ParameterBindingException on the first parameter that cannot be converted
+   * @throws IllegalArgumentException  if the class cannot be instantiated
+   */
+  <T> T bind(Class<T> type) throws ParameterBindingException;
+
   /**
    * Convenience wrapper around the {@link #forward(String)} method that forwards to the command specified by the passed
    * command verb.
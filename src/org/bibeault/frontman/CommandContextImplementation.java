@@ -31,6 +31,7 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.Map;
+import javax.servlet.AsyncContext;
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
@@ -48,7 +49,8 @@ import javax.servlet.http.HttpSession;
  * <p>
  * A CommandContext is considered valid only for the duration of an invocation of the execute() method of the
  * {@link Command} interface. A reference to the CommandContext should never be retained beyond the scope of that
- * method, for example, by storing it in a scoped variable.
+ * method, for example, by storing it in a scoped variable. For an {@link AsyncCommand}, the CommandContext remains
+ * valid until the future returned by executeAsync() completes.
  * </p>
  */
 public final class CommandContextImplementation implements CommandContext {
@@ -58,6 +60,9 @@ public final class CommandContextImplementation implements CommandContext {
   private CommandBroker commandBroker;
   private HttpServletRequest request;
   private HttpServletResponse response;
+  private volatile AsyncContext asyncContext;
+  private volatile boolean dispatched;
+  private long viewNanos;
 
   public CommandContextImplementation(CommandBroker commandBroker, HttpServletRequest request, HttpServletResponse response) {
     this.commandBroker = commandBroker;
@@ -82,6 +87,33 @@ public final class CommandContextImplementation implements CommandContext {
    */
   public HttpServletResponse getResponse() { return this.response; }
 
+  /**
+   * Puts the current request in asynchronous mode. From then on, forwards are
+   * performed through the AsyncContext so that they keep working from any
+   * thread, until the request is dispatched or completed.
+   *
+   * @return the started asynchronous context
+   */
+  AsyncContext startAsync() {
+    this.asyncContext = this.request.startAsync(this.request, this.response);
+    return this.asyncContext;
+  }
+
+  /**
+   * @return true if the request was started in asynchronous mode and has
+   *         since been dispatched to another resource
+   */
+  boolean isDispatched() {
+    return this.dispatched;
+  }
+
+  /**
+   * @return the time spent in synchronous forwards so far, in nanoseconds
+   */
+  long getViewNanos() {
+    return this.viewNanos;
+  }
+
   /**
    * @return the current session instance.
    */
@@ -213,10 +245,24 @@ public final class CommandContextImplementation implements CommandContext {
    * @see javax.servlet.RequestDispatcher
    */
   public void forward(String path) throws IOException, ServletException, IllegalStateException {
-    RequestDispatcher dispatcher = getRequest().getRequestDispatcher(path);
+    AsyncContext async = this.asyncContext;
+    if (async != null) {
+      if (this.dispatched)
+        throw new IllegalStateException("The request has already been dispatched");
+      this.dispatched = true;
+      async.dispatch(path);
+      return;
+    }
+    RequestDispatcher dispatcher = this.commandBroker.getRequestDispatcher(this.request, path);
     if (dispatcher == null)
       throw new ServletException("Could not obtain a dispatcher for path " + path);
-    dispatcher.forward(this.request, this.response);
+    long start = System.nanoTime();
+    try {
+      dispatcher.forward(this.request, this.response);
+    }
+    finally {
+      this.viewNanos += System.nanoTime() - start;
+    }
   }
 
   /**
@@ -275,6 +321,53 @@ public final class CommandContextImplementation implements CommandContext {
     this.response.sendError(statusCode);
   }
 
+  /**
+   * Sets the ETag header and answers with 304 if the request already holds this version.
+   *
+   * @param etag the entity tag, quoted or not, optionally prefixed by W/ for a weak validator
+   * @return true if the response was answered with 304
+   */
+  public boolean checkNotModified(String etag) {
+    return checkNotModified(etag, -1);
+  }
+
+  /**
+   * Sets the Last-Modified header and answers with 304 if the request already holds this version.
+   *
+   * @param lastModified the last modification time, in milliseconds since the epoch
+   * @return true if the response was answered with 304
+   */
+  public boolean checkNotModified(long lastModified) {
+    return checkNotModified(null, lastModified);
+  }
+
+  /**
+   * Sets the ETag and Last-Modified headers and answers with 304 if the request already holds this version.
+   *
+   * @param etag         the entity tag, or null
+   * @param lastModified the last modification time, in milliseconds since the epoch, or a negative value
+   * @return true if the response was answered with 304
+   */
+  public boolean checkNotModified(String etag, long lastModified) {
+    String quotedEtag = etag == null ? null : ConditionalRequests.quote(etag);
+    if (quotedEtag != null) this.response.setHeader(ConditionalRequests.ETAG, quotedEtag);
+    if (lastModified >= 0) this.response.setDateHeader(ConditionalRequests.LAST_MODIFIED, lastModified);
+    if (!ConditionalRequests.isNotModified(this.request, quotedEtag, lastModified)) return false;
+    this.response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    return true;
+  }
+
+  /**
+   * Creates an object of the passed class filled from the request parameters.
+   *
+   * @param type the class of the object to create
+   * @return the new object
+   * @throws ParameterBindingException on the first parameter that cannot be converted
+   */
+  public <T> T bind(Class<T> type) throws ParameterBindingException {
+    return ParameterBinder.of(type).bind(this.request);
+  }
+
   /**
    * Convenience wrapper around the {@link #forward(String)} method that forwards to the command specified by the passed
    * command verb.
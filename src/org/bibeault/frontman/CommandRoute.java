@@ -0,0 +1,191 @@
+package org.bibeault.frontman;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Resolved association between a command verb and its Command implementation.
+ * <p>
+ * Routes are built once by the {@link CommandBroker} when it is initialized and
+ * are then shared, read-only, by every request addressed to the same verb.
+ * Each route also knows how to obtain a Command instance according to the
+ * {@link CommandScope} declared on the class: the constructor is looked up
+ * once as a MethodHandle, singletons are created up front and pooled
+ * instances are recycled.
+ * </p>
+ */
+final class CommandRoute {
+   private static final MethodType        CONSTRUCTOR_TYPE = MethodType.methodType(Command.class);
+
+   private final String                   verb;
+   private final Class<? extends Command> commandClass;
+   private final CommandScope             scope;
+   private final boolean                  async;
+   private final boolean                  eventStream;
+   private final MethodHandle             constructor;
+   private final Exception                constructorFailure;
+   private final Command                  singleton;
+   private final BlockingQueue<Command>   pool;
+   private final OutputCache              outputCache;
+   private final boolean                  contentETag;
+   private final CommandStats             stats            = new CommandStats();
+
+   /**
+    * @throws CommandNotFoundException
+    *            if the command is a singleton that could not be created.
+    *            Failures for other scopes are reported when the command is
+    *            first requested, as they were before routes existed.
+    */
+   CommandRoute(String verb, Class<? extends Command> commandClass) throws CommandNotFoundException {
+      this.verb = verb;
+      this.commandClass = commandClass;
+      FrontmanCommand annotation = commandClass.getAnnotation(FrontmanCommand.class);
+      this.scope = annotation == null ? CommandScope.REQUEST : annotation.scope();
+      this.async = AsyncCommand.class.isAssignableFrom(commandClass);
+      this.eventStream = EventStreamCommand.class.isAssignableFrom(commandClass);
+      CachedOutput cachedOutput = commandClass.getAnnotation(CachedOutput.class);
+      boolean buffered = !this.async && !this.eventStream;
+      this.outputCache = cachedOutput == null || !buffered ? null : new OutputCache(cachedOutput);
+      this.contentETag = buffered && commandClass.isAnnotationPresent(ContentETag.class);
+      MethodHandle handle = null;
+      Exception failure = null;
+      try {
+         handle = MethodHandles.publicLookup()
+                               .findConstructor(commandClass, MethodType.methodType(void.class))
+                               .asType(CONSTRUCTOR_TYPE);
+      }
+      catch (Exception e) {
+         failure = e;
+      }
+      this.constructor = handle;
+      this.constructorFailure = failure;
+      this.singleton = this.scope == CommandScope.SINGLETON ? newCommand() : null;
+      this.pool = this.scope == CommandScope.POOLED ? new ArrayBlockingQueue<Command>(Math.max(1, annotation.poolSize())) : null;
+   }
+
+   /**
+    * Creates a route for another verb leading to the same command class,
+    * sharing the Command instances of the passed route.
+    */
+   CommandRoute(String verb, CommandRoute route) {
+      this.verb = verb;
+      this.commandClass = route.commandClass;
+      this.scope = route.scope;
+      this.async = route.async;
+      this.eventStream = route.eventStream;
+      this.outputCache = route.outputCache;
+      this.contentETag = route.contentETag;
+      this.constructor = route.constructor;
+      this.constructorFailure = route.constructorFailure;
+      this.singleton = route.singleton;
+      this.pool = route.pool;
+   }
+
+   /**
+    * @return the command verb, as it appears in the request path info.
+    */
+   String getVerb() {
+      return this.verb;
+   }
+
+   /**
+    * @return the Command implementation class associated with the verb.
+    */
+   Class<? extends Command> getCommandClass() {
+      return this.commandClass;
+   }
+
+   /**
+    * @return the lifecycle of the Command instances served by this route.
+    */
+   CommandScope getScope() {
+      return this.scope;
+   }
+
+   /**
+    * @return true if the command is an {@link AsyncCommand}.
+    */
+   boolean isAsync() {
+      return this.async;
+   }
+
+   /**
+    * @return true if the command is an {@link EventStreamCommand}.
+    */
+   boolean isEventStream() {
+      return this.eventStream;
+   }
+
+   /**
+    * @return the output cache of the command, or null if its output is not
+    *         cached.
+    */
+   OutputCache getOutputCache() {
+      return this.outputCache;
+   }
+
+   /**
+    * @return true if the output of the command is tagged with a hash of its
+    *         content.
+    */
+   boolean hasContentETag() {
+      return this.contentETag;
+   }
+
+   /**
+    * @return the execution statistics of the verb.
+    */
+   CommandStats getStats() {
+      return this.stats;
+   }
+
+   /**
+    * Obtains a Command instance to serve the current request. Every call must
+    * be paired with a call to {@link #release(Command)} once the command has
+    * executed.
+    */
+   Command acquire() throws CommandNotFoundException {
+      switch (this.scope) {
+         case SINGLETON:
+            return this.singleton;
+         case POOLED:
+            Command pooled = this.pool.poll();
+            return pooled != null ? pooled : newCommand();
+         default:
+            return newCommand();
+      }
+   }
+
+   /**
+    * Gives back a Command instance obtained from {@link #acquire()}.
+    */
+   void release(Command command) {
+      if (this.pool != null) this.pool.offer(command);
+   }
+
+   private Command newCommand() throws CommandNotFoundException {
+      if (this.constructor == null) throw instantiationFailure(this.constructorFailure);
+      try {
+         return (Command) this.constructor.invokeExact();
+      }
+      catch (Error e) {
+         throw e;
+      }
+      catch (Exception e) {
+         throw instantiationFailure(e);
+      }
+      catch (Throwable t) {
+         throw instantiationFailure(new RuntimeException(t));
+      }
+   }
+
+   private CommandNotFoundException instantiationFailure(Exception e) {
+      return new CommandNotFoundException("Could not create command instance for command with verb "
+                                          + this.verb
+                                          + "; command class was "
+                                          + this.commandClass.getName(), e);
+   }
+}
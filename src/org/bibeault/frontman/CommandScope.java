@@ -0,0 +1,29 @@
+package org.bibeault.frontman;
+
+/**
+ * Enumeration modeling the lifecycles a Command instance can have, as declared
+ * by the <code>scope</code> attribute of {@link FrontmanCommand}.
+ */
+public enum CommandScope {
+
+   /**
+    * A new instance is created for every request. This is the default, and
+    * the only scope under which a Command may safely keep per-request state in
+    * its fields.
+    */
+   REQUEST,
+
+   /**
+    * A single instance is created when the Command Broker is initialized and
+    * is shared by all requests. The Command must be thread-safe.
+    */
+   SINGLETON,
+
+   /**
+    * Instances are recycled through a bounded pool: each instance serves a
+    * single request at a time, but is reused by later requests. The Command
+    * must not rely on its fields being reset between two executions.
+    */
+   POOLED
+
+}
@@ -0,0 +1,76 @@
+package org.bibeault.frontman;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Execution statistics of a command verb: latency histograms for the command
+ * execution proper, the view forward/render and the whole brokering, plus the
+ * number of failed executions: those which threw, and those which answered
+ * with a server error status (5xx) without throwing.
+ */
+final class CommandStats {
+   private final LatencyHistogram execute = new LatencyHistogram();
+   private final LatencyHistogram view    = new LatencyHistogram();
+   private final LatencyHistogram total   = new LatencyHistogram();
+   private final LongAdder        errors  = new LongAdder();
+
+   /**
+    * Records one execution.
+    *
+    * @param totalNanos time spent brokering the request
+    * @param viewNanos  part of that time spent forwarding to views
+    * @param failed     true if the command failed
+    */
+   void record(long totalNanos, long viewNanos, boolean failed) {
+      this.total.recordNanos(totalNanos);
+      this.execute.recordNanos(totalNanos - viewNanos);
+      if (viewNanos > 0) this.view.recordNanos(viewNanos);
+      if (failed) this.errors.increment();
+   }
+
+   /**
+    * @return true if the response carries a server error status, set by the
+    *         command (sendError, setStatus) or by the broker.
+    */
+   static boolean isServerError(HttpServletResponse response) {
+      return response.getStatus() >= HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+   }
+
+   /**
+    * Writes the statistics as a JSON object. Durations are in microseconds.
+    */
+   void writeJson(Writer out) throws IOException {
+      long count = this.total.getCount();
+      long errorCount = this.errors.sum();
+      out.write("{\"count\":" + count);
+      out.write(",\"errors\":" + errorCount);
+      out.write(",\"errorRate\":" + format(count == 0 ? 0 : (double) errorCount / count));
+      out.write(",\"execute\":");
+      writeJson(out, this.execute);
+      out.write(",\"view\":");
+      writeJson(out, this.view);
+      out.write(",\"total\":");
+      writeJson(out, this.total);
+      out.write('}');
+   }
+
+   private static void writeJson(Writer out, LatencyHistogram histogram) throws IOException {
+      out.write("{\"count\":" + histogram.getCount());
+      out.write(",\"mean\":" + format(histogram.getMean()));
+      out.write(",\"p50\":" + histogram.getPercentile(50));
+      out.write(",\"p90\":" + histogram.getPercentile(90));
+      out.write(",\"p99\":" + histogram.getPercentile(99));
+      out.write(",\"p999\":" + histogram.getPercentile(99.9));
+      out.write(",\"max\":" + histogram.getMax());
+      out.write('}');
+   }
+
+   private static String format(double value) {
+      return String.format(Locale.ROOT, "%.4f", value);
+   }
+}
@@ -0,0 +1,59 @@
+package org.bibeault.frontman;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Built-in command exposing the execution statistics of every command as JSON.
+ * It is registered by the {@link CommandBroker} itself, under the verb given
+ * by the <code>statsVerb</code> init parameter, if any. Durations are in
+ * microseconds.
+ */
+public final class CommandStatsCommand implements Command {
+
+   public void execute(CommandContext commandContext) throws ServletException, IOException {
+      Map<String, CommandStats> stats = new TreeMap<String, CommandStats>();
+      for (CommandRoute route : commandContext.getCommandBroker().getRoutes()) {
+         stats.put(route.getVerb(), route.getStats());
+      }
+      HttpServletResponse response = commandContext.getResponse();
+      response.setContentType("application/json");
+      response.setCharacterEncoding("UTF-8");
+      response.setHeader("Cache-Control", "no-cache");
+      Writer out = response.getWriter();
+      out.write("{\"verbs\":{");
+      boolean first = true;
+      for (Map.Entry<String, CommandStats> entry : stats.entrySet()) {
+         if (!first) out.write(',');
+         first = false;
+         writeJsonString(out, entry.getKey());
+         out.write(':');
+         entry.getValue().writeJson(out);
+      }
+      out.write("}}");
+   }
+
+   private static void writeJsonString(Writer out, String value) throws IOException {
+      out.write('"');
+      for (int i = 0; i < value.length(); i++) {
+         char c = value.charAt(i);
+         if (c == '"' || c == '\\') {
+            out.write('\\');
+            out.write(c);
+         }
+         else if (c < 0x20) {
+            out.write(String.format("\\u%04x", (int) c));
+         }
+         else {
+            out.write(c);
+         }
+      }
+      out.write('"');
+   }
+
+}
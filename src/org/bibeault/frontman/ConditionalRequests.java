@@ -0,0 +1,91 @@
+package org.bibeault.frontman;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Evaluation of the HTTP conditional GET headers (If-None-Match and
+ * If-Modified-Since) against the validators of a response.
+ */
+final class ConditionalRequests {
+   static final String         ETAG              = "ETag";
+   static final String         LAST_MODIFIED     = "Last-Modified";
+
+   private static final String IF_NONE_MATCH     = "If-None-Match";
+   private static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+   private static final char[] HEX_DIGITS        = "0123456789abcdef".toCharArray();
+
+   private ConditionalRequests() {
+   }
+
+   /**
+    * @return the entity tag in its quoted form, keeping a weak W/ prefix
+    */
+   static String quote(String etag) {
+      boolean weak = etag.startsWith("W/");
+      String opaque = weak ? etag.substring(2) : etag;
+      if (opaque.length() >= 2 && opaque.startsWith("\"") && opaque.endsWith("\"")) return etag;
+      return (weak ? "W/\"" : "\"") + opaque + '"';
+   }
+
+   /**
+    * @return a strong entity tag made of the MD5 digest of the body
+    */
+   static String etagOf(byte[] body) {
+      try {
+         byte[] digest = MessageDigest.getInstance("MD5").digest(body);
+         char[] etag = new char[digest.length * 2 + 2];
+         etag[0] = '"';
+         for (int i = 0; i < digest.length; i++) {
+            etag[1 + 2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+            etag[2 + 2 * i] = HEX_DIGITS[digest[i] & 0xf];
+         }
+         etag[etag.length - 1] = '"';
+         return new String(etag);
+      }
+      catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException("MD5 is required of every Java platform", e);
+      }
+   }
+
+   /**
+    * Tells whether a GET or HEAD request already holds the version of the
+    * resource described by the passed validators. If-None-Match is compared
+    * weakly, and If-Modified-Since is ignored when If-None-Match is present.
+    *
+    * @param etag         the quoted entity tag, or null
+    * @param lastModified the last modification time in milliseconds, or a
+    *                     negative value
+    */
+   static boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+      String method = request.getMethod();
+      if (!"GET".equals(method) && !"HEAD".equals(method)) return false;
+      String ifNoneMatch = request.getHeader(IF_NONE_MATCH);
+      if (ifNoneMatch != null) return etag != null && matches(ifNoneMatch, etag);
+      if (lastModified < 0) return false;
+      long ifModifiedSince;
+      try {
+         ifModifiedSince = request.getDateHeader(IF_MODIFIED_SINCE);
+      }
+      catch (IllegalArgumentException e) {
+         return false;
+      }
+      // HTTP dates have a one second precision
+      return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+   }
+
+   private static boolean matches(String ifNoneMatch, String etag) {
+      String opaque = withoutWeakPrefix(etag);
+      for (String candidate : ifNoneMatch.split(",")) {
+         candidate = candidate.trim();
+         if (candidate.equals("*") || withoutWeakPrefix(candidate).equals(opaque)) return true;
+      }
+      return false;
+   }
+
+   private static String withoutWeakPrefix(String etag) {
+      return etag.startsWith("W/") ? etag.substring(2) : etag;
+   }
+}
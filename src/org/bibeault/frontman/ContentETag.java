@@ -0,0 +1,23 @@
+package org.bibeault.frontman;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Makes the {@link CommandBroker} buffer the output of a command and its
+ * view, and tag it with an ETag computed from the bytes. GET and HEAD
+ * requests presenting the same tag in If-None-Match are answered with 304
+ * and no body.
+ * <p>
+ * This saves bandwidth, not work: the command is still executed. Commands
+ * that can tell cheaply whether their data changed should rather call
+ * {@link CommandContext#checkNotModified(String)} before doing the expensive
+ * part. Output cached through {@link CachedOutput} is always tagged this way.
+ * </p>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface ContentETag {
+}
@@ -0,0 +1,309 @@
+package org.bibeault.frontman;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An open Server-Sent Events response, handed to an
+ * {@link EventStreamCommand}. Events may be sent from any thread; concurrent
+ * sends are serialized.
+ * <p>
+ * Writes are non-blocking: an event the client is not ready to receive is
+ * queued, and sent by the container once the connection drains. A client
+ * leaving {@value #MAX_PENDING} events pending, or reading nothing for two
+ * heartbeat periods, is considered gone.
+ * </p>
+ * <p>
+ * Sending never throws: once the client has gone away, send methods simply
+ * return false, the stream is closed and the listeners registered with
+ * {@link #onClose(Runnable)} are run, so that publishers can forget it.
+ * </p>
+ */
+public final class EventStream {
+   private static final Logger          log            = LoggerFactory.getLogger(EventStream.class);
+   private static final byte[]          HEARTBEAT      = ":\n\n".getBytes(StandardCharsets.UTF_8);
+   static final int                     MAX_PENDING    = 1024;
+
+   private final AtomicBoolean          open           = new AtomicBoolean(true);
+   private final List<Runnable>         closeListeners = new CopyOnWriteArrayList<Runnable>();
+   private final ReentrantLock          lock           = new ReentrantLock();
+   private final StringBuilder          frame          = new StringBuilder(256);
+   private final Queue<byte[]>          pending        = new ArrayDeque<byte[]>();
+   private final EventStreams           streams;
+   private final AsyncContext           asyncContext;
+   private final ServletOutputStream    out;
+   private final String                 lastEventId;
+   private boolean                      flushNeeded;
+   // the container calls onWritePossible once after setWriteListener, then
+   // each time isReady() returned false
+   private boolean                      awaiting       = true;
+   private boolean                      completing;
+   private boolean                      completed;
+   private volatile long                lastWrite      = System.nanoTime();
+
+   EventStream(EventStreams streams, AsyncContext asyncContext, ServletOutputStream out, String lastEventId) {
+      this.streams = streams;
+      this.asyncContext = asyncContext;
+      this.out = out;
+      this.lastEventId = lastEventId;
+      asyncContext.addListener(new AsyncListener() {
+         public void onComplete(AsyncEvent event) {
+            fail();
+         }
+
+         public void onTimeout(AsyncEvent event) {
+            fail();
+         }
+
+         public void onError(AsyncEvent event) {
+            fail();
+         }
+
+         public void onStartAsync(AsyncEvent event) {
+         }
+      });
+      out.setWriteListener(new WriteListener() {
+         public void onWritePossible() {
+            lock.lock();
+            try {
+               awaiting = false;
+               drain();
+            }
+            finally {
+               lock.unlock();
+            }
+         }
+
+         public void onError(Throwable t) {
+            log.debug("Event stream closed by the client: {}", t.toString());
+            fail();
+         }
+      });
+   }
+
+   /**
+    * @return the Last-Event-ID header sent by a reconnecting client, or null
+    */
+   public String getLastEventId() {
+      return this.lastEventId;
+   }
+
+   /**
+    * @return false once the stream has been closed, by either side
+    */
+   public boolean isOpen() {
+      return this.open.get();
+   }
+
+   /**
+    * Sends an unnamed event.
+    *
+    * @return false if the stream is closed
+    */
+   public boolean send(String data) {
+      return send(null, null, data);
+   }
+
+   /**
+    * Sends a named event.
+    *
+    * @return false if the stream is closed
+    */
+   public boolean send(String event, String data) {
+      return send(null, event, data);
+   }
+
+   /**
+    * Sends an event. Multi-line data is split into several data fields, as
+    * the protocol requires.
+    *
+    * @param id
+    *           the event id, echoed back by the client in Last-Event-ID when
+    *           it reconnects, or null
+    * @param event
+    *           the event name, or null for a "message" event
+    * @param data
+    *           the event data
+    * @return false if the stream is closed
+    */
+   public boolean send(String id, String event, String data) {
+      this.lock.lock();
+      try {
+         this.frame.setLength(0);
+         if (id != null) this.frame.append("id: ").append(id).append('\n');
+         if (event != null) this.frame.append("event: ").append(event).append('\n');
+         int from = 0;
+         int newLine;
+         while ((newLine = data.indexOf('\n', from)) != -1) {
+            this.frame.append("data: ").append(data, from, newLine).append('\n');
+            from = newLine + 1;
+         }
+         this.frame.append("data: ").append(data, from, data.length()).append("\n\n");
+         return write(this.frame.toString().getBytes(StandardCharsets.UTF_8));
+      }
+      finally {
+         this.lock.unlock();
+      }
+   }
+
+   /**
+    * Registers a callback run once, when the stream is closed.
+    */
+   public void onClose(Runnable listener) {
+      this.closeListeners.add(listener);
+      if (!isOpen() && this.closeListeners.remove(listener)) listener.run();
+   }
+
+   /**
+    * Ends the response, once the events still pending are sent.
+    */
+   public void close() {
+      if (!closed()) return;
+      this.lock.lock();
+      try {
+         this.completing = true;
+         drain();
+      }
+      finally {
+         this.lock.unlock();
+      }
+   }
+
+   /**
+    * Ends the response, dropping the events still pending.
+    */
+   private void fail() {
+      closed();
+      this.lock.lock();
+      try {
+         this.pending.clear();
+         complete();
+      }
+      finally {
+         this.lock.unlock();
+      }
+   }
+
+   /**
+    * Marks the stream closed and runs the close listeners, the first time.
+    */
+   private boolean closed() {
+      if (!this.open.compareAndSet(true, false)) return false;
+      for (Runnable listener : this.closeListeners) {
+         if (!this.closeListeners.remove(listener)) continue;
+         try {
+            listener.run();
+         }
+         catch (RuntimeException e) {
+            log.warn("Event stream close listener failed", e);
+         }
+      }
+      return true;
+   }
+
+   private void complete() {
+      if (this.completed) return;
+      this.completed = true;
+      this.streams.remove(this);
+      try {
+         this.asyncContext.complete();
+      }
+      catch (IllegalStateException e) {
+         // already completed by the container
+      }
+   }
+
+   /**
+    * Sends a comment line if nothing was written for the passed delay, which
+    * detects the clients that went away. Called by the single heartbeat
+    * thread of all the streams: never waits for this one.
+    */
+   void heartbeat(long idleNanos) {
+      long idle = System.nanoTime() - this.lastWrite;
+      if (idle < idleNanos || !this.lock.tryLock()) return;
+      try {
+         if (!this.pending.isEmpty() || this.flushNeeded || this.completing) {
+            // the client does not read what is already pending
+            if (idle >= 2 * idleNanos) {
+               log.debug("Event stream closed, client stalled for {}ms", idle / 1000000);
+               fail();
+            }
+            return;
+         }
+         write(HEARTBEAT);
+      }
+      finally {
+         this.lock.unlock();
+      }
+   }
+
+   /**
+    * Queues the bytes and sends as much as the client accepts. Holds the
+    * lock.
+    */
+   private boolean write(byte[] bytes) {
+      if (!isOpen()) return false;
+      if (this.pending.size() >= MAX_PENDING) {
+         log.debug("Event stream closed, {} events pending", MAX_PENDING);
+         fail();
+         return false;
+      }
+      this.pending.add(bytes);
+      drain();
+      return isOpen();
+   }
+
+   private boolean ready() {
+      if (this.out.isReady()) return true;
+      this.awaiting = true;
+      return false;
+   }
+
+   /**
+    * Writes the pending bytes while the output is ready, without ever
+    * blocking; the container calls back onWritePossible once it is ready
+    * again. Completes the response once a closed stream is drained. Holds
+    * the lock.
+    */
+   private void drain() {
+      // writing before the pending callback runs makes Jetty fail it
+      if (this.completed || this.awaiting) return;
+      try {
+         while (ready()) {
+            byte[] next = this.pending.poll();
+            if (next != null) {
+               this.out.write(next);
+               this.flushNeeded = true;
+            }
+            else if (this.flushNeeded) {
+               this.flushNeeded = false;
+               this.out.flush();
+            }
+            else {
+               if (this.completing) complete();
+               return;
+            }
+            this.lastWrite = System.nanoTime();
+         }
+      }
+      catch (IOException | IllegalStateException e) {
+         log.debug("Event stream closed by the client: {}", e.toString());
+         fail();
+      }
+   }
+}
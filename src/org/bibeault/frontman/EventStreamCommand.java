@@ -0,0 +1,45 @@
+package org.bibeault.frontman;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+
+/**
+ * Variant of {@link Command} for commands pushing Server-Sent Events to the
+ * client instead of rendering a view.
+ * <p>
+ * The Command Broker puts the request in asynchronous mode, sends the
+ * text/event-stream headers and calls
+ * {@link #openStream(EventStream, CommandContext)}, which is expected to hand
+ * the {@link EventStream} over to whatever produces the events (typically a
+ * publisher keeping a set of open streams) and return at once: the container
+ * thread, and everything the filters bound to it such as the transaction of
+ * the TransactionFilter, is released right away. The stream stays open until
+ * it is closed or the client goes away; heartbeats are sent on idle streams
+ * so that dead connections are detected.
+ * </p>
+ * <p>
+ * The CommandContext must not be used once openStream() has returned.
+ * Event streams require the servlet and every filter of the chain to support
+ * asynchronous requests.
+ * </p>
+ */
+public interface EventStreamCommand extends Command {
+
+   /**
+    * Called by the Command Broker once the response is ready to carry
+    * events.
+    *
+    * @throws ServletException
+    * @throws IOException
+    */
+   public void openStream(EventStream stream, CommandContext commandContext) throws ServletException, IOException;
+
+   /**
+    * Event streams cannot be served without asynchronous support.
+    */
+   public default void execute(CommandContext commandContext) throws ServletException, IOException {
+      throw new ServletException("Event stream commands require asynchronous support on the servlet and its filters");
+   }
+
+}
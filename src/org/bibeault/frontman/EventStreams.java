@@ -0,0 +1,66 @@
+package org.bibeault.frontman;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The open {@link EventStream}s of a Command Broker, and the single scheduler
+ * thread sending their heartbeats. Streams do not hold any thread between
+ * two events, however many of them are open, and their writes never block:
+ * a stalled client does not delay the heartbeats of the others.
+ */
+final class EventStreams {
+   private final Set<EventStream>         streams = ConcurrentHashMap.newKeySet();
+   private final ScheduledExecutorService scheduler;
+   private final long                     heartbeatNanos;
+
+   EventStreams(long heartbeatSeconds) {
+      this.heartbeatNanos = TimeUnit.SECONDS.toNanos(heartbeatSeconds);
+      this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "frontman-event-streams");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+      // checking twice per period bounds the silence to 1.5 heartbeat
+      long period = Math.max(1, this.heartbeatNanos / 2);
+      this.scheduler.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            heartbeat();
+         }
+      }, period, period, TimeUnit.NANOSECONDS);
+   }
+
+   void add(EventStream stream) {
+      this.streams.add(stream);
+   }
+
+   void remove(EventStream stream) {
+      this.streams.remove(stream);
+   }
+
+   int size() {
+      return this.streams.size();
+   }
+
+   private void heartbeat() {
+      for (EventStream stream : this.streams) {
+         stream.heartbeat(this.heartbeatNanos);
+      }
+   }
+
+   /**
+    * Stops the heartbeats and closes every open stream.
+    */
+   void shutdown() {
+      this.scheduler.shutdownNow();
+      for (EventStream stream : this.streams) {
+         stream.close();
+      }
+   }
+}
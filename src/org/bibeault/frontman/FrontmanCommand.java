@@ -34,11 +34,20 @@ import java.lang.annotation.ElementType;
 
 /**
  * Annotation to associate a command implementation with its verb.
- * The single String value identifies the command verb to be
- * associated with the Command implementation.
+ * The String value identifies the command verb to be
+ * associated with the Command implementation. The optional scope
+ * defines how instances of the command are created and reused
+ * (a new instance per request by default).
  */
 @Retention(RetentionPolicy.RUNTIME)
 @Target(ElementType.TYPE)
 public @interface FrontmanCommand {
   public abstract String value();
+
+  public abstract CommandScope scope() default CommandScope.REQUEST;
+
+  /**
+   * Maximum number of idle instances kept for reuse when scope is POOLED.
+   */
+  public abstract int poolSize() default 16;
 }
@@ -0,0 +1,129 @@
+package org.bibeault.frontman;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Annotation processor writing, at compile time, the index of the command
+ * classes annotated with {@link FrontmanCommand}.
+ * <p>
+ * The index is a properties resource (verb=class name) that the
+ * {@link CommandBroker} loads at init instead of scanning the commands package
+ * with the ClassFinder. The processor is registered through
+ * <code>META-INF/services</code>, so it runs automatically whenever the
+ * frontman jar is on the compilation classpath.
+ * </p>
+ * <p>
+ * On incremental builds, only part of the sources are compiled: entries of the
+ * previous index are kept as long as their class still exists and has not been
+ * recompiled.
+ * </p>
+ */
+@SupportedAnnotationTypes("org.bibeault.frontman.FrontmanCommand")
+public class FrontmanCommandProcessor extends AbstractProcessor {
+   static final String               INDEX_RESOURCE = "META-INF/frontman/commands.properties";
+
+   private final Map<String, String> commands       = new TreeMap<String, String>();
+
+   @Override
+   public SourceVersion getSupportedSourceVersion() {
+      return SourceVersion.latestSupported();
+   }
+
+   @Override
+   public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+      if (roundEnv.processingOver()) {
+         writeIndex();
+         return false;
+      }
+      for (Element element : roundEnv.getElementsAnnotatedWith(FrontmanCommand.class)) {
+         if (element.getKind() != ElementKind.CLASS) continue;
+         String className = processingEnv.getElementUtils().getBinaryName((TypeElement) element).toString();
+         String verb = element.getAnnotation(FrontmanCommand.class).value();
+         String previous = this.commands.put(verb, className);
+         if (previous != null && !previous.equals(className)) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, "Command verb "
+                                                                              + verb
+                                                                              + " is mapped to both "
+                                                                              + previous
+                                                                              + " and "
+                                                                              + className, element);
+         }
+      }
+      return false;
+   }
+
+   private void writeIndex() {
+      Properties index = readPreviousIndex();
+      index.putAll(this.commands);
+      if (index.isEmpty()) return;
+      try {
+         FileObject resource = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT,
+                                                                      "",
+                                                                      INDEX_RESOURCE);
+         OutputStream out = resource.openOutputStream();
+         try {
+            index.store(out, "Generated by " + FrontmanCommandProcessor.class.getName());
+         }
+         finally {
+            out.close();
+         }
+      }
+      catch (IOException e) {
+         processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Could not write "
+                                                                         + INDEX_RESOURCE
+                                                                         + ": "
+                                                                         + e.getMessage());
+      }
+   }
+
+   /**
+    * Reads the index left by a previous compilation, dropping the entries
+    * whose class disappeared or was recompiled in this one (recompiled classes
+    * are indexed again if they are still annotated).
+    */
+   private Properties readPreviousIndex() {
+      Properties previous = new Properties();
+      try {
+         FileObject resource = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT,
+                                                                   "",
+                                                                   INDEX_RESOURCE);
+         InputStream in = resource.openInputStream();
+         try {
+            previous.load(in);
+         }
+         finally {
+            in.close();
+         }
+      }
+      catch (IOException e) {
+         // no previous index : full build
+         return previous;
+      }
+      Properties kept = new Properties();
+      for (String verb : previous.stringPropertyNames()) {
+         String className = previous.getProperty(verb);
+         TypeElement type = processingEnv.getElementUtils().getTypeElement(className.replace('$', '.'));
+         if (type != null && !this.commands.containsValue(className) && type.getAnnotation(FrontmanCommand.class) != null) {
+            kept.setProperty(verb, className);
+         }
+      }
+      return kept;
+   }
+}
@@ -0,0 +1,95 @@
+package org.bibeault.frontman;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with log-linear buckets, in the spirit of HDR
+ * histograms: values are recorded in microseconds with a relative precision
+ * of 1/16 (about 6%), from 1 microsecond up to several hours.
+ * <p>
+ * Recording a value is a couple of atomic increments and never allocates, so
+ * it can be done on every request.
+ * </p>
+ */
+final class LatencyHistogram {
+   private static final int       SUB_BUCKET_BITS  = 4;
+   private static final int       SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+   private static final int       MAX_EXPONENT     = 40;
+   private static final int       BUCKET_COUNT     = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+   private final AtomicLongArray  buckets          = new AtomicLongArray(BUCKET_COUNT);
+   private final LongAdder        count            = new LongAdder();
+   private final LongAdder        sum              = new LongAdder();
+
+   /**
+    * Records a duration measured with System.nanoTime().
+    */
+   void recordNanos(long nanos) {
+      long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos));
+      this.buckets.incrementAndGet(indexOf(micros));
+      this.count.increment();
+      this.sum.add(micros);
+   }
+
+   long getCount() {
+      return this.count.sum();
+   }
+
+   /**
+    * @return the mean of the recorded values, in microseconds.
+    */
+   double getMean() {
+      long n = this.count.sum();
+      return n == 0 ? 0 : (double) this.sum.sum() / n;
+   }
+
+   /**
+    * @return the highest recorded value (bucket precision), in microseconds.
+    */
+   long getMax() {
+      for (int i = BUCKET_COUNT - 1; i >= 0; i--) {
+         if (this.buckets.get(i) > 0) return highestValueOf(i);
+      }
+      return 0;
+   }
+
+   /**
+    * @param percentile between 0 and 100
+    * @return the value under which the passed percentage of the recorded
+    *         values fall (bucket precision), in microseconds.
+    */
+   long getPercentile(double percentile) {
+      long[] counts = new long[BUCKET_COUNT];
+      long total = 0;
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+         counts[i] = this.buckets.get(i);
+         total += counts[i];
+      }
+      if (total == 0) return 0;
+      long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+      long seen = 0;
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+         seen += counts[i];
+         if (seen >= rank) return highestValueOf(i);
+      }
+      return highestValueOf(BUCKET_COUNT - 1);
+   }
+
+   static int indexOf(long micros) {
+      if (micros < SUB_BUCKET_COUNT) return (int) micros;
+      int exponent = 63 - Long.numberOfLeadingZeros(micros);
+      if (exponent > MAX_EXPONENT) return BUCKET_COUNT - 1;
+      int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+      return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+   }
+
+   static long highestValueOf(int index) {
+      if (index < SUB_BUCKET_COUNT) return index;
+      int exponent = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+      long subBucket = index % SUB_BUCKET_COUNT;
+      long lowest = (SUB_BUCKET_COUNT + subBucket) << (exponent - SUB_BUCKET_BITS);
+      return lowest + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+   }
+}
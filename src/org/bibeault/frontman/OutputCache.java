@@ -0,0 +1,119 @@
+package org.bibeault.frontman;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.constructs.blocking.BlockingCache;
+
+/**
+ * Output cache of a command declared with {@link CachedOutput}.
+ * <p>
+ * All the commands share one Ehcache cache, decorated as a BlockingCache so
+ * that concurrent requests for a missing key wait for the first one to
+ * produce the output instead of all executing the command. Every successful
+ * {@link #get(String)} returning null must therefore be followed by a
+ * {@link #put(String, BufferedOutput)} or a
+ * {@link #release(String, BufferedOutput)}.
+ * </p>
+ */
+final class OutputCache {
+   static final String  CACHE_NAME = "org.bibeault.frontman.output";
+
+   private final long     ttlMillis;
+   private final int      retentionSeconds;
+   private final String[] parameters;
+   private final String   sessionAttribute;
+
+   OutputCache(CachedOutput annotation) {
+      this.ttlMillis = annotation.ttl() * 1000L;
+      this.retentionSeconds = Math.max(1, annotation.ttl() + Math.max(0, annotation.staleWhileRevalidate()));
+      this.parameters = annotation.parameters().clone();
+      this.sessionAttribute = annotation.sessionAttribute().isEmpty() ? null : annotation.sessionAttribute();
+   }
+
+   /**
+    * @return true if the request may be answered from the cache
+    */
+   boolean accepts(HttpServletRequest request) {
+      String method = request.getMethod();
+      return "GET".equals(method) || "HEAD".equals(method);
+   }
+
+   /**
+    * Builds the key of the request: the path info, then each configured
+    * parameter with all its values, then the session attribute.
+    */
+   String keyOf(HttpServletRequest request, String pathInfo) {
+      StringBuilder key = new StringBuilder(pathInfo);
+      for (String name : this.parameters) {
+         key.append('\u0000').append(name);
+         String[] values = request.getParameterValues(name);
+         if (values != null) {
+            for (String value : values) {
+               key.append('\u0001').append(value);
+            }
+         }
+      }
+      if (this.sessionAttribute != null) {
+         HttpSession session = request.getSession(false);
+         Object value = session == null ? null : session.getAttribute(this.sessionAttribute);
+         key.append('\u0000').append(value);
+      }
+      return key.toString();
+   }
+
+   /**
+    * @return the cached output for the key, or null if there is none, in
+    *         which case the caller now holds the key and other requests for
+    *         it wait until it is put or released
+    */
+   BufferedOutput get(String key) {
+      Element element = Holder.CACHE.get(key);
+      return element == null ? null : (BufferedOutput) element.getObjectValue();
+   }
+
+   /**
+    * Stores a freshly produced output, releasing the waiting requests.
+    */
+   void put(String key, BufferedOutput output) {
+      Holder.CACHE.put(new Element(key, output, 0, this.retentionSeconds));
+   }
+
+   /**
+    * Gives up producing the output of the key: a missing key is unlocked, a
+    * stale entry becomes refreshable again.
+    */
+   void release(String key, BufferedOutput stale) {
+      if (stale == null) Holder.CACHE.put(new Element(key, null));
+      else stale.cancelRefresh();
+   }
+
+   /**
+    * @return true if the output can be served without being refreshed
+    */
+   boolean isFresh(BufferedOutput output) {
+      return System.currentTimeMillis() - output.getCreated() < this.ttlMillis;
+   }
+
+   /**
+    * Lazily creates the shared cache the first time a cached command is
+    * requested.
+    */
+   private static final class Holder {
+      static final BlockingCache CACHE = createCache();
+
+      private static BlockingCache createCache() {
+         CacheManager manager = CacheManager.create();
+         synchronized (manager) {
+            Ehcache cache = manager.addCacheIfAbsent(CACHE_NAME);
+            if (cache instanceof BlockingCache) return (BlockingCache) cache;
+            BlockingCache blocking = new BlockingCache(cache);
+            manager.replaceCacheWithDecoratedCache(cache, blocking);
+            return blocking;
+         }
+      }
+   }
+}
@@ -0,0 +1,387 @@
+package org.bibeault.frontman;
+
+import java.lang.invoke.LambdaConversionException;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Fills an object of a given class from the request parameters, for
+ * {@link CommandContext#bind(Class)}.
+ * <p>
+ * The binder of a class is built on first use and kept for the life of the
+ * class: properties are found by reflection once, each setter is turned into
+ * a generated BiConsumer, and each request then only goes through those and
+ * the converter of each property. Beans are
+ * created with their public no-argument constructor and filled through their
+ * public setters and public non-final fields; records (on Java 16 and later)
+ * are created with their canonical constructor. A property is bound to the
+ * request parameter of the same name; missing and empty parameters leave the
+ * property to its default value.
+ * </p>
+ */
+final class ParameterBinder<T> {
+
+   /**
+    * Turns a parameter value into a property value. Any runtime exception
+    * denotes an invalid value.
+    */
+   interface Converter {
+      Object convert(String value);
+   }
+
+   private static final MethodHandles.Lookup               LOOKUP       = MethodHandles.lookup();
+   private static final MethodType                         SETTER_TYPE  = MethodType.methodType(void.class, Object.class, Object.class);
+   private static final MethodType                         FACTORY_TYPE = MethodType.methodType(Object.class, Object[].class);
+   private static final ConcurrentMap<Class<?>, Converter> CONVERTERS   = new ConcurrentHashMap<Class<?>, Converter>();
+   private static final ClassValue<ParameterBinder<?>>     BINDERS      = new ClassValue<ParameterBinder<?>>() {
+      protected ParameterBinder<?> computeValue(Class<?> type) {
+         return new ParameterBinder<Object>(type);
+      }
+   };
+
+   static {
+      CONVERTERS.put(String.class, value -> value);
+      CONVERTERS.put(int.class, Integer::valueOf);
+      CONVERTERS.put(Integer.class, Integer::valueOf);
+      CONVERTERS.put(long.class, Long::valueOf);
+      CONVERTERS.put(Long.class, Long::valueOf);
+      CONVERTERS.put(short.class, Short::valueOf);
+      CONVERTERS.put(Short.class, Short::valueOf);
+      CONVERTERS.put(double.class, Double::valueOf);
+      CONVERTERS.put(Double.class, Double::valueOf);
+      CONVERTERS.put(float.class, Float::valueOf);
+      CONVERTERS.put(Float.class, Float::valueOf);
+      CONVERTERS.put(boolean.class, ParameterBinder::toBoolean);
+      CONVERTERS.put(Boolean.class, ParameterBinder::toBoolean);
+      CONVERTERS.put(BigDecimal.class, BigDecimal::new);
+      CONVERTERS.put(UUID.class, UUID::fromString);
+      CONVERTERS.put(LocalDate.class, LocalDate::parse);
+      CONVERTERS.put(LocalDateTime.class, LocalDateTime::parse);
+      CONVERTERS.put(LocalTime.class, LocalTime::parse);
+      CONVERTERS.put(OffsetDateTime.class, OffsetDateTime::parse);
+      CONVERTERS.put(Instant.class, Instant::parse);
+   }
+
+   private final Class<?>     type;
+   private final boolean      creator;
+   private final MethodHandle factory;
+   private final Property[]   properties;
+
+   @SuppressWarnings("unchecked")
+   static <T> ParameterBinder<T> of(Class<T> type) {
+      return (ParameterBinder<T>) BINDERS.get(type);
+   }
+
+   private ParameterBinder(Class<?> type) {
+      this.type = type;
+      if (!Modifier.isPublic(type.getModifiers()) || type.isInterface() || Modifier.isAbstract(type.getModifiers())) {
+         throw new IllegalArgumentException("Cannot bind request parameters to " + type.getName() + ": not a public concrete class");
+      }
+      MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+      try {
+         Object[] components = recordComponents(type);
+         this.creator = components != null;
+         if (this.creator) {
+            Class<?>[] types = new Class<?>[components.length];
+            this.properties = new Property[components.length];
+            for (int i = 0; i < components.length; i++) {
+               String name = (String) components[i].getClass().getMethod("getName").invoke(components[i]);
+               types[i] = (Class<?>) components[i].getClass().getMethod("getType").invoke(components[i]);
+               this.properties[i] = new Property(name, types[i], null);
+            }
+            this.factory = lookup.unreflectConstructor(type.getConstructor(types))
+                                 .asSpreader(Object[].class, types.length)
+                                 .asType(FACTORY_TYPE);
+         }
+         else {
+            this.factory = lookup.findConstructor(type, MethodType.methodType(void.class))
+                                 .asType(MethodType.methodType(Object.class));
+            this.properties = findBeanProperties(type, lookup);
+         }
+      }
+      catch (ReflectiveOperationException e) {
+         throw new IllegalArgumentException("Cannot bind request parameters to " + type.getName(), e);
+      }
+   }
+
+   /**
+    * @return the record components of the class, or null if it is not a
+    *         record (or the runtime predates records)
+    */
+   private static Object[] recordComponents(Class<?> type) throws ReflectiveOperationException {
+      Method isRecord;
+      try {
+         isRecord = Class.class.getMethod("isRecord");
+      }
+      catch (NoSuchMethodException e) {
+         return null;
+      }
+      if (!(Boolean) isRecord.invoke(type)) return null;
+      return (Object[]) Class.class.getMethod("getRecordComponents").invoke(type);
+   }
+
+   private static Property[] findBeanProperties(Class<?> type, MethodHandles.Lookup lookup) throws IllegalAccessException {
+      Map<String, Property> properties = new HashMap<String, Property>();
+      for (Field field : type.getFields()) {
+         int modifiers = field.getModifiers();
+         if (Modifier.isStatic(modifiers) || Modifier.isFinal(modifiers)) continue;
+         if (findConverter(field.getType()) == null) continue;
+         properties.put(field.getName(), new Property(field.getName(), field.getType(), setterOf(lookup.unreflectSetter(field))));
+      }
+      // les setters l'emportent sur les champs du même nom
+      for (Method method : type.getMethods()) {
+         String name = method.getName();
+         if (Modifier.isStatic(method.getModifiers()) || method.getParameterCount() != 1 || name.length() < 4 || !name.startsWith("set")) continue;
+         if (findConverter(method.getParameterTypes()[0]) == null) continue;
+         String property = Character.toLowerCase(name.charAt(3)) + name.substring(4);
+         properties.put(property, new Property(property, method.getParameterTypes()[0], setterOf(type, lookup.unreflect(method))));
+      }
+      List<Property> sorted = new ArrayList<Property>(properties.values());
+      sorted.sort((a, b) -> a.name.compareTo(b.name));
+      return sorted.toArray(new Property[sorted.size()]);
+   }
+
+   /**
+    * @return a BiConsumer calling the setter, spun once by the lambda
+    *         metafactory so that the JIT can inline it like plain code
+    */
+   @SuppressWarnings("unchecked")
+   private static BiConsumer<Object, Object> setterOf(Class<?> type, MethodHandle setter) {
+      // the lambda is defined in the class loader of frontman, which must see
+      // the bean (a webapp class loader may be its child, not the reverse)
+      if (!isVisible(type) || !isVisible(setter.type().parameterType(1))) return setterOf(setter);
+      MethodType instantiated = MethodType.methodType(void.class, type, setter.type().parameterType(1)).wrap().changeReturnType(void.class);
+      try {
+         return (BiConsumer<Object, Object>) LambdaMetafactory.metafactory(LOOKUP,
+                                                                           "accept",
+                                                                           MethodType.methodType(BiConsumer.class),
+                                                                           SETTER_TYPE,
+                                                                           setter,
+                                                                           instantiated)
+                                                              .getTarget()
+                                                              .invokeExact();
+      }
+      catch (LambdaConversionException e) {
+         // setter hérité d'une classe non publique : on passe par le handle
+         return setterOf(setter);
+      }
+      catch (Throwable t) {
+         throw new IllegalStateException("Could not generate the setter " + setter, t);
+      }
+   }
+
+   private static boolean isVisible(Class<?> type) {
+      if (type.isPrimitive()) return true;
+      try {
+         return Class.forName(type.getName(), false, ParameterBinder.class.getClassLoader()) == type;
+      }
+      catch (ClassNotFoundException e) {
+         return false;
+      }
+   }
+
+   private static BiConsumer<Object, Object> setterOf(MethodHandle setter) {
+      MethodHandle handle = setter.asType(SETTER_TYPE);
+      return (bean, value) -> {
+         try {
+            handle.invokeExact(bean, value);
+         }
+         catch (RuntimeException | Error e) {
+            throw e;
+         }
+         catch (Throwable t) {
+            throw new IllegalStateException(t);
+         }
+      };
+   }
+
+   /**
+    * Creates and fills an object from the request parameters.
+    *
+    * @throws ParameterBindingException
+    *            on the first parameter that cannot be converted
+    */
+   @SuppressWarnings("unchecked")
+   T bind(HttpServletRequest request) throws ParameterBindingException {
+      try {
+         if (this.creator) {
+            Object[] arguments = new Object[this.properties.length];
+            for (int i = 0; i < this.properties.length; i++) {
+               Object value = this.properties[i].valueFrom(request);
+               arguments[i] = value == null ? this.properties[i].defaultValue : value;
+            }
+            return (T) this.factory.invokeExact(arguments);
+         }
+         Object bean = this.factory.invokeExact();
+         for (Property property : this.properties) {
+            Object value = property.valueFrom(request);
+            if (value != null) property.set(bean, value);
+         }
+         return (T) bean;
+      }
+      catch (ParameterBindingException | RuntimeException | Error e) {
+         throw e;
+      }
+      catch (Throwable t) {
+         throw new IllegalStateException("Could not create " + this.type.getName(), t);
+      }
+   }
+
+   /**
+    * @return the converter of the passed type, or of its elements for an
+    *         array, created and cached on first use; null if the type is not
+    *         supported
+    */
+   static Converter findConverter(Class<?> type) {
+      if (type.isArray()) type = type.getComponentType();
+      Converter converter = CONVERTERS.get(type);
+      if (converter != null) return converter;
+      if (type.isEnum()) converter = enumConverter(type);
+      else if (type.getName().startsWith("org.joda.time.")) converter = JodaConverters.of(type);
+      if (converter == null) return null;
+      Converter previous = CONVERTERS.putIfAbsent(type, converter);
+      return previous == null ? converter : previous;
+   }
+
+   private static Converter enumConverter(Class<?> type) {
+      Map<String, Object> constants = new HashMap<String, Object>();
+      for (Object constant : type.getEnumConstants()) {
+         constants.put(((Enum<?>) constant).name(), constant);
+      }
+      return value -> {
+         Object constant = constants.get(value);
+         if (constant == null) throw new IllegalArgumentException(value);
+         return constant;
+      };
+   }
+
+   private static Boolean toBoolean(String value) {
+      switch (value) {
+         case "true":
+         case "on":
+         case "yes":
+         case "1":
+            return Boolean.TRUE;
+         case "false":
+         case "off":
+         case "no":
+         case "0":
+            return Boolean.FALSE;
+         default:
+            throw new IllegalArgumentException(value);
+      }
+   }
+
+   /**
+    * A bound property: its parameter name, its converter and, for beans, its
+    * setter. Record components of unsupported types are never bound.
+    */
+   private static final class Property {
+      final String                     name;
+      final Class<?>                   type;
+      final Class<?>                   componentType;
+      final Converter                  converter;
+      final BiConsumer<Object, Object> setter;
+      final Object                     defaultValue;
+
+      Property(String name, Class<?> type, BiConsumer<Object, Object> setter) {
+         this.name = name;
+         this.type = type;
+         this.componentType = type.isArray() ? type.getComponentType() : null;
+         this.converter = findConverter(type);
+         this.setter = setter;
+         this.defaultValue = type.isPrimitive() ? Array.get(Array.newInstance(type, 1), 0) : null;
+      }
+
+      /**
+       * @return the converted value, or null if the parameter is missing or
+       *         empty
+       */
+      Object valueFrom(HttpServletRequest request) throws ParameterBindingException {
+         if (this.converter == null) return null;
+         if (this.componentType == null) {
+            String value = request.getParameter(this.name);
+            if (value == null || value.isEmpty()) return null;
+            return convert(value, this.type);
+         }
+         String[] values = request.getParameterValues(this.name);
+         if (values == null) return null;
+         if (this.componentType == String.class) return values;
+         // les tableaux de primitifs courants sans passer par Array.set()
+         if (this.componentType == int.class) {
+            int[] array = new int[values.length];
+            for (int i = 0; i < values.length; i++) {
+               array[i] = (Integer) convert(values[i], int.class);
+            }
+            return array;
+         }
+         if (this.componentType == long.class) {
+            long[] array = new long[values.length];
+            for (int i = 0; i < values.length; i++) {
+               array[i] = (Long) convert(values[i], long.class);
+            }
+            return array;
+         }
+         Object array = Array.newInstance(this.componentType, values.length);
+         for (int i = 0; i < values.length; i++) {
+            Array.set(array, i, convert(values[i], this.componentType));
+         }
+         return array;
+      }
+
+      private Object convert(String value, Class<?> target) throws ParameterBindingException {
+         try {
+            return this.converter.convert(value);
+         }
+         catch (RuntimeException e) {
+            throw new ParameterBindingException(this.name, value, "not a valid " + target.getSimpleName(), e);
+         }
+      }
+
+      void set(Object bean, Object value) throws ParameterBindingException {
+         try {
+            this.setter.accept(bean, value);
+         }
+         catch (IllegalArgumentException e) {
+            // valeur refusée par le setter lui-même
+            throw new ParameterBindingException(this.name, String.valueOf(value), e.getMessage(), e);
+         }
+      }
+   }
+
+   /**
+    * Joda-Time conversions, kept apart so that Joda is only needed by
+    * applications binding Joda types.
+    */
+   private static final class JodaConverters {
+      static Converter of(Class<?> type) {
+         if (type == org.joda.time.LocalDate.class) return org.joda.time.LocalDate::parse;
+         if (type == org.joda.time.LocalDateTime.class) return org.joda.time.LocalDateTime::parse;
+         if (type == org.joda.time.LocalTime.class) return org.joda.time.LocalTime::parse;
+         if (type == org.joda.time.DateTime.class) return org.joda.time.DateTime::parse;
+         return null;
+      }
+   }
+}
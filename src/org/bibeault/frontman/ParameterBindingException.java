@@ -0,0 +1,36 @@
+package org.bibeault.frontman;
+
+import javax.servlet.ServletException;
+
+/**
+ * An extension of ServletException thrown by {@link CommandContext#bind(Class)}
+ * when a request parameter cannot be converted to the type of the property it
+ * is bound to, or is refused by its setter with an IllegalArgumentException.
+ * Only the first invalid parameter is reported.
+ */
+public final class ParameterBindingException extends ServletException {
+   private static final long serialVersionUID = 1L;
+   private final String      parameter;
+   private final String      value;
+
+   public ParameterBindingException(String parameter, String value, String reason, Throwable cause) {
+      super("Invalid value \"" + value + "\" for request parameter " + parameter + " (" + reason + ")", cause);
+      this.parameter = parameter;
+      this.value = value;
+   }
+
+   /**
+    * @return the name of the invalid request parameter
+    */
+   public String getParameter() {
+      return this.parameter;
+   }
+
+   /**
+    * @return the rejected value
+    */
+   public String getValue() {
+      return this.value;
+   }
+
+}
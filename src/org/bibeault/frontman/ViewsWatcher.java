@@ -0,0 +1,86 @@
+package org.bibeault.frontman;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the views directory tree and runs a callback whenever a file or
+ * directory is created, deleted or modified in it. Used in development so
+ * that the views resolved by the {@link CommandBroker} follow the files.
+ */
+final class ViewsWatcher implements Runnable, Closeable {
+   private static final Logger log = LoggerFactory.getLogger(ViewsWatcher.class);
+
+   private final WatchService  watchService;
+   private final Runnable      onChange;
+   private final Thread        thread;
+
+   /**
+    * Registers the directory tree and starts the watching daemon thread.
+    */
+   ViewsWatcher(Path root, Runnable onChange) throws IOException {
+      this.watchService = FileSystems.getDefault().newWatchService();
+      this.onChange = onChange;
+      register(root);
+      this.thread = new Thread(this, "frontman-views-watcher");
+      this.thread.setDaemon(true);
+      this.thread.start();
+   }
+
+   private void register(Path root) throws IOException {
+      Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+         @Override
+         public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+            dir.register(ViewsWatcher.this.watchService,
+                         StandardWatchEventKinds.ENTRY_CREATE,
+                         StandardWatchEventKinds.ENTRY_DELETE,
+                         StandardWatchEventKinds.ENTRY_MODIFY);
+            return FileVisitResult.CONTINUE;
+         }
+      });
+   }
+
+   public void run() {
+      try {
+         while (true) {
+            WatchKey key = this.watchService.take();
+            Path dir = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+               if (event.kind() != StandardWatchEventKinds.ENTRY_CREATE) continue;
+               Path created = dir.resolve((Path) event.context());
+               if (Files.isDirectory(created)) register(created);
+            }
+            key.reset();
+            log.debug("Change detected in {}", dir);
+            this.onChange.run();
+         }
+      }
+      catch (ClosedWatchServiceException e) {
+         // closed by the broker
+      }
+      catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      catch (IOException e) {
+         log.warn("Stopped watching views", e);
+      }
+   }
+
+   public void close() throws IOException {
+      this.watchService.close();
+   }
+}
@@ -112,9 +112,10 @@ public class ClassFinder {
          processFolder(folder, packageName, classes);
       }
       log.debug("done searching folders...");
-      // TODO: remove
-      for (Class found : classes) {
-         log.info("Found class: " + found.getName());
+      if (log.isDebugEnabled()) {
+         for (Class found : classes) {
+            log.debug("Found class: " + found.getName());
+         }
       }
       return classes;
    }